@@ -0,0 +1,14 @@
+package org.getopt.luke;
+
+/**
+ * Long-running operations that can be cancelled by the user.
+ */
+public interface Abortable {
+
+  /**
+   * Request that the operation stops as soon as possible.
+   */
+  public void abort();
+
+  public boolean isAborted();
+}
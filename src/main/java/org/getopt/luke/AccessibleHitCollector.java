@@ -1,13 +1,22 @@
 package org.getopt.luke;
 
+import java.io.IOException;
+import java.util.List;
+
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopScoreDocCollector;
 
 public abstract class AccessibleHitCollector extends Collector {
   protected Scorer scorer;
   protected boolean shouldScore;
   protected int docBase;
   protected boolean outOfOrder;
+  protected Sort sort;
 
   public abstract int getTotalHits();
   
@@ -16,4 +25,54 @@ public abstract class AccessibleHitCollector extends Collector {
   public abstract float getScore(int pos);
   
   public abstract void reset();
+
+  /**
+   * @return sort order of hits, or null if they are ranked by score
+   */
+  public Sort getSort() {
+    return sort;
+  }
+
+  /**
+   * @return a new empty collector with the same settings, that collects a
+   * slice of leaves in a {@link ConcurrentSearch}, or null if hits can only be
+   * collected sequentially
+   */
+  public AccessibleHitCollector newSubCollector() {
+    return null;
+  }
+
+  /**
+   * Replace the hits with those of sub-collectors.
+   * @param subs sub-collectors from {@link #newSubCollector()}, in leaf order
+   */
+  public abstract void merge(List<AccessibleHitCollector> subs) throws IOException;
+
+  /**
+   * Merge top hits of slices. Ties are broken by slice order, then by order
+   * within the slice, so that the merged hits are the same as those
+   * collected sequentially.
+   */
+  protected static TopDocs mergeTopDocs(Sort sort, int size, TopDocs[] slices) throws IOException {
+    return TopDocs.merge(sort, size, slices);
+  }
+
+  /**
+   * Create a collector of top hits.
+   * @param size number of top hits
+   * @param sort sort order, or null to rank hits by score
+   * @param outOfOrder accept documents out of order
+   * @param shouldScore compute scores of hits, if sorted by fields
+   */
+  protected static TopDocsCollector<?> createTopCollector(int size, Sort sort,
+      boolean outOfOrder, boolean shouldScore) {
+    if (sort == null) {
+      return TopScoreDocCollector.create(size, outOfOrder);
+    }
+    try {
+      return TopFieldCollector.create(sort, size, true, shouldScore, shouldScore, outOfOrder);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
 }
@@ -1,44 +1,58 @@
 package org.getopt.luke;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TopDocsCollector;
 
 public class AccessibleTopHitCollector extends AccessibleHitCollector {
-  private TopScoreDocCollector tdc;
+  private TopDocsCollector<?> tdc;
   private TopDocs topDocs = null;
   private int size;
   
   public AccessibleTopHitCollector(int size, boolean outOfOrder, boolean shouldScore) {
-    tdc = TopScoreDocCollector.create(size, outOfOrder);
+    this(size, null, outOfOrder, shouldScore);
+  }
+
+  /**
+   * @param sort sort order, or null to rank hits by score
+   */
+  public AccessibleTopHitCollector(int size, Sort sort, boolean outOfOrder, boolean shouldScore) {
     this.shouldScore = shouldScore;
     this.outOfOrder = outOfOrder;
     this.size = size;
+    this.sort = sort;
+    tdc = createTopCollector(size, sort, outOfOrder, shouldScore);
   }
 
-  @Override
-  public int getDocId(int pos) {
+  /**
+   * @return top hits collected so far
+   */
+  public TopDocs getTopDocs() {
     if (topDocs == null) {
       topDocs = tdc.topDocs();
     }
-    return topDocs.scoreDocs[pos].doc;
+    return topDocs;
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    return getTopDocs().scoreDocs[pos].doc;
   }
 
   @Override
   public float getScore(int pos) {
-    if (topDocs == null) {
-      topDocs = tdc.topDocs();
-    }
-    return topDocs.scoreDocs[pos].score;
+    return getTopDocs().scoreDocs[pos].score;
   }
 
   @Override
   public int getTotalHits() {
-    return tdc.getTotalHits();
+    return topDocs != null ? topDocs.totalHits : tdc.getTotalHits();
   }
 
   @Override
@@ -66,9 +80,23 @@ public class AccessibleTopHitCollector extends AccessibleHitCollector {
     }
   }
 
+  @Override
+  public AccessibleHitCollector newSubCollector() {
+    return new AccessibleTopHitCollector(size, sort, outOfOrder, shouldScore);
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    TopDocs[] slices = new TopDocs[subs.size()];
+    for (int i = 0; i < slices.length; i++) {
+      slices[i] = ((AccessibleTopHitCollector)subs.get(i)).getTopDocs();
+    }
+    topDocs = mergeTopDocs(sort, size, slices);
+  }
+
   @Override
   public void reset() {
-    tdc = TopScoreDocCollector.create(size, outOfOrder);
+    tdc = createTopCollector(size, sort, outOfOrder, shouldScore);
     topDocs = null;
   }
 
@@ -1,55 +1,286 @@
 /**
- * 
+ *
  */
 package org.getopt.luke;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.SorterTemplate;
 
+/**
+ * Collects all hits. Document numbers and scores are kept in pages of
+ * primitive arrays, 8 bytes per hit, or 4 if hits are not scored. Once the
+ * hits exceed a limit, full pages are spilled to a temporary file and
+ * accessed through memory mapping, so that the heap only holds the page
+ * being filled. Hits stay randomly accessible, and can be sorted in place.
+ * <p>Sub-collectors of a {@link ConcurrentSearch} share the heap limit of
+ * the collector that created them.</p>
+ */
 class AllHitsCollector extends AccessibleHitCollector {
-  private ArrayList<AllHit> hits = new ArrayList<AllHit>();
-  
+  /** Default limit of hits kept on the heap, in percent of the maximum heap size. */
+  public static final int DEFAULT_HEAP_PERCENT = 10;
+
+  private static final int PAGE_SHIFT = 20;
+  private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private final long maxHeapHits;
+  // full pages on the heap, of this collector and its sub-collectors
+  private final AtomicInteger heapPages;
+  // full pages on the heap counted by this collector
+  private int ownPages = 0;
+  private int size = 0;
+  // pages on the heap, or null if spilled
+  private ArrayList<int[]> docPages = new ArrayList<int[]>();
+  private ArrayList<float[]> scorePages = new ArrayList<float[]>();
+  // spilled pages, or null if on the heap
+  private ArrayList<IntBuffer> docMaps = new ArrayList<IntBuffer>();
+  private ArrayList<FloatBuffer> scoreMaps = new ArrayList<FloatBuffer>();
+  // page being filled
+  private int[] docs;
+  private float[] scores;
+  private int upto;
+  private File spillFile = null;
+  private RandomAccessFile spill = null;
+
   public AllHitsCollector(boolean outOfOrder, boolean shouldScore) {
+    this(outOfOrder, shouldScore,
+        Runtime.getRuntime().maxMemory() / 100 * DEFAULT_HEAP_PERCENT / (shouldScore ? 8 : 4));
+  }
+
+  /**
+   * @param outOfOrder accept documents out of order
+   * @param shouldScore compute scores
+   * @param maxHeapHits number of hits kept on the heap, more are spilled
+   * to a temporary file
+   */
+  public AllHitsCollector(boolean outOfOrder, boolean shouldScore, long maxHeapHits) {
+    this(outOfOrder, shouldScore, maxHeapHits, new AtomicInteger());
+  }
+
+  private AllHitsCollector(boolean outOfOrder, boolean shouldScore, long maxHeapHits,
+      AtomicInteger heapPages) {
     this.outOfOrder = outOfOrder;
     this.shouldScore = shouldScore;
+    this.maxHeapHits = Math.max(PAGE_SIZE, maxHeapHits);
+    this.heapPages = heapPages;
+    reset();
+  }
+
+  public void collect(int doc) throws IOException {
+    add(docBase + doc, shouldScore ? scorer.score() : 1.0f);
   }
-  
-  public void collect(int doc) {
-    float score = 1.0f;
+
+  private void add(int doc, float score) throws IOException {
+    if (upto == docs.length) {
+      nextPage();
+    }
+    docs[upto] = doc;
     if (shouldScore) {
-      try {
-        score = scorer.score();
-      } catch (IOException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
+      scores[upto] = score;
+    }
+    upto++;
+    size++;
+  }
+
+  private void nextPage() throws IOException {
+    int page = docPages.size() - 1;
+    if (docs.length < PAGE_SIZE) {
+      // only the first page grows
+      docs = Arrays.copyOf(docs, Math.min(PAGE_SIZE, docs.length * 2));
+      docPages.set(page, docs);
+      if (shouldScore) {
+        scores = Arrays.copyOf(scores, docs.length);
+        scorePages.set(page, scores);
+      }
+      if (docs.length == PAGE_SIZE) {
+        takeHeapPage(true);
+      }
+      return;
+    }
+    if (!takeHeapPage(false)) {
+      // spill the full page and reuse its arrays
+      docMaps.set(page, spillDocs(docs, page));
+      docPages.set(page, null);
+      if (shouldScore) {
+        scoreMaps.set(page, spillScores(scores, page));
+        scorePages.set(page, null);
+      }
+    } else {
+      docs = new int[PAGE_SIZE];
+      if (shouldScore) {
+        scores = new float[PAGE_SIZE];
+      }
+    }
+    docPages.add(docs);
+    docMaps.add(null);
+    if (shouldScore) {
+      scorePages.add(scores);
+      scoreMaps.add(null);
+    }
+    upto = 0;
+  }
+
+  /**
+   * Count a full page on the heap, if within the limit.
+   * @param force count it even if over the limit, for the page being filled
+   * @return true if the page was counted
+   */
+  private boolean takeHeapPage(boolean force) {
+    for (;;) {
+      int pages = heapPages.get();
+      if (!force && (long)(pages + 1) * PAGE_SIZE > maxHeapHits) {
+        return false;
       }
+      if (heapPages.compareAndSet(pages, pages + 1)) {
+        ownPages++;
+        return true;
+      }
+    }
+  }
+
+  private IntBuffer spillDocs(int[] page, int pageNum) throws IOException {
+    ByteBuffer buf = map(pageNum * 2);
+    buf.asIntBuffer().put(page);
+    return buf.asIntBuffer();
+  }
+
+  private FloatBuffer spillScores(float[] page, int pageNum) throws IOException {
+    ByteBuffer buf = map(pageNum * 2 + 1);
+    buf.asFloatBuffer().put(page);
+    return buf.asFloatBuffer();
+  }
+
+  private ByteBuffer map(int slot) throws IOException {
+    if (spill == null) {
+      spillFile = File.createTempFile("luke-hits", ".tmp");
+      spillFile.deleteOnExit();
+      spill = new RandomAccessFile(spillFile, "rw");
     }
-    hits.add(new AllHit(docBase + doc, score));
+    long pageBytes = (long)PAGE_SIZE * 4;
+    MappedByteBuffer buf = spill.getChannel().map(FileChannel.MapMode.READ_WRITE,
+        slot * pageBytes, pageBytes);
+    buf.order(ByteOrder.nativeOrder());
+    return buf;
+  }
+
+  /**
+   * @return true if some hits were spilled to a temporary file
+   */
+  public boolean isSpilled() {
+    return spill != null;
   }
-  
+
   public int getTotalHits() {
-    return hits.size();
+    return size;
   }
-  
+
   public int getDocId(int i) {
-    return ((AllHitsCollector.AllHit)hits.get(i)).docId;
+    int page = i >>> PAGE_SHIFT;
+    int[] p = docPages.get(page);
+    if (p != null) {
+      return p[i & PAGE_MASK];
+    }
+    return docMaps.get(page).get(i & PAGE_MASK);
   }
 
   public float getScore(int i) {
-    return ((AllHitsCollector.AllHit)hits.get(i)).score;
+    if (!shouldScore) {
+      return 1.0f;
+    }
+    int page = i >>> PAGE_SHIFT;
+    float[] p = scorePages.get(page);
+    if (p != null) {
+      return p[i & PAGE_MASK];
+    }
+    return scoreMaps.get(page).get(i & PAGE_MASK);
   }
 
-  private static class AllHit {
-    public int docId;
-    public float score;
-    
-    public AllHit(int docId, float score) {
-      this.docId = docId;
-      this.score = score;
+  private void set(int i, int docId, float score) {
+    int page = i >>> PAGE_SHIFT;
+    int off = i & PAGE_MASK;
+    int[] p = docPages.get(page);
+    if (p != null) {
+      p[off] = docId;
+    } else {
+      docMaps.get(page).put(off, docId);
+    }
+    if (shouldScore) {
+      float[] s = scorePages.get(page);
+      if (s != null) {
+        s[off] = score;
+      } else {
+        scoreMaps.get(page).put(off, score);
+      }
+    }
+  }
+
+  /**
+   * Sort hits by descending score, and by document number within the same
+   * score.
+   */
+  public void sortByScore() {
+    new HitSorter(true).quickSort(0, size - 1);
+  }
+
+  /**
+   * Sort hits by document number.
+   */
+  public void sortByDocId() {
+    new HitSorter(false).quickSort(0, size - 1);
+  }
+
+  private class HitSorter extends SorterTemplate {
+    boolean byScore;
+    int pivotDoc;
+    float pivotScore;
+
+    HitSorter(boolean byScore) {
+      this.byScore = byScore;
+    }
+
+    protected void swap(int i, int j) {
+      int doc = getDocId(i);
+      float score = getScore(i);
+      set(i, getDocId(j), getScore(j));
+      set(j, doc, score);
+    }
+
+    protected int compare(int i, int j) {
+      return compare(getDocId(i), getScore(i), getDocId(j), getScore(j));
+    }
+
+    protected void setPivot(int i) {
+      pivotDoc = getDocId(i);
+      pivotScore = getScore(i);
+    }
+
+    protected int comparePivot(int j) {
+      return compare(pivotDoc, pivotScore, getDocId(j), getScore(j));
+    }
+
+    private int compare(int doc1, float score1, int doc2, float score2) {
+      if (byScore) {
+        int cmp = Float.compare(score2, score1);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return doc1 < doc2 ? -1 : (doc1 == doc2 ? 0 : 1);
     }
   }
 
@@ -68,8 +299,59 @@ class AllHitsCollector extends AccessibleHitCollector {
     this.scorer = scorer;
   }
 
+  /**
+   * Sub-collectors count their pages against this collector's heap limit,
+   * and spill to their own files beyond it.
+   */
+  @Override
+  public AccessibleHitCollector newSubCollector() {
+    return new AllHitsCollector(outOfOrder, shouldScore, maxHeapHits, heapPages);
+  }
+
+  /**
+   * Append the hits of sub-collectors in leaf order, releasing each one
+   * once it is copied.
+   */
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    reset();
+    for (AccessibleHitCollector sub : subs) {
+      AllHitsCollector ahc = (AllHitsCollector)sub;
+      for (int i = 0; i < ahc.size; i++) {
+        add(ahc.getDocId(i), ahc.getScore(i));
+      }
+      ahc.reset();
+    }
+  }
+
   @Override
   public void reset() {
-    hits.clear();
+    heapPages.addAndGet(-ownPages);
+    ownPages = 0;
+    size = 0;
+    upto = 0;
+    docPages.clear();
+    scorePages.clear();
+    docMaps.clear();
+    scoreMaps.clear();
+    docs = new int[1024];
+    docPages.add(docs);
+    docMaps.add(null);
+    if (shouldScore) {
+      scores = new float[1024];
+      scorePages.add(scores);
+      scoreMaps.add(null);
+    }
+    if (spill != null) {
+      try {
+        spill.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      // mapped pages may keep the file open until they are collected
+      spillFile.delete();
+      spill = null;
+      spillFile = null;
+    }
   }
-}
\ No newline at end of file
+}
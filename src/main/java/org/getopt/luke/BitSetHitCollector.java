@@ -0,0 +1,186 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Collects all hits into a bitset, one bit per document, without scores.
+ * Hits are in document order. It also pages through an existing bitset,
+ * such as one combined from result sets.
+ */
+public class BitSetHitCollector extends AccessibleHitCollector {
+  private final FixedBitSet bits;
+  // bits of a sub-collector, or null
+  private final SliceBits slice;
+  private int count = -1;
+  // last hit found, to continue from
+  private int lastPos = -1;
+  private int lastDoc = -1;
+
+  /**
+   * @param maxDoc number of documents of the searched reader
+   */
+  public BitSetHitCollector(int maxDoc) {
+    this(new FixedBitSet(maxDoc));
+  }
+
+  public BitSetHitCollector(FixedBitSet bits) {
+    this.bits = bits;
+    this.slice = null;
+    this.outOfOrder = true;
+    this.shouldScore = false;
+  }
+
+  private BitSetHitCollector(SliceBits slice) {
+    this.bits = null;
+    this.slice = slice;
+    this.outOfOrder = true;
+    this.shouldScore = false;
+  }
+
+  /**
+   * Hits of a slice of consecutive leaves in a {@link ConcurrentSearch}.
+   * Bits cover the documents from the first leaf of the slice, rounded
+   * down to a whole word, so that they can be OR'ed word by word into the
+   * bitset of the whole index.
+   */
+  static class SliceBits {
+    private int offset = -1;
+    private long[] words = new long[0];
+
+    void setNextReader(AtomicReaderContext context) {
+      if (offset == -1) {
+        offset = context.docBase & ~63;
+      }
+      int numWords = FixedBitSet.bits2words(context.docBase + context.reader().maxDoc() - offset);
+      if (numWords > words.length) {
+        words = Arrays.copyOf(words, Math.max(numWords, words.length * 2));
+      }
+    }
+
+    void set(int doc) {
+      int i = doc - offset;
+      words[i >> 6] |= 1L << i;
+    }
+
+    /**
+     * Add the hits of the slice to a bitset of the whole index.
+     */
+    void orInto(FixedBitSet bits) {
+      if (offset == -1) {
+        return;
+      }
+      long[] dest = bits.getBits();
+      int start = offset >> 6;
+      int end = Math.min(words.length, dest.length - start);
+      for (int i = 0; i < end; i++) {
+        dest[start + i] |= words[i];
+      }
+    }
+
+    void clear() {
+      offset = -1;
+      words = new long[0];
+    }
+  }
+
+  public FixedBitSet getBits() {
+    return bits;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    if (slice != null) {
+      slice.set(docBase + doc);
+    } else {
+      bits.set(docBase + doc);
+    }
+    count = -1;
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    this.docBase = context.docBase;
+    if (slice != null) {
+      slice.setNextReader(context);
+    }
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException {
+    this.scorer = scorer;
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return true;
+  }
+
+  @Override
+  public int getTotalHits() {
+    if (count == -1) {
+      count = bits.cardinality();
+    }
+    return count;
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    if (pos == lastPos) {
+      return lastDoc;
+    }
+    if (pos < lastPos) {
+      // pages are read forward, so start over only when going back
+      lastPos = -1;
+      lastDoc = -1;
+    }
+    while (lastPos < pos) {
+      int doc = lastDoc + 1 < bits.length() ? bits.nextSetBit(lastDoc + 1) : -1;
+      if (doc == -1 || doc == DocIdSetIterator.NO_MORE_DOCS) {
+        throw new IndexOutOfBoundsException("No hit at " + pos);
+      }
+      lastDoc = doc;
+      lastPos++;
+    }
+    return lastDoc;
+  }
+
+  @Override
+  public float getScore(int pos) {
+    return 1.0f;
+  }
+
+  /**
+   * Sub-collectors keep only the bits of their slice of leaves.
+   */
+  @Override
+  public AccessibleHitCollector newSubCollector() {
+    return bits != null ? new BitSetHitCollector(new SliceBits()) : null;
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    reset();
+    for (AccessibleHitCollector sub : subs) {
+      ((BitSetHitCollector)sub).slice.orInto(bits);
+    }
+  }
+
+  @Override
+  public void reset() {
+    if (slice != null) {
+      slice.clear();
+    } else {
+      bits.clear(0, bits.length());
+    }
+    count = -1;
+    lastPos = -1;
+    lastDoc = -1;
+  }
+}
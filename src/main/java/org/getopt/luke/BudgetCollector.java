@@ -0,0 +1,291 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Collects top hits within a budget of search time, number of hits and
+ * memory, whichever runs out first. Memory is counted as the bytes allocated
+ * by the searching thread, see {@link Util#getAllocatedBytes()}. The budget
+ * is checked at the start of each segment, and every few hits.
+ * <p>Documents are collected in order, so that when the budget runs out all
+ * documents up to the last one taken were searched. The search can then be
+ * resumed from there with a new budget, and the hits are added to those
+ * collected so far.</p>
+ */
+public class BudgetCollector extends LimitedHitCollector {
+  // check time and memory every that many hits
+  private static final int CHECK_MASK = 63;
+
+  private final int size;
+  private final long maxTime;
+  private final int maxCount;
+  private final long maxBytes;
+  private TopDocsCollector<?> tdc;
+  private TopDocs topDocs = null;
+  // merged hits of previous runs
+  private TopDocs previous = null;
+  private boolean started;
+  private long startNanos;
+  private long startBytes;
+  private int runHits;
+  private int exceeded = TYPE_TIME;
+
+  /**
+   * Position where a search stopped: the leaf, and the last document of
+   * that leaf that was searched.
+   */
+  public static class ResumeToken {
+    public final int leaf;
+    /** Last searched document in the leaf, or -1 if none was. */
+    public final int lastDoc;
+
+    public ResumeToken(int leaf, int lastDoc) {
+      this.leaf = leaf;
+      this.lastDoc = lastDoc;
+    }
+
+    /**
+     * @param e exception that stopped the search
+     * @return position to resume from, or null if all documents were searched
+     */
+    public static ResumeToken create(IndexReader reader, LimitedException e) {
+      int next = e.getLastDoc() + 1;
+      if (next >= reader.maxDoc()) {
+        return null;
+      }
+      List<AtomicReaderContext> leaves = reader.leaves();
+      int leaf = ReaderUtil.subIndex(next, leaves);
+      return new ResumeToken(leaf, e.getLastDoc() - leaves.get(leaf).docBase);
+    }
+
+    public String toString() {
+      return "leaf " + leaf + ", doc " + lastDoc;
+    }
+  }
+
+  /**
+   * @param size number of top hits
+   * @param sort sort order, or null to rank hits by score
+   * @param maxTime search time limit in ms, or 0 if unlimited
+   * @param maxCount limit of hits, or 0 if unlimited
+   * @param maxBytes memory limit in bytes, or 0 if unlimited
+   * @param shouldScore compute scores
+   */
+  public BudgetCollector(int size, Sort sort, long maxTime, int maxCount,
+      long maxBytes, boolean shouldScore) {
+    this.size = size;
+    this.sort = sort;
+    this.maxTime = maxTime;
+    this.maxCount = maxCount;
+    this.maxBytes = maxBytes;
+    this.shouldScore = shouldScore;
+    this.outOfOrder = false;
+    reset();
+  }
+
+  @Override
+  public int limitType() {
+    return exceeded;
+  }
+
+  @Override
+  public long limitSize() {
+    switch (exceeded) {
+    case TYPE_SIZE:
+      return maxCount;
+    case TYPE_MEMORY:
+      return maxBytes;
+    default:
+      return maxTime;
+    }
+  }
+
+  private void start() {
+    started = true;
+    runHits = 0;
+    startNanos = System.nanoTime();
+    startBytes = Util.getAllocatedBytes();
+  }
+
+  /**
+   * Stop if time or memory ran out.
+   * @param doc next document, not searched yet
+   */
+  private void checkBudget(int doc) {
+    if (maxTime > 0) {
+      long elapsed = (System.nanoTime() - startNanos) / 1000000;
+      if (elapsed >= maxTime) {
+        stop(TYPE_TIME, maxTime, elapsed, doc);
+      }
+    }
+    if (maxBytes > 0) {
+      long bytes = Util.getAllocatedBytes() - startBytes;
+      if (bytes >= maxBytes) {
+        stop(TYPE_MEMORY, maxBytes, bytes, doc);
+      }
+    }
+  }
+
+  private void stop(int type, long limit, long current, int doc) {
+    exceeded = type;
+    throw new LimitedException(type, limit, current, docBase + doc - 1);
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    // each run takes at least one hit, so that it makes progress
+    if (runHits > 0) {
+      if (maxCount > 0 && runHits >= maxCount) {
+        stop(TYPE_SIZE, maxCount, runHits, doc);
+      }
+      if ((runHits & CHECK_MASK) == 0) {
+        checkBudget(doc);
+      }
+    }
+    runHits++;
+    tdc.collect(doc);
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    this.docBase = context.docBase;
+    if (!started) {
+      start();
+    } else {
+      checkBudget(0);
+    }
+    tdc.setNextReader(context);
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException {
+    this.scorer = scorer;
+    if (shouldScore) {
+      tdc.setScorer(scorer);
+    } else {
+      tdc.setScorer(NoScoringScorer.INSTANCE);
+    }
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return false;
+  }
+
+  /**
+   * Continue a search that ran out of budget, with a new budget.
+   * @param is searcher of the first search
+   * @param q query of the first search
+   * @param token position where the search stopped
+   * @throws LimitedException if the budget ran out again
+   */
+  public void resume(IndexSearcher is, Query q, ResumeToken token) throws IOException {
+    resume(is, q, token, this);
+  }
+
+  /**
+   * Continue a search that ran out of budget, through a collector that
+   * wraps this one.
+   * @param c this collector, or a collector that passes hits to it
+   */
+  public void resume(IndexSearcher is, Query q, ResumeToken token, Collector c) throws IOException {
+    previous = getTopDocs();
+    topDocs = null;
+    tdc = newTopCollector();
+    started = false;
+    Weight w = is.createNormalizedWeight(q);
+    List<AtomicReaderContext> leaves = is.getIndexReader().leaves();
+    for (int i = token.leaf; i < leaves.size(); i++) {
+      AtomicReaderContext ctx = leaves.get(i);
+      c.setNextReader(ctx);
+      // not a top scorer, so that it can skip to the resume position
+      Scorer s = w.scorer(ctx, true, false, ctx.reader().getLiveDocs());
+      if (s == null) {
+        continue;
+      }
+      c.setScorer(s);
+      int doc = i == token.leaf && token.lastDoc >= 0 ? s.advance(token.lastDoc + 1) : s.nextDoc();
+      while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+        c.collect(doc);
+        doc = s.nextDoc();
+      }
+    }
+  }
+
+  /**
+   * @return top hits of all runs so far
+   */
+  public TopDocs getTopDocs() {
+    if (topDocs == null) {
+      topDocs = tdc.topDocs();
+      if (previous != null) {
+        try {
+          topDocs = mergeTopDocs(sort, size, new TopDocs[] {previous, topDocs});
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+    return topDocs;
+  }
+
+  @Override
+  public int getTotalHits() {
+    if (topDocs != null) {
+      return topDocs.totalHits;
+    }
+    return (previous != null ? previous.totalHits : 0) + tdc.getTotalHits();
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    return getTopDocs().scoreDocs[pos].doc;
+  }
+
+  @Override
+  public float getScore(int pos) {
+    return getTopDocs().scoreDocs[pos].score;
+  }
+
+  /**
+   * Replace the hits with the top hits of other budget collectors. There
+   * are no sub-collectors, as budgeted searches run in order to be resumed.
+   */
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    TopDocs[] slices = new TopDocs[subs.size()];
+    for (int i = 0; i < slices.length; i++) {
+      slices[i] = ((BudgetCollector)subs.get(i)).getTopDocs();
+    }
+    reset();
+    topDocs = mergeTopDocs(sort, size, slices);
+  }
+
+  private TopDocsCollector<?> newTopCollector() {
+    // documents are always collected in order
+    return createTopCollector(size, sort, true, shouldScore);
+  }
+
+  @Override
+  public void reset() {
+    tdc = newTopCollector();
+    topDocs = null;
+    previous = null;
+    started = false;
+    exceeded = TYPE_TIME;
+  }
+}
@@ -0,0 +1,793 @@
+package org.getopt.luke;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Columnar export of stored fields, for loading into analytics tools.
+ * Each field is written to its own file, with the values of all exported
+ * documents in the same row order. An extra column, <code>_docid</code>,
+ * holds the document numbers, and <code>columns.properties</code> lists
+ * the columns and their files.
+ * <p>A column file starts with the magic bytes <code>LCOL</code>, the
+ * format version (VInt), the compression (byte, 0 = none, 1 = zlib) and
+ * the field name (VInt length and UTF-8 bytes), followed by blocks of up to
+ * {@link #BLOCK_SIZE} rows. A block starts with the number of rows, the raw
+ * and the stored length of its data (three ints), and the data is:
+ * <ul>
+ * <li>encoding (byte): {@link #PLAIN}, {@link #DICTIONARY}, {@link #NUMERIC}
+ * or {@link #BINARY}</li>
+ * <li>minimum and maximum number of values per row (VInt), and, if they
+ * differ, the number of values of each row minus the minimum as packed
+ * ints</li>
+ * <li>{@link #PLAIN} and {@link #BINARY}: all values as VInt length and
+ * bytes</li>
+ * <li>{@link #DICTIONARY}: number of distinct values (VInt), the distinct
+ * values as VInt length and bytes, and the ordinal of each value as packed
+ * ints</li>
+ * <li>{@link #NUMERIC}: value type (byte: I, L, F or D), the minimum (long)
+ * and the number of bits per value (VInt), then each value minus the
+ * minimum as packed ints. Float and double values are stored as their raw
+ * bits.</li>
+ * </ul>
+ * Packed ints use the {@link PackedInts.Format#PACKED} format, without a
+ * header. Blocks of text use a dictionary when they contain at most half
+ * as many distinct values as values, so low-cardinality fields are
+ * dictionary encoded throughout.</p>
+ * <p>Blocks are encoded and compressed in parallel, each from a range of
+ * documents of one segment, and written in the order of document
+ * numbers. {@link ColumnReader} reads the column files back.</p>
+ */
+public class ColumnarExporter extends Observable implements Abortable {
+  public static final int VERSION = 1;
+  /** Maximum number of rows of a block. */
+  public static final int BLOCK_SIZE = 4096;
+  public static final int MAX_DICTIONARY_SIZE = 1 << 16;
+  public static final String DOCID_COLUMN = "_docid";
+  public static final String EXTENSION = ".col";
+  public static final String META_FILE = "columns.properties";
+
+  public static final byte PLAIN = 0;
+  public static final byte DICTIONARY = 1;
+  public static final byte NUMERIC = 2;
+  public static final byte BINARY = 3;
+
+  private static final byte[] MAGIC = {'L', 'C', 'O', 'L'};
+
+  private IndexReader indexReader;
+  private List<String> fieldNames;
+  private Set<String> includeFields = null;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int level = Deflater.BEST_SPEED;
+  private volatile boolean abort = false;
+  private ProgressNotification pn = new ProgressNotification();
+
+  public ColumnarExporter(IndexReader indexReader) throws IOException {
+    this.indexReader = indexReader;
+    setFields(null, null);
+  }
+
+  /**
+   * Export only selected fields.
+   * @param include names of fields to export, or null for all fields
+   * @param exclude names of fields not to export, or null
+   */
+  public void setFields(Collection<String> include, Collection<String> exclude) throws IOException {
+    fieldNames = new ArrayList<String>();
+    fieldNames.addAll(Util.fieldNames(indexReader, false));
+    if (include != null) {
+      fieldNames.retainAll(include);
+    }
+    if (exclude != null) {
+      fieldNames.removeAll(exclude);
+    }
+    Collections.sort(fieldNames);
+    if (include != null || exclude != null) {
+      includeFields = new HashSet<String>(fieldNames);
+    } else {
+      includeFields = null;
+    }
+  }
+
+  /**
+   * @param threads number of threads that encode and compress blocks
+   */
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * @param level zlib compression level of blocks, 0 to write them
+   * uncompressed
+   */
+  public void setCompressionLevel(int level) {
+    this.level = level;
+  }
+
+  public void abort() {
+    abort = true;
+  }
+
+  public boolean isAborted() {
+    return abort;
+  }
+
+  /**
+   * Column being written.
+   */
+  private static class Column {
+    String field;
+    String file;
+    OutputStream out;
+    DataOutput dout;
+    long values;
+    long bytes;
+  }
+
+  /**
+   * Encoded blocks of all columns for a range of documents.
+   */
+  private static class Chunk {
+    int from, to;
+    int rows;
+    byte[][] blocks;
+    int[] rawLengths;
+    long[] values;
+  }
+
+  /**
+   * Export to a directory.
+   * @param output output directory, created if needed. Existing column
+   * files are overwritten.
+   * @param ranges if non-null then export only these ranges of documents
+   * @return number of exported documents
+   * @throws Exception
+   */
+  public int export(File output, final Ranges ranges) throws Exception {
+    if (!output.isDirectory() && !output.mkdirs()) {
+      throw new IOException("Can't create output directory " + output);
+    }
+    ArrayList<Column> columns = new ArrayList<Column>();
+    HashSet<String> files = new HashSet<String>();
+    ArrayList<String> names = new ArrayList<String>();
+    names.add(DOCID_COLUMN);
+    names.addAll(fieldNames);
+    int rows = 0;
+    ExecutorService exec = Executors.newFixedThreadPool(threads);
+    LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+    boolean ok = false;
+    try {
+      for (String name : names) {
+        Column c = new Column();
+        c.field = name;
+        c.file = fileName(name, files);
+        c.out = new BufferedOutputStream(new FileOutputStream(new File(output, c.file)), 1 << 16);
+        c.dout = new OutputStreamDataOutput(c.out);
+        c.dout.writeBytes(MAGIC, MAGIC.length);
+        c.dout.writeVInt(VERSION);
+        c.dout.writeByte((byte)(level > 0 ? 1 : 0));
+        c.dout.writeString(name);
+        columns.add(c);
+      }
+      pn.message = "Export running ...";
+      pn.minValue = 0;
+      pn.maxValue = indexReader.maxDoc();
+      pn.curValue = 0;
+      publish(pn);
+      leaves:
+      for (final AtomicReaderContext ctx : indexReader.leaves()) {
+        int end = ctx.docBase + ctx.reader().maxDoc();
+        for (int start = ctx.docBase; start < end; start += BLOCK_SIZE) {
+          if (abort) {
+            break leaves;
+          }
+          final int from = start;
+          final int to = Math.min(end, start + BLOCK_SIZE);
+          if (ranges != null) {
+            int next = ranges.nextSetBit(from);
+            if (next == -1 || next >= to) {
+              continue;
+            }
+          }
+          pending.add(exec.submit(new Callable<Chunk>() {
+            public Chunk call() throws Exception {
+              return encodeChunk(ctx, from, to, ranges);
+            }
+          }));
+          if (pending.size() >= threads * 2) {
+            rows += write(columns, Util.getResult(pending.removeFirst()));
+          }
+        }
+      }
+      while (!pending.isEmpty() && !abort) {
+        rows += write(columns, Util.getResult(pending.removeFirst()));
+      }
+      ok = !abort;
+    } finally {
+      for (Future<Chunk> f : pending) {
+        f.cancel(true);
+      }
+      exec.shutdownNow();
+      for (Column c : columns) {
+        c.out.close();
+      }
+    }
+    if (ok) {
+      writeMeta(output, columns, rows);
+    }
+    pn.message = abort ? "User requested abort." : "Finished.";
+    pn.aborted = abort;
+    pn.curValue = pn.maxValue;
+    publish(pn);
+    return rows;
+  }
+
+  private int write(List<Column> columns, Chunk chunk) throws IOException {
+    for (int i = 0; i < columns.size(); i++) {
+      Column c = columns.get(i);
+      c.dout.writeInt(chunk.rows);
+      c.dout.writeInt(chunk.rawLengths[i]);
+      c.dout.writeInt(chunk.blocks[i].length);
+      c.dout.writeBytes(chunk.blocks[i], chunk.blocks[i].length);
+      c.values += chunk.values[i];
+      c.bytes += chunk.blocks[i].length + 12;
+    }
+    pn.curValue = chunk.to;
+    publish(pn);
+    return chunk.rows;
+  }
+
+  private void writeMeta(File output, List<Column> columns, int rows) throws IOException {
+    Properties meta = new Properties();
+    meta.setProperty("version", String.valueOf(VERSION));
+    meta.setProperty("rows", String.valueOf(rows));
+    meta.setProperty("compression", level > 0 ? "zlib" : "none");
+    int n = 0;
+    for (Column c : columns) {
+      if (c.values == 0) {
+        // field has no stored values
+        new File(output, c.file).delete();
+        continue;
+      }
+      meta.setProperty("column." + n + ".field", c.field);
+      meta.setProperty("column." + n + ".file", c.file);
+      meta.setProperty("column." + n + ".values", String.valueOf(c.values));
+      meta.setProperty("column." + n + ".bytes", String.valueOf(c.bytes));
+      n++;
+    }
+    meta.setProperty("columns", String.valueOf(n));
+    OutputStream os = new FileOutputStream(new File(output, META_FILE));
+    try {
+      meta.store(os, "Columnar export of stored fields");
+    } finally {
+      os.close();
+    }
+  }
+
+  private static String fileName(String field, Set<String> used) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+          c == '_' || c == '-' || (c == '.' && i > 0)) {
+        sb.append(c);
+      } else {
+        sb.append('_');
+      }
+    }
+    String base = sb.toString();
+    String name = base;
+    // case-insensitive file systems
+    for (int i = 1; !used.add(name.toLowerCase()); i++) {
+      name = base + "-" + i;
+    }
+    return name + EXTENSION;
+  }
+
+  private Chunk encodeChunk(AtomicReaderContext ctx, int from, int to, Ranges ranges) throws Exception {
+    AtomicReader leaf = ctx.reader();
+    Bits live = leaf.getLiveDocs();
+    int n = to - from;
+    int[] docIds = new int[n];
+    Document[] docs = new Document[n];
+    int rows = 0;
+    for (int docNum = from; docNum < to; docNum++) {
+      if (abort) {
+        throw new InterruptedException();
+      }
+      int doc = docNum - ctx.docBase;
+      if (live != null && !live.get(doc)) {
+        continue;
+      }
+      if (ranges != null && !ranges.get(docNum)) {
+        continue;
+      }
+      DocumentStoredFieldVisitor visitor = includeFields != null ?
+          new DocumentStoredFieldVisitor(includeFields) : new DocumentStoredFieldVisitor();
+      leaf.document(doc, visitor);
+      docIds[rows] = docNum;
+      docs[rows++] = visitor.getDocument();
+    }
+    Chunk chunk = new Chunk();
+    chunk.from = from;
+    chunk.to = to;
+    chunk.rows = rows;
+    int numColumns = fieldNames.size() + 1;
+    chunk.blocks = new byte[numColumns][];
+    chunk.rawLengths = new int[numColumns];
+    chunk.values = new long[numColumns];
+    BlockEncoder enc = new BlockEncoder(level);
+    int[] counts = new int[rows];
+    Arrays.fill(counts, 1);
+    long[] ids = new long[rows];
+    for (int i = 0; i < rows; i++) {
+      ids[i] = docIds[i];
+    }
+    enc.encodeNumeric(counts, 'I', ids, rows);
+    enc.finish(chunk, 0, rows);
+    for (int c = 1; c < numColumns; c++) {
+      String field = fieldNames.get(c - 1);
+      ArrayList<IndexableField> values = new ArrayList<IndexableField>();
+      for (int i = 0; i < rows; i++) {
+        IndexableField[] fields = docs[i].getFields(field);
+        counts[i] = fields.length;
+        values.addAll(Arrays.asList(fields));
+      }
+      enc.encode(counts, values);
+      enc.finish(chunk, c, values.size());
+    }
+    return chunk;
+  }
+
+  /**
+   * Encodes and compresses blocks of one chunk.
+   */
+  private static class BlockEncoder {
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    DataOutput out = new OutputStreamDataOutput(raw);
+    Deflater deflater;
+    byte[] buf = new byte[1 << 16];
+
+    BlockEncoder(int level) {
+      if (level > 0) {
+        deflater = new Deflater(level);
+      }
+    }
+
+    void encode(int[] counts, List<IndexableField> values) throws IOException {
+      char numType = numericType(values);
+      if (numType != 0) {
+        long[] bits = new long[values.size()];
+        for (int i = 0; i < bits.length; i++) {
+          Number num = values.get(i).numericValue();
+          if (numType == 'F') {
+            bits[i] = Float.floatToIntBits(num.floatValue());
+          } else if (numType == 'D') {
+            bits[i] = Double.doubleToLongBits(num.doubleValue());
+          } else {
+            bits[i] = num.longValue();
+          }
+        }
+        encodeNumeric(counts, numType, bits, bits.length);
+        return;
+      }
+      boolean binary = !values.isEmpty();
+      for (IndexableField f : values) {
+        if (f.binaryValue() == null) {
+          binary = false;
+          break;
+        }
+      }
+      BytesRef[] bytes = new BytesRef[values.size()];
+      for (int i = 0; i < bytes.length; i++) {
+        IndexableField f = values.get(i);
+        if (binary) {
+          bytes[i] = f.binaryValue();
+        } else if (f.stringValue() != null) {
+          bytes[i] = new BytesRef(f.stringValue());
+        } else {
+          bytes[i] = new BytesRef(Util.bytesToHex(f.binaryValue(), false));
+        }
+      }
+      if (binary) {
+        out.writeByte(BINARY);
+        writeCounts(counts);
+        writeValues(bytes, bytes.length);
+        return;
+      }
+      HashMap<BytesRef,Integer> dict = new HashMap<BytesRef,Integer>();
+      BytesRef[] distinct = new BytesRef[bytes.length];
+      int[] ords = new int[bytes.length];
+      for (int i = 0; i < bytes.length; i++) {
+        Integer ord = dict.get(bytes[i]);
+        if (ord == null) {
+          if (dict.size() > bytes.length / 2 || dict.size() == MAX_DICTIONARY_SIZE) {
+            dict = null;
+            break;
+          }
+          ord = Integer.valueOf(dict.size());
+          distinct[ord] = bytes[i];
+          dict.put(bytes[i], ord);
+        }
+        ords[i] = ord.intValue();
+      }
+      if (dict == null || dict.isEmpty()) {
+        out.writeByte(PLAIN);
+        writeCounts(counts);
+        writeValues(bytes, bytes.length);
+        return;
+      }
+      out.writeByte(DICTIONARY);
+      writeCounts(counts);
+      out.writeVInt(dict.size());
+      writeValues(distinct, dict.size());
+      int bpv = PackedInts.bitsRequired(Math.max(0, dict.size() - 1));
+      PackedInts.Writer w = PackedInts.getWriterNoHeader(out, PackedInts.Format.PACKED,
+          ords.length, bpv, PackedInts.DEFAULT_BUFFER_SIZE);
+      for (int ord : ords) {
+        w.add(ord);
+      }
+      w.finish();
+    }
+
+    void encodeNumeric(int[] counts, char type, long[] values, int n) throws IOException {
+      out.writeByte(NUMERIC);
+      writeCounts(counts);
+      out.writeByte((byte)type);
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (int i = 0; i < n; i++) {
+        min = Math.min(min, values[i]);
+        max = Math.max(max, values[i]);
+      }
+      if (n == 0) {
+        min = max = 0;
+      }
+      int bpv = max - min < 0 ? 64 : PackedInts.bitsRequired(max - min);
+      out.writeLong(min);
+      out.writeVInt(bpv);
+      if (n > 0) {
+        PackedInts.Writer w = PackedInts.getWriterNoHeader(out, PackedInts.Format.PACKED,
+            n, bpv, PackedInts.DEFAULT_BUFFER_SIZE);
+        for (int i = 0; i < n; i++) {
+          w.add(values[i] - min);
+        }
+        w.finish();
+      }
+    }
+
+    private void writeCounts(int[] counts) throws IOException {
+      int min = Integer.MAX_VALUE;
+      int max = 0;
+      for (int c : counts) {
+        min = Math.min(min, c);
+        max = Math.max(max, c);
+      }
+      if (counts.length == 0) {
+        min = 0;
+      }
+      out.writeVInt(min);
+      out.writeVInt(max);
+      if (min != max) {
+        PackedInts.Writer w = PackedInts.getWriterNoHeader(out, PackedInts.Format.PACKED,
+            counts.length, PackedInts.bitsRequired(max - min), PackedInts.DEFAULT_BUFFER_SIZE);
+        for (int c : counts) {
+          w.add(c - min);
+        }
+        w.finish();
+      }
+    }
+
+    private void writeValues(BytesRef[] values, int n) throws IOException {
+      for (int i = 0; i < n; i++) {
+        out.writeVInt(values[i].length);
+        out.writeBytes(values[i].bytes, values[i].offset, values[i].length);
+      }
+    }
+
+    void finish(Chunk chunk, int column, long numValues) {
+      byte[] data = raw.toByteArray();
+      raw.reset();
+      chunk.rawLengths[column] = data.length;
+      chunk.values[column] = numValues;
+      if (deflater == null) {
+        chunk.blocks[column] = data;
+        return;
+      }
+      deflater.reset();
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 16);
+      while (!deflater.finished()) {
+        int len = deflater.deflate(buf);
+        compressed.write(buf, 0, len);
+      }
+      chunk.blocks[column] = compressed.toByteArray();
+    }
+
+    /**
+     * @return type of numeric values, or 0 if some values are not numeric
+     */
+    private static char numericType(List<IndexableField> values) {
+      char type = 0;
+      for (IndexableField f : values) {
+        Number num = f.numericValue();
+        char t;
+        if (num instanceof Integer || num instanceof Short || num instanceof Byte) {
+          t = 'I';
+        } else if (num instanceof Long) {
+          t = 'L';
+        } else if (num instanceof Float) {
+          t = 'F';
+        } else if (num instanceof Double) {
+          t = 'D';
+        } else {
+          return 0;
+        }
+        if (type != 0 && type != t) {
+          return 0;
+        }
+        type = t;
+      }
+      return type;
+    }
+  }
+
+  /**
+   * Reads a column file block by block.
+   */
+  public static class ColumnReader implements Closeable {
+    private InputStream in;
+    private InputStreamDataInput din;
+    private boolean compressed;
+    private String field;
+    private Inflater inflater = new Inflater();
+    private byte[] buf = new byte[0];
+    private byte[] data = new byte[0];
+    private ByteArrayDataInput block = new ByteArrayDataInput();
+
+    // current block
+    private int rows;
+    private int[] start;
+    private byte encoding;
+    private char numType;
+    private long min;
+    private PackedInts.Reader packed;
+    private BytesRef[] values;
+
+    public ColumnReader(File file) throws IOException {
+      in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+      din = new InputStreamDataInput(in);
+      byte[] magic = new byte[MAGIC.length];
+      din.readBytes(magic, 0, magic.length);
+      if (!Arrays.equals(magic, MAGIC)) {
+        in.close();
+        throw new IOException("Not a column file: " + file);
+      }
+      int version = din.readVInt();
+      if (version != VERSION) {
+        in.close();
+        throw new IOException("Unsupported version " + version + " of column file " + file);
+      }
+      compressed = din.readByte() == 1;
+      field = din.readString();
+    }
+
+    public String getField() {
+      return field;
+    }
+
+    /**
+     * Read the next block.
+     * @return false at the end of the file
+     */
+    public boolean next() throws IOException {
+      int r = in.read();
+      if (r == -1) {
+        return false;
+      }
+      rows = (r << 24) | ((din.readByte() & 0xff) << 16) | ((din.readByte() & 0xff) << 8) | (din.readByte() & 0xff);
+      int rawLength = din.readInt();
+      int length = din.readInt();
+      if (data.length < rawLength) {
+        data = new byte[rawLength];
+      }
+      if (compressed) {
+        if (buf.length < length) {
+          buf = new byte[length];
+        }
+        din.readBytes(buf, 0, length);
+        inflater.reset();
+        inflater.setInput(buf, 0, length);
+        try {
+          if (inflater.inflate(data, 0, rawLength) != rawLength) {
+            throw new IOException("Truncated block in column " + field);
+          }
+        } catch (DataFormatException e) {
+          throw new IOException(e);
+        }
+      } else {
+        din.readBytes(data, 0, rawLength);
+      }
+      block.reset(data, 0, rawLength);
+      decode();
+      return true;
+    }
+
+    private void decode() throws IOException {
+      encoding = block.readByte();
+      int minCount = block.readVInt();
+      int maxCount = block.readVInt();
+      start = new int[rows + 1];
+      if (minCount == maxCount) {
+        for (int i = 0; i <= rows; i++) {
+          start[i] = i * minCount;
+        }
+      } else {
+        PackedInts.Reader counts = PackedInts.getReaderNoHeader(block, PackedInts.Format.PACKED,
+            PackedInts.VERSION_CURRENT, rows, PackedInts.bitsRequired(maxCount - minCount));
+        for (int i = 0; i < rows; i++) {
+          start[i + 1] = start[i] + minCount + (int)counts.get(i);
+        }
+      }
+      int n = start[rows];
+      packed = null;
+      values = null;
+      switch (encoding) {
+      case PLAIN:
+      case BINARY:
+        values = readValues(n);
+        break;
+      case DICTIONARY:
+        int size = block.readVInt();
+        values = readValues(size);
+        packed = PackedInts.getReaderNoHeader(block, PackedInts.Format.PACKED,
+            PackedInts.VERSION_CURRENT, n, PackedInts.bitsRequired(Math.max(0, size - 1)));
+        break;
+      case NUMERIC:
+        numType = (char)block.readByte();
+        min = block.readLong();
+        int bpv = block.readVInt();
+        if (n > 0) {
+          packed = PackedInts.getReaderNoHeader(block, PackedInts.Format.PACKED,
+              PackedInts.VERSION_CURRENT, n, bpv);
+        }
+        break;
+      default:
+        throw new IOException("Unknown encoding " + encoding + " in column " + field);
+      }
+    }
+
+    private BytesRef[] readValues(int n) {
+      BytesRef[] res = new BytesRef[n];
+      for (int i = 0; i < n; i++) {
+        int len = block.readVInt();
+        res[i] = new BytesRef(data, block.getPosition(), len);
+        block.skipBytes(len);
+      }
+      return res;
+    }
+
+    /**
+     * @return number of rows of the current block
+     */
+    public int rows() {
+      return rows;
+    }
+
+    /**
+     * @return number of values of a row of the current block
+     */
+    public int count(int row) {
+      return start[row + 1] - start[row];
+    }
+
+    /**
+     * Value of a row of the current block.
+     * @return a String, a byte[] for binary values, or an Integer, Long,
+     * Float or Double for numeric values
+     */
+    public Object value(int row, int i) {
+      int idx = start[row] + i;
+      switch (encoding) {
+      case NUMERIC:
+        long v = packed.get(idx) + min;
+        switch (numType) {
+        case 'I':
+          return Integer.valueOf((int)v);
+        case 'L':
+          return Long.valueOf(v);
+        case 'F':
+          return Float.valueOf(Float.intBitsToFloat((int)v));
+        default:
+          return Double.valueOf(Double.longBitsToDouble(v));
+        }
+      case DICTIONARY:
+        return values[(int)packed.get(idx)].utf8ToString();
+      case BINARY:
+        BytesRef b = values[idx];
+        byte[] res = new byte[b.length];
+        System.arraycopy(b.bytes, b.offset, res, 0, b.length);
+        return res;
+      default:
+        return values[idx].utf8ToString();
+      }
+    }
+
+    public void close() throws IOException {
+      inflater.end();
+      in.close();
+    }
+  }
+
+  private synchronized void publish(Object arg) {
+    setChanged();
+    notifyObservers(arg);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: ColumnarExporter <indexPath> <outputDir> [-threads N] [-level N] [-fields f1,f2,..] [-exclude f1,f2,..] [-range ..expr..]");
+      System.err.println("\tindexPath\tname of the directory containing the index");
+      System.err.println("\toutputDir\tdirectory of the column files");
+      System.err.println("\tthreads\tnumber of threads that encode and compress blocks (default: number of CPUs)");
+      System.err.println("\tlevel\tzlib compression level, 0 for uncompressed blocks (default: 1)");
+      System.err.println("\tfields\texport only these fields");
+      System.err.println("\texclude\tdon't export these fields");
+      System.err.println("\trange\tspecify ranges of documents to export. Expressions cannot contain whitespace!");
+      System.err.println("\t\tExample: 0-5,15,32-100,101,103,105-500");
+      System.exit(-1);
+    }
+    Directory dir = FSDirectory.open(new File(args[0]));
+    if (!DirectoryReader.indexExists(dir)) {
+      throw new Exception("There is no valid Lucene index here: '" + args[0] + "'");
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    int level = Deflater.BEST_SPEED;
+    List<String> include = null;
+    List<String> exclude = null;
+    Ranges ranges = null;
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-level")) {
+        level = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-fields")) {
+        include = Arrays.asList(args[++i].split(","));
+      } else if (args[i].equals("-exclude")) {
+        exclude = Arrays.asList(args[++i].split(","));
+      } else if (args[i].equals("-range")) {
+        ranges = Ranges.parse(args[++i]);
+      } else {
+        throw new Exception("Unknown argument: '" + args[i] + "'");
+      }
+    }
+    DirectoryReader reader = DirectoryReader.open(dir);
+    ColumnarExporter exporter = new ColumnarExporter(reader);
+    exporter.setThreads(threads);
+    exporter.setCompressionLevel(level);
+    exporter.setFields(include, exclude);
+    long start = System.currentTimeMillis();
+    int rows = exporter.export(new File(args[1]), ranges);
+    long delta = System.currentTimeMillis() - start;
+    System.err.println("Exported " + rows + " documents in " + delta + " ms");
+    reader.close();
+  }
+}
@@ -0,0 +1,229 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Searches the leaves of an index concurrently. {@link IndexSearcher} only
+ * runs its TopDocs methods on an executor, and searches with a collector
+ * one leaf after another. Here the leaves are split into slices of
+ * consecutive leaves with about the same number of documents, two per
+ * thread. Each slice is collected by its own sub-collector from
+ * {@link AccessibleHitCollector#newSubCollector()}, and the results are
+ * merged in leaf order, so that they are the same as those of a sequential
+ * search. Collectors without sub-collectors are searched sequentially.
+ */
+public class ConcurrentSearch {
+  private final ExecutorService executor;
+  private final int threads;
+  private long wallNanos = 0;
+  private long leafNanos = 0;
+
+  /**
+   * @param executor executor that searches the slices
+   * @param threads number of threads of the executor
+   */
+  public ConcurrentSearch(ExecutorService executor, int threads) {
+    this.executor = executor;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Search and merge the hits into a collector.
+   * @throws LimitedException if the collector's limit was reached, after
+   * the hits collected so far were merged
+   */
+  public void search(IndexSearcher is, Query q, AccessibleHitCollector hc) throws IOException {
+    search(is, is.createNormalizedWeight(q), hc);
+  }
+
+  /**
+   * Search with a weight created before, and merge the hits into a collector.
+   * @param w normalized weight of the query, see
+   * {@link IndexSearcher#createNormalizedWeight(Query)}
+   * @throws LimitedException if the collector's limit was reached, after
+   * the hits collected so far were merged
+   */
+  public void search(IndexSearcher is, final Weight w, AccessibleHitCollector hc) throws IOException {
+    long start = System.nanoTime();
+    try {
+      if (hc.newSubCollector() == null) {
+        try {
+          searchLeaves(w, is.getIndexReader().leaves(), hc);
+        } finally {
+          addLeafTime(System.nanoTime() - start);
+        }
+        return;
+      }
+      List<List<AtomicReaderContext>> slices = slices(is.getIndexReader().leaves());
+      List<AccessibleHitCollector> subs = new ArrayList<AccessibleHitCollector>(slices.size());
+      List<Future<LimitedException>> results = new ArrayList<Future<LimitedException>>(slices.size());
+      for (final List<AtomicReaderContext> slice : slices) {
+        final AccessibleHitCollector sub = hc.newSubCollector();
+        subs.add(sub);
+        results.add(executor.submit(new Callable<LimitedException>() {
+          public LimitedException call() throws Exception {
+            long t = System.nanoTime();
+            try {
+              searchLeaves(w, slice, sub);
+              return null;
+            } catch (LimitedException e) {
+              return e;
+            } finally {
+              addLeafTime(System.nanoTime() - t);
+            }
+          }
+        }));
+      }
+      LimitedException[] limits = new LimitedException[slices.size()];
+      for (int i = 0; i < results.size(); i++) {
+        limits[i] = get(results.get(i));
+      }
+      LimitedException le = null;
+      if (hc instanceof CountLimitedHitCollector) {
+        le = truncate((CountLimitedHitCollector)hc, w, slices, subs, limits);
+      } else {
+        // the limit hit first in leaf order
+        for (LimitedException e : limits) {
+          if (e != null) {
+            le = e;
+            break;
+          }
+        }
+      }
+      hc.merge(subs);
+      if (le != null) {
+        throw le;
+      }
+    } finally {
+      wallNanos += System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Split leaves into consecutive slices of about the same number of
+   * documents.
+   */
+  private List<List<AtomicReaderContext>> slices(List<AtomicReaderContext> leaves) {
+    long maxDoc = 0;
+    for (AtomicReaderContext ctx : leaves) {
+      maxDoc += ctx.reader().maxDoc();
+    }
+    long target = Math.max(1, maxDoc / (threads * 2));
+    List<List<AtomicReaderContext>> slices = new ArrayList<List<AtomicReaderContext>>();
+    List<AtomicReaderContext> slice = null;
+    long docs = 0;
+    for (AtomicReaderContext ctx : leaves) {
+      if (slice == null || docs >= target) {
+        slice = new ArrayList<AtomicReaderContext>();
+        slices.add(slice);
+        docs = 0;
+      }
+      slice.add(ctx);
+      docs += ctx.reader().maxDoc();
+    }
+    return slices;
+  }
+
+  /**
+   * Search leaves one after another, as {@link IndexSearcher} does.
+   */
+  static void searchLeaves(Weight w, List<AtomicReaderContext> leaves, AccessibleHitCollector c) throws IOException {
+    for (AtomicReaderContext ctx : leaves) {
+      c.setNextReader(ctx);
+      Scorer scorer = w.scorer(ctx, !c.acceptsDocsOutOfOrder(), true, ctx.reader().getLiveDocs());
+      if (scorer != null) {
+        scorer.score(c);
+      }
+    }
+  }
+
+  /**
+   * A sequential search stops at the first hits up to the limit, in leaf
+   * order, while here each slice collected up to the limit. Keep the slices
+   * before the one where the total exceeds the limit, search that slice
+   * again for the remaining hits, and drop the following slices.
+   */
+  private static LimitedException truncate(CountLimitedHitCollector hc, Weight w,
+      List<List<AtomicReaderContext>> slices, List<AccessibleHitCollector> subs,
+      LimitedException[] limits) throws IOException {
+    int limit = (int)hc.limitSize();
+    int total = 0;
+    int lastDoc = 0;
+    for (int i = 0; i < subs.size(); i++) {
+      CountLimitedHitCollector sub = (CountLimitedHitCollector)subs.get(i);
+      int count = sub.getTotalHits();
+      if (limits[i] == null && total + count <= limit) {
+        total += count;
+        if (count > 0) {
+          lastDoc = sub.getLastDoc();
+        }
+        continue;
+      }
+      subs.subList(i, subs.size()).clear();
+      int remaining = limit - total;
+      if (remaining > 0) {
+        sub = (CountLimitedHitCollector)hc.newSubCollector(remaining);
+        try {
+          searchLeaves(w, slices.get(i), sub);
+        } catch (LimitedException e) {
+          // expected
+        }
+        subs.add(sub);
+        lastDoc = sub.getLastDoc();
+      }
+      return new LimitedException(LimitedHitCollector.TYPE_SIZE, limit, limit, lastDoc);
+    }
+    return null;
+  }
+
+  private static LimitedException get(Future<LimitedException> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Search interrupted");
+    } catch (ExecutionException e) {
+      Throwable t = e.getCause();
+      if (t instanceof IOException) {
+        throw (IOException)t;
+      } else if (t instanceof RuntimeException) {
+        throw (RuntimeException)t;
+      } else if (t instanceof Error) {
+        throw (Error)t;
+      }
+      throw new RuntimeException(t);
+    }
+  }
+
+  private synchronized void addLeafTime(long nanos) {
+    leafNanos += nanos;
+  }
+
+  /**
+   * @return elapsed time of all searches so far, in nanoseconds
+   */
+  public long getWallNanos() {
+    return wallNanos;
+  }
+
+  /**
+   * @return speedup of all searches so far over searching their slices one
+   * after another, that is the total time spent in slices divided by the
+   * elapsed time
+   */
+  public synchronized double getSpeedup() {
+    return wallNanos > 0 ? (double)leafNanos / wallNanos : 1.0;
+  }
+}
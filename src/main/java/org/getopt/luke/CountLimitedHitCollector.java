@@ -1,26 +1,36 @@
 package org.getopt.luke;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TopDocsCollector;
 
 public class CountLimitedHitCollector extends LimitedHitCollector {
   private int maxSize;
   private int count;
   private int lastDoc;
-  private TopScoreDocCollector tdc;
+  private TopDocsCollector<?> tdc;
   private TopDocs topDocs = null;
   
   public CountLimitedHitCollector(int maxSize, boolean outOfOrder, boolean shouldScore) {
+    this(maxSize, null, outOfOrder, shouldScore);
+  }
+
+  /**
+   * @param sort sort order, or null to rank hits by score
+   */
+  public CountLimitedHitCollector(int maxSize, Sort sort, boolean outOfOrder, boolean shouldScore) {
     this.maxSize = maxSize;
     this.outOfOrder = outOfOrder;
     this.shouldScore = shouldScore;
+    this.sort = sort;
     count = 0;
-    tdc = TopScoreDocCollector.create(maxSize, outOfOrder);
+    tdc = createTopCollector(maxSize, sort, outOfOrder, shouldScore);
   }
 
   @Override
@@ -48,15 +58,29 @@ public class CountLimitedHitCollector extends LimitedHitCollector {
     tdc.collect(doc);
   }
 
+  /**
+   * @return top hits collected so far
+   */
+  public TopDocs getTopDocs() {
+    if (topDocs == null) {
+      topDocs = tdc.topDocs();
+    }
+    return topDocs;
+  }
+
+  /**
+   * @return the last collected document
+   */
+  int getLastDoc() {
+    return lastDoc;
+  }
+
   /* (non-Javadoc)
    * @see org.getopt.luke.AccessibleHitCollector#getDocId(int)
    */
   @Override
   public int getDocId(int pos) {
-    if (topDocs == null) {
-      topDocs = tdc.topDocs();
-    }
-    return topDocs.scoreDocs[pos].doc;
+    return getTopDocs().scoreDocs[pos].doc;
   }
 
   /* (non-Javadoc)
@@ -64,10 +88,7 @@ public class CountLimitedHitCollector extends LimitedHitCollector {
    */
   @Override
   public float getScore(int pos) {
-    if (topDocs == null) {
-      topDocs = tdc.topDocs();
-    }
-    return topDocs.scoreDocs[pos].score;
+    return getTopDocs().scoreDocs[pos].score;
   }
 
   /* (non-Javadoc)
@@ -98,11 +119,40 @@ public class CountLimitedHitCollector extends LimitedHitCollector {
     }
   }
 
+  /**
+   * Each slice is collected up to the full limit. {@link ConcurrentSearch}
+   * then keeps only the first hits up to the limit, in leaf order.
+   */
+  @Override
+  public AccessibleHitCollector newSubCollector() {
+    return newSubCollector(maxSize);
+  }
+
+  AccessibleHitCollector newSubCollector(int limit) {
+    return new CountLimitedHitCollector(limit, sort, outOfOrder, shouldScore);
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    TopDocs[] slices = new TopDocs[subs.size()];
+    count = 0;
+    lastDoc = 0;
+    for (int i = 0; i < slices.length; i++) {
+      CountLimitedHitCollector sub = (CountLimitedHitCollector)subs.get(i);
+      slices[i] = sub.getTopDocs();
+      count += sub.count;
+      if (sub.count > 0) {
+        lastDoc = sub.lastDoc;
+      }
+    }
+    topDocs = mergeTopDocs(sort, maxSize, slices);
+  }
+
   @Override
   public void reset() {
     count = 0;
     lastDoc = 0;
     topDocs = null;
-    tdc = TopScoreDocCollector.create(maxSize, outOfOrder);
+    tdc = createTopCollector(maxSize, sort, outOfOrder, shouldScore);
   }
 }
@@ -3,6 +3,7 @@ package org.getopt.luke;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.OpenBitSet;
 
 import java.util.*;
 
@@ -18,11 +19,16 @@ import java.util.*;
  *
  */
 public class DocReconstructor extends Observable {
+  /** Number of documents reconstructed together by default. */
+  public static final int DEFAULT_BATCH_SIZE = 10000;
+
   private ProgressNotification progress = new ProgressNotification();
   private String[] fieldNames = null;
   private AtomicReader reader = null;
-  private int numTerms;
+  private IndexReader indexReader = null;
+  private ForwardIndex forwardIndex = null;
   private Bits live;
+  private int batchSize = DEFAULT_BATCH_SIZE;
   
   /**
    * Prepare a document reconstructor.
@@ -30,7 +36,16 @@ public class DocReconstructor extends Observable {
    * @throws Exception
    */
   public DocReconstructor(IndexReader reader) throws Exception {
-    this(reader, null, -1);
+    this(reader, null);
+  }
+
+  /**
+   * @deprecated the number of terms is not used, use
+   * {@link #DocReconstructor(IndexReader, String[])}
+   */
+  @Deprecated
+  public DocReconstructor(IndexReader reader, String[] fieldNames, int numTerms) throws Exception {
+    this(reader, fieldNames);
   }
   
   /**
@@ -38,14 +53,13 @@ public class DocReconstructor extends Observable {
    * @param reader IndexReader to read from.
    * @param fieldNames if non-null or not empty, data will be collected only from
    * these fields, otherwise data will be collected from all fields
-   * @param numTerms total number of terms in the index, or -1 if unknown (will
-   * be calculated)
    * @throws Exception
    */
-  public DocReconstructor(IndexReader reader, String[] fieldNames, int numTerms) throws Exception {
+  public DocReconstructor(IndexReader reader, String[] fieldNames) throws Exception {
     if (reader == null) {
       throw new Exception("IndexReader cannot be null.");
     }
+    this.indexReader = reader;
     if (reader instanceof CompositeReader) {
       this.reader = new SlowCompositeReaderWrapper((CompositeReader)reader);
     } else if (reader instanceof AtomicReader) {
@@ -59,23 +73,30 @@ public class DocReconstructor extends Observable {
     } else {
       this.fieldNames = fieldNames;
     }
-    if (numTerms == -1) {
-      Fields fields = MultiFields.getFields(reader);
-      numTerms = 0;
-      Iterator<String> fe = fields.iterator();
-      while (fe.hasNext()) {
-          String fld = fe.next();
-        Terms t = fields.terms(fld);
-        TermsEnum te = t.iterator(null);
-        while (te.next() != null) {
-          numTerms++;
-        }
-      }
-      this.numTerms = numTerms;
-    }
     live = MultiFields.getLiveDocs(reader);
   }
   
+  /**
+   * Use a forward index to collect the terms of unstored fields. The
+   * missing field indexes are built before the first batch of documents
+   * is reconstructed.
+   * @param forwardIndex forward index, or null to walk the term dictionary
+   */
+  public void setForwardIndex(ForwardIndex forwardIndex) {
+    this.forwardIndex = forwardIndex;
+  }
+
+  /**
+   * Set the maximum number of documents reconstructed together in
+   * {@link #reconstruct(OpenBitSet, Sink)}. Each batch costs one pass over
+   * the terms of unstored fields, and its reconstructed content is kept in
+   * memory until it is sent to the sink.
+   * @param batchSize number of documents, by default {@link #DEFAULT_BATCH_SIZE}
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
   /**
    * Reconstruct document fields.
    * @param docNum document number. If this document is deleted, but the index
@@ -88,95 +109,233 @@ public class DocReconstructor extends Observable {
     if (docNum < 0 || docNum > reader.maxDoc()) {
       throw new Exception("Document number outside of valid range.");
     }
-    Reconstructed res = new Reconstructed();
     if (live != null && !live.get(docNum)) {
       throw new Exception("Document is deleted.");
-    } else {
-      Document doc =  reader.document(docNum);
-      for (int i = 0; i < fieldNames.length; i++) {
-        IndexableField[] fs = doc.getFields(fieldNames[i]);
-        if (fs != null && fs.length > 0) {
-          res.getStoredFields().put(fieldNames[i], fs);
+    }
+    TreeMap<Integer, Reconstructed> batch = new TreeMap<Integer, Reconstructed>();
+    Reconstructed res = new Reconstructed();
+    batch.put(docNum, res);
+    reconstructBatch(batch);
+    progress.message = "Done.";
+    progress.curValue = 100;
+    setChanged();
+    notifyObservers(progress);
+    return res;
+  }
+
+  /**
+   * Reconstruct fields of many documents. Unstored fields are collected
+   * in one pass over the terms of each field for a whole batch of documents,
+   * so reconstructing many documents costs about as much as reconstructing
+   * one. Deleted documents are skipped.
+   * @param docs documents to reconstruct, e.g. {@link Ranges}
+   * @param sink receives the reconstructed documents in the order of
+   * document numbers
+   * @return number of reconstructed documents
+   * @throws Exception
+   */
+  public int reconstruct(OpenBitSet docs, Sink sink) throws Exception {
+    int maxDoc = reader.maxDoc();
+    int count = 0;
+    int next = docs.nextSetBit(0);
+    while (next != -1 && next < maxDoc) {
+      TreeMap<Integer, Reconstructed> batch = new TreeMap<Integer, Reconstructed>();
+      while (next != -1 && next < maxDoc && batch.size() < batchSize) {
+        if (live == null || live.get(next)) {
+          batch.put(next, new Reconstructed());
         }
+        next = docs.nextSetBit(next + 1);
+      }
+      reconstructBatch(batch);
+      for (Map.Entry<Integer, Reconstructed> e : batch.entrySet()) {
+        sink.reconstructed(e.getKey(), e.getValue());
+        count++;
       }
     }
-    // collect values from unstored fields
-    HashSet<String> fields = new HashSet<String>(Arrays.asList(fieldNames));
-    // try to use term vectors if available
-    progress.maxValue = fieldNames.length;
+    progress.message = "Done.";
+    progress.curValue = 100;
+    setChanged();
+    notifyObservers(progress);
+    return count;
+  }
+
+  private void reconstructBatch(TreeMap<Integer, Reconstructed> batch) throws Exception {
+    progress.maxValue = batch.size();
     progress.curValue = 0;
     progress.minValue = 0;
+    progress.message = "Checking stored fields and term vectors ...";
+    setChanged();
+    notifyObservers(progress);
+    // documents of each field not collected through term vectors
+    LinkedHashMap<String, DocList> leftover = new LinkedHashMap<String, DocList>();
     TermsEnum te = null;
-    DocsAndPositionsEnum dpe = null;
-    for (int i = 0; i < fieldNames.length; i++) {
-      Terms tvf = reader.getTermVector(docNum, fieldNames[i]);
-      if (tvf != null) { // has vectors for this field
-        te = tvf.iterator(te);
-        progress.message = "Checking term vectors for '" + fieldNames[i] + "' ...";
-        progress.curValue = i;
-        setChanged();
-        notifyObservers(progress);
-        List<IntPair> vectors = TermVectorMapper.map(tvf, te, false, true);
-        if (vectors != null) {
-          GrowableStringArray gsa = res.getReconstructedFields().get(fieldNames[i]);
-          if (gsa == null) {
-            gsa = new GrowableStringArray();
-            res.getReconstructedFields().put(fieldNames[i], gsa);
-          }
-          for (IntPair ip : vectors) {
+    for (Map.Entry<Integer, Reconstructed> e : batch.entrySet()) {
+      int docNum = e.getKey();
+      Reconstructed res = e.getValue();
+      Document doc = reader.document(docNum);
+      for (int i = 0; i < fieldNames.length; i++) {
+        IndexableField[] fs = doc.getFields(fieldNames[i]);
+        if (fs != null && fs.length > 0) {
+          res.getStoredFields().put(fieldNames[i], fs);
+        }
+      }
+      // try to use term vectors if available
+      Fields vectors = reader.getTermVectors(docNum);
+      for (int i = 0; i < fieldNames.length; i++) {
+        Terms tvf = vectors != null ? vectors.terms(fieldNames[i]) : null;
+        List<IntPair> tv = null;
+        if (tvf != null) { // has vectors for this field
+          te = tvf.iterator(te);
+          tv = TermVectorMapper.map(tvf, te, false, true);
+        }
+        if (tv != null) {
+          GrowableStringArray gsa = new GrowableStringArray();
+          res.getReconstructedFields().put(fieldNames[i], gsa);
+          for (IntPair ip : tv) {
             for (int m = 0; m < ip.positions.length; m++) {
               gsa.append(ip.positions[m], "|", ip.text);
             }
           }
-          fields.remove(fieldNames[i]); // got what we wanted
+        } else {
+          DocList docs = leftover.get(fieldNames[i]);
+          if (docs == null) {
+            docs = new DocList();
+            leftover.put(fieldNames[i], docs);
+          }
+          // the batch is in document order, so the list stays sorted
+          docs.add(docNum);
         }
       }
+      progress.curValue++;
     }
-    // this loop collects data only from left-over fields
+    // this collects data only from left-over fields
     // not yet collected through term vectors
-    progress.maxValue = fields.size();
+    progress.maxValue = leftover.size();
     progress.curValue = 0;
     progress.minValue = 0;
-    for (String fld : fields) {
+    if (forwardIndex != null) {
+      progress.message = "Building forward index ...";
+      setChanged();
+      notifyObservers(progress);
+      forwardIndex.build(indexReader, leftover.keySet().toArray(new String[leftover.size()]), null);
+    }
+    for (Map.Entry<String, DocList> e : leftover.entrySet()) {
+      String fld = e.getKey();
       progress.message = "Collecting terms in " + fld + " ...";
       progress.curValue++;
       setChanged();
       notifyObservers(progress);
-      Terms terms = MultiFields.getTerms(reader, fld);
+      int[] docs = e.getValue().toArray();
+      if (forwardIndex != null) {
+        for (int docNum : docs) {
+          GrowableStringArray gsa = new GrowableStringArray();
+          if (forwardIndex.reconstruct(indexReader, docNum, fld, gsa)) {
+            batch.get(docNum).getReconstructedFields().put(fld, gsa);
+          }
+        }
+      } else {
+        te = collectTerms(fld, docs, batch, te);
+      }
+    }
+  }
+
+  /**
+   * Walk the terms of a field once in each segment, and add positions of
+   * the selected documents.
+   * @param docs selected documents, in ascending order
+   */
+  private TermsEnum collectTerms(String fld, int[] docs,
+      TreeMap<Integer, Reconstructed> batch, TermsEnum te) throws Exception {
+    DocsAndPositionsEnum dpe = null;
+    for (AtomicReaderContext ctx : indexReader.leaves()) {
+      int base = ctx.docBase;
+      int from = search(docs, 0, docs.length, base);
+      int to = search(docs, from, docs.length, base + ctx.reader().maxDoc());
+      if (from == to) { // no selected docs in this segment
+        continue;
+      }
+      Terms terms = ctx.reader().terms(fld);
       if (terms == null) { // no terms in this field
         continue;
       }
+      Bits segLive = ctx.reader().getLiveDocs();
       te = terms.iterator(te);
       while (te.next() != null) {
-        DocsAndPositionsEnum newDpe = te.docsAndPositions(live, dpe, 0);
+        DocsAndPositionsEnum newDpe = te.docsAndPositions(segLive, dpe, 0);
         if (newDpe == null) { // no position info for this field
           break;
         }
         dpe = newDpe;
-        int num = dpe.advance(docNum);
-        if (num != docNum) { // either greater than or NO_MORE_DOCS
-          continue; // no data for this term in this doc
-        }
-        String term = te.term().utf8ToString();
-        GrowableStringArray gsa = (GrowableStringArray)
-              res.getReconstructedFields().get(fld);
-        if (gsa == null) {
-          gsa = new GrowableStringArray();
-          res.getReconstructedFields().put(fld, gsa);
-        }
-        for (int k = 0; k < dpe.freq(); k++) {
-          int pos = dpe.nextPosition();
-          gsa.append(pos, "|", term);
+        String term = null;
+        int idx = from;
+        int doc = dpe.advance(docs[idx] - base);
+        while (doc != DocsEnum.NO_MORE_DOCS) {
+          int docNum = base + doc;
+          idx = search(docs, idx, to, docNum);
+          if (idx == to) { // past the last selected document
+            break;
+          }
+          if (docs[idx] == docNum) {
+            if (term == null) {
+              term = te.term().utf8ToString();
+            }
+            Map<String, GrowableStringArray> fields = batch.get(docNum).getReconstructedFields();
+            GrowableStringArray gsa = fields.get(fld);
+            if (gsa == null) {
+              gsa = new GrowableStringArray();
+              fields.put(fld, gsa);
+            }
+            for (int k = 0; k < dpe.freq(); k++) {
+              int pos = dpe.nextPosition();
+              gsa.append(pos, "|", term);
+            }
+            // skip to the next selected document
+            if (++idx == to) {
+              break;
+            }
+          }
+          doc = dpe.advance(docs[idx] - base);
         }
       }
     }
-    progress.message = "Done.";
-    progress.curValue = 100;
-    setChanged();
-    notifyObservers(progress);
-    return res;
+    return te;
   }
-  
+
+  /**
+   * @return position of the first document not less than docNum in a
+   * sorted range, or <code>to</code> if there is none
+   */
+  private static int search(int[] docs, int from, int to, int docNum) {
+    int pos = Arrays.binarySearch(docs, from, to, docNum);
+    return pos >= 0 ? pos : -pos - 1;
+  }
+
+  /**
+   * Growable list of document numbers.
+   */
+  private static class DocList {
+    private int[] docs = new int[16];
+    private int size = 0;
+
+    void add(int docNum) {
+      if (size == docs.length) {
+        docs = Arrays.copyOf(docs, size * 2);
+      }
+      docs[size++] = docNum;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(docs, size);
+    }
+  }
+
+  /**
+   * Receives reconstructed documents.
+   */
+  public static interface Sink {
+    public void reconstructed(int docNum, Reconstructed doc) throws Exception;
+  }
+
   /**
    * This class represents a reconstructed document.
    * @author ab
@@ -0,0 +1,349 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocTermOrds;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.FilterAtomicReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Counts hits per term of some fields, while another collector collects the
+ * hits. Each segment counts term ordinals in an int[], from
+ * {@link SortedDocValues} if the field has one term per document, or from
+ * {@link SortedSetDocValues} otherwise, both taken from DocValues or the
+ * {@link FieldCache}. Counts of a segment are added up by term when the
+ * next segment starts.
+ * <p>Numeric fields are counted by their full precision terms only, and
+ * their values are decoded. Fields with NUMERIC or BINARY DocValues have no
+ * ordinals, so their indexed terms are counted instead.</p>
+ */
+public class FacetCollector extends FilterHitCollector {
+  // uninverted terms of fields that the FieldCache can't provide, by segment
+  private static final Map<Object,Map<String,DocTermOrds>> uninvertedOrds =
+    new WeakHashMap<Object,Map<String,DocTermOrds>>();
+
+  private final String[] fields;
+  private final SortField.Type[] types;
+  private final FieldCounts[] counts;
+
+  /**
+   * Count of hits with a term.
+   */
+  public static class TermCount {
+    public final String term;
+    public final int count;
+
+    public TermCount(String term, int count) {
+      this.term = term;
+      this.count = count;
+    }
+  }
+
+  private class FieldCounts {
+    final int field;
+    SortedDocValues single;
+    SortedSetDocValues multi;
+    int[] segCounts;
+    int missing;
+    HashMap<String,int[]> total = new HashMap<String,int[]>();
+
+    FieldCounts(int field) {
+      this.field = field;
+    }
+
+    void setNextReader(AtomicReader ar) throws IOException {
+      flush();
+      single = null;
+      multi = null;
+      FieldInfo fi = ar.getFieldInfos().fieldInfo(fields[field]);
+      if (fi == null) {
+        return;
+      }
+      Terms terms = ar.terms(fields[field]);
+      if (fi.getDocValuesType() == FieldInfo.DocValuesType.SORTED) {
+        single = FieldCache.DEFAULT.getTermsIndex(ar, fields[field]);
+      } else if (fi.getDocValuesType() == FieldInfo.DocValuesType.SORTED_SET) {
+        multi = FieldCache.DEFAULT.getDocTermOrds(ar, fields[field]);
+      } else if (terms == null) {
+        return;
+      } else if (types[field] != SortField.Type.STRING || fi.hasDocValues()) {
+        // the FieldCache refuses fields with NUMERIC or BINARY DocValues
+        multi = getUninvertedOrds(ar, fields[field], types[field]);
+      } else if (terms.getSumDocFreq() == terms.getDocCount()) {
+        single = FieldCache.DEFAULT.getTermsIndex(ar, fields[field]);
+      } else {
+        multi = FieldCache.DEFAULT.getDocTermOrds(ar, fields[field]);
+      }
+      int size = single != null ? single.getValueCount() :
+        multi != null ? (int)multi.getValueCount() : 0;
+      segCounts = size > 0 ? new int[size] : null;
+    }
+
+    void collect(int doc) {
+      if (single != null) {
+        int ord = single.getOrd(doc);
+        if (ord < 0) {
+          missing++;
+        } else {
+          segCounts[ord]++;
+        }
+      } else if (multi != null) {
+        multi.setDocument(doc);
+        long ord = multi.nextOrd();
+        if (ord == SortedSetDocValues.NO_MORE_ORDS) {
+          missing++;
+        }
+        for (; ord != SortedSetDocValues.NO_MORE_ORDS; ord = multi.nextOrd()) {
+          segCounts[(int)ord]++;
+        }
+      } else {
+        missing++;
+      }
+    }
+
+    /** Add up counts of the current segment by term. */
+    void flush() {
+      if (segCounts == null) {
+        return;
+      }
+      BytesRef term = new BytesRef();
+      for (int ord = 0; ord < segCounts.length; ord++) {
+        if (segCounts[ord] == 0) {
+          continue;
+        }
+        if (single != null) {
+          single.lookupOrd(ord, term);
+        } else {
+          multi.lookupOrd(ord, term);
+        }
+        add(decode(term, types[field]), segCounts[ord]);
+      }
+      segCounts = null;
+    }
+
+    void add(String term, int count) {
+      int[] cnt = total.get(term);
+      if (cnt == null) {
+        total.put(term, new int[] {count});
+      } else {
+        cnt[0] += count;
+      }
+    }
+  }
+
+  /**
+   * @param hc collector of the hits
+   * @param fields fields to count terms of
+   * @param reader reader to search, used to detect numeric fields
+   */
+  public FacetCollector(AccessibleHitCollector hc, String[] fields, IndexReader reader) throws IOException {
+    this(hc, fields, detectTypes(reader, fields));
+  }
+
+  private FacetCollector(AccessibleHitCollector hc, String[] fields, SortField.Type[] types) {
+    super(hc);
+    this.fields = fields;
+    this.types = types;
+    counts = new FieldCounts[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      counts[i] = new FieldCounts(i);
+    }
+  }
+
+  private static SortField.Type[] detectTypes(IndexReader reader, String[] fields) throws IOException {
+    SortField.Type[] types = new SortField.Type[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      types[i] = detectType(reader, fields[i]);
+    }
+    return types;
+  }
+
+  private static SortField.Type detectType(IndexReader reader, String field) throws IOException {
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      FieldInfo fi = ctx.reader().getFieldInfos().fieldInfo(field);
+      if (fi != null && (fi.getDocValuesType() == FieldInfo.DocValuesType.SORTED ||
+          fi.getDocValuesType() == FieldInfo.DocValuesType.SORTED_SET)) {
+        return SortField.Type.STRING;
+      }
+    }
+    // other DocValues are not counted, only the indexed terms
+    return SortFieldInfo.detectIndexedType(reader, field);
+  }
+
+  private static SortedSetDocValues getUninvertedOrds(AtomicReader ar, String field,
+      SortField.Type type) throws IOException {
+    DocTermOrds ords;
+    synchronized (uninvertedOrds) {
+      Map<String,DocTermOrds> byField = uninvertedOrds.get(ar.getCoreCacheKey());
+      if (byField == null) {
+        byField = new HashMap<String,DocTermOrds>();
+        uninvertedOrds.put(ar.getCoreCacheKey(), byField);
+      }
+      ords = byField.get(field);
+      if (ords == null) {
+        BytesRef prefix = null;
+        if (type != SortField.Type.STRING) {
+          // full precision terms only
+          byte shift = type == SortField.Type.INT || type == SortField.Type.FLOAT ?
+              NumericUtils.SHIFT_START_INT : NumericUtils.SHIFT_START_LONG;
+          prefix = new BytesRef(new byte[] {shift});
+        }
+        ords = new DocTermOrds(withoutDocValues(ar, field), null, field, prefix);
+        byField.put(field, ords);
+      }
+    }
+    return ords.iterator(ar);
+  }
+
+  /**
+   * DocTermOrds refuses to uninvert a field with DocValues, even if they
+   * have no ordinals. Hide them, the indexed terms are still there.
+   */
+  private static AtomicReader withoutDocValues(AtomicReader ar, String field) {
+    final FieldInfo fi = ar.getFieldInfos().fieldInfo(field);
+    if (fi == null || !fi.hasDocValues()) {
+      return ar;
+    }
+    final FieldInfos infos = new FieldInfos(new FieldInfo[] {
+        new FieldInfo(fi.name, fi.isIndexed(), fi.number, fi.hasVectors(), fi.omitsNorms(),
+            fi.hasPayloads(), fi.getIndexOptions(), null, fi.getNormType(), fi.attributes())
+    });
+    return new FilterAtomicReader(ar) {
+      @Override
+      public FieldInfos getFieldInfos() {
+        return infos;
+      }
+    };
+  }
+
+  private static String decode(BytesRef term, SortField.Type type) {
+    switch (type) {
+    case INT:
+      return String.valueOf(NumericUtils.prefixCodedToInt(term));
+    case FLOAT:
+      return String.valueOf(NumericUtils.sortableIntToFloat(NumericUtils.prefixCodedToInt(term)));
+    case LONG:
+      return String.valueOf(NumericUtils.prefixCodedToLong(term));
+    case DOUBLE:
+      return String.valueOf(NumericUtils.sortableLongToDouble(NumericUtils.prefixCodedToLong(term)));
+    default:
+      return term.utf8ToString();
+    }
+  }
+
+  public String[] getFields() {
+    return fields;
+  }
+
+  /**
+   * Get the terms of a field with the most hits.
+   * @param field index in {@link #getFields()}
+   * @param max maximum number of terms
+   * @return terms by descending count
+   */
+  public List<TermCount> getTopTerms(int field, int max) {
+    FieldCounts fc = counts[field];
+    fc.flush();
+    ArrayList<TermCount> res = new ArrayList<TermCount>(fc.total.size());
+    for (Map.Entry<String,int[]> e : fc.total.entrySet()) {
+      res.add(new TermCount(e.getKey(), e.getValue()[0]));
+    }
+    Collections.sort(res, new Comparator<TermCount>() {
+      public int compare(TermCount a, TermCount b) {
+        if (a.count != b.count) {
+          return a.count > b.count ? -1 : 1;
+        }
+        return a.term.compareTo(b.term);
+      }
+    });
+    return res.size() > max ? res.subList(0, max) : res;
+  }
+
+  /**
+   * @param field index in {@link #getFields()}
+   * @return number of distinct terms counted
+   */
+  public int getNumTerms(int field) {
+    counts[field].flush();
+    return counts[field].total.size();
+  }
+
+  /**
+   * @param field index in {@link #getFields()}
+   * @return number of hits without a term in this field
+   */
+  public int getMissing(int field) {
+    return counts[field].missing;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    super.collect(doc);
+    for (FieldCounts fc : counts) {
+      fc.collect(doc);
+    }
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    super.setNextReader(context);
+    for (FieldCounts fc : counts) {
+      fc.setNextReader(context.reader());
+    }
+  }
+
+  @Override
+  protected FilterHitCollector newSubCollector(AccessibleHitCollector sub) {
+    return new FacetCollector(sub, fields, types);
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    for (FieldCounts fc : counts) {
+      fc.total.clear();
+      fc.missing = 0;
+    }
+    for (AccessibleHitCollector sub : subs) {
+      FacetCollector fsub = (FacetCollector)sub;
+      for (int i = 0; i < counts.length; i++) {
+        FieldCounts fc = fsub.counts[i];
+        fc.flush();
+        for (Map.Entry<String,int[]> e : fc.total.entrySet()) {
+          counts[i].add(e.getKey(), e.getValue()[0]);
+        }
+        counts[i].missing += fc.missing;
+      }
+    }
+    super.merge(subs);
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    for (FieldCounts fc : counts) {
+      fc.segCounts = null;
+      fc.single = null;
+      fc.multi = null;
+      fc.total.clear();
+      fc.missing = 0;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Passes hits to another collector, to do more with them in the same pass.
+ * Results are those of the other collector.
+ */
+public abstract class FilterHitCollector extends AccessibleHitCollector {
+  protected final AccessibleHitCollector hc;
+
+  public FilterHitCollector(AccessibleHitCollector hc) {
+    this.hc = hc;
+    this.sort = hc.getSort();
+    this.shouldScore = hc.shouldScore;
+    this.outOfOrder = hc.outOfOrder;
+  }
+
+  /**
+   * @return collector of the hits
+   */
+  public AccessibleHitCollector getHitCollector() {
+    return hc;
+  }
+
+  /**
+   * @return the innermost collector of hits
+   */
+  public static AccessibleHitCollector unwrap(AccessibleHitCollector hc) {
+    while (hc instanceof FilterHitCollector) {
+      hc = ((FilterHitCollector)hc).hc;
+    }
+    return hc;
+  }
+
+  /**
+   * Find a collector of some class among the wrapped collectors.
+   * @return the collector, or null if none
+   */
+  public static <T extends AccessibleHitCollector> T find(AccessibleHitCollector hc, Class<T> cls) {
+    for (;;) {
+      if (cls.isInstance(hc)) {
+        return cls.cast(hc);
+      }
+      if (!(hc instanceof FilterHitCollector)) {
+        return null;
+      }
+      hc = ((FilterHitCollector)hc).hc;
+    }
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    hc.collect(doc);
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    this.docBase = context.docBase;
+    hc.setNextReader(context);
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException {
+    this.scorer = scorer;
+    hc.setScorer(scorer);
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return hc.acceptsDocsOutOfOrder();
+  }
+
+  @Override
+  public int getTotalHits() {
+    return hc.getTotalHits();
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    return hc.getDocId(pos);
+  }
+
+  @Override
+  public float getScore(int pos) {
+    return hc.getScore(pos);
+  }
+
+  /**
+   * Limited collectors must be merged by {@link ConcurrentSearch} itself,
+   * so only other collectors are searched concurrently.
+   */
+  @Override
+  public AccessibleHitCollector newSubCollector() {
+    if (unwrap(hc) instanceof LimitedHitCollector) {
+      return null;
+    }
+    AccessibleHitCollector sub = hc.newSubCollector();
+    return sub != null ? newSubCollector(sub) : null;
+  }
+
+  /**
+   * @param sub sub-collector of the wrapped collector
+   * @return a sub-collector that wraps it
+   */
+  protected abstract FilterHitCollector newSubCollector(AccessibleHitCollector sub);
+
+  /**
+   * Merge the hits of the wrapped sub-collectors. Subclasses merge their
+   * own results, and call this.
+   */
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    List<AccessibleHitCollector> hcs = new ArrayList<AccessibleHitCollector>(subs.size());
+    for (AccessibleHitCollector sub : subs) {
+      hcs.add(((FilterHitCollector)sub).hc);
+    }
+    hc.merge(hcs);
+  }
+
+  @Override
+  public void reset() {
+    hc.reset();
+  }
+}
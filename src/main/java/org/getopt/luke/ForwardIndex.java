@@ -0,0 +1,366 @@
+package org.getopt.luke;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PagedBytes;
+import org.apache.lucene.util.packed.GrowableWriter;
+import org.apache.lucene.util.packed.PackedInts;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Uninverted forward index for fast document reconstruction. For each
+ * segment and field it keeps the term ordinals and positions of every
+ * document in packed arrays, so that the content of a document can be
+ * restored in time proportional to its length, instead of walking the
+ * whole term dictionary of the field.
+ * <p>Field indexes are built on first use, in parallel, with two passes
+ * over the postings of the segment. They are kept in an LRU cache limited
+ * to a number of bytes, through soft references, so the garbage collector
+ * may also drop them under memory pressure - they are then simply rebuilt.
+ * Entries of closed segments are dropped when the segment core is closed.</p>
+ */
+public class ForwardIndex {
+  /** Size of the cache in percent of the maximum heap size. */
+  public static final int DEFAULT_HEAP_PERCENT = 25;
+
+  private static final FieldIndex EMPTY = new FieldIndex();
+
+  /**
+   * Forward index of one field of one segment.
+   */
+  static class FieldIndex {
+    /** Start of postings of each document, maxDoc + 1 entries. */
+    PackedInts.Reader docStart;
+    PackedInts.Reader ords;
+    PackedInts.Reader positions;
+    PagedBytes.Reader terms;
+    PackedInts.Reader termStart;
+    int numTerms;
+    long ramBytes;
+
+    BytesRef term(int ord, BytesRef res) {
+      terms.fill(res, termStart.get(ord));
+      return res;
+    }
+  }
+
+  private static class Key {
+    Object coreKey;
+    String field;
+
+    Key(Object coreKey, String field) {
+      this.coreKey = coreKey;
+      this.field = field;
+    }
+
+    public int hashCode() {
+      return coreKey.hashCode() * 31 + field.hashCode();
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key)o;
+      return coreKey == k.coreKey && field.equals(k.field);
+    }
+  }
+
+  private static class Entry {
+    SoftReference<FieldIndex> ref;
+    long ramBytes;
+
+    Entry(FieldIndex fi) {
+      ref = new SoftReference<FieldIndex>(fi);
+      ramBytes = fi.ramBytes;
+    }
+  }
+
+  private final long maxBytes;
+  private long usedBytes = 0;
+  private final LinkedHashMap<Key,Entry> cache = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+  private final HashMap<Key,FutureTask<FieldIndex>> pending = new HashMap<Key,FutureTask<FieldIndex>>();
+  private final Set<Object> listening = new HashSet<Object>();
+
+  public ForwardIndex() {
+    this(Runtime.getRuntime().maxMemory() / 100 * DEFAULT_HEAP_PERCENT);
+  }
+
+  /**
+   * @param maxBytes maximum size of all cached field indexes
+   */
+  public ForwardIndex(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Build the missing field indexes of all segments of a reader.
+   * @param reader index reader
+   * @param fields fields to build
+   * @param abortable checked between builds, may be null
+   * @throws Exception
+   */
+  public void build(IndexReader reader, String[] fields, final Abortable abortable) throws Exception {
+    ArrayList<AtomicReaderContext> missingLeaves = new ArrayList<AtomicReaderContext>();
+    ArrayList<String> missingFields = new ArrayList<String>();
+    synchronized (this) {
+      for (AtomicReaderContext ctx : reader.leaves()) {
+        for (String field : fields) {
+          Entry e = cache.get(new Key(ctx.reader().getCoreCacheKey(), field));
+          if (e == null || e.ref.get() == null) {
+            missingLeaves.add(ctx);
+            missingFields.add(field);
+          }
+        }
+      }
+    }
+    if (missingLeaves.isEmpty()) {
+      return;
+    }
+    int cpus = Runtime.getRuntime().availableProcessors();
+    ExecutorService exec = Executors.newFixedThreadPool(Math.min(cpus, missingLeaves.size()));
+    ArrayList<Future<FieldIndex>> futures = new ArrayList<Future<FieldIndex>>();
+    try {
+      for (int i = 0; i < missingLeaves.size(); i++) {
+        final AtomicReaderContext ctx = missingLeaves.get(i);
+        final String field = missingFields.get(i);
+        futures.add(exec.submit(new Callable<FieldIndex>() {
+          public FieldIndex call() throws Exception {
+            if (abortable != null && abortable.isAborted()) {
+              return null;
+            }
+            return get(ctx.reader(), field);
+          }
+        }));
+      }
+      for (Future<FieldIndex> f : futures) {
+        Util.getResult(f);
+      }
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  /**
+   * Add the terms of a document field to the reconstructed field.
+   * @param reader index reader
+   * @param docNum document number in the reader
+   * @param field field name
+   * @param gsa reconstructed field content
+   * @return false if the field has no terms with positions in this document
+   * @throws IOException
+   */
+  public boolean reconstruct(IndexReader reader, int docNum, String field,
+      GrowableStringArray gsa) throws IOException {
+    List<AtomicReaderContext> leaves = reader.leaves();
+    AtomicReaderContext ctx = leaves.get(ReaderUtil.subIndex(docNum, leaves));
+    FieldIndex fi = get(ctx.reader(), field);
+    int doc = docNum - ctx.docBase;
+    if (fi == EMPTY) {
+      return false;
+    }
+    int start = (int)fi.docStart.get(doc);
+    int end = (int)fi.docStart.get(doc + 1);
+    if (start == end) {
+      return false;
+    }
+    // the same term usually occurs several times
+    HashMap<Integer,Integer> local = new HashMap<Integer,Integer>();
+    BytesRef term = new BytesRef();
+    for (int i = start; i < end; i++) {
+      Integer ord = Integer.valueOf((int)fi.ords.get(i));
+      Integer value = local.get(ord);
+      if (value == null) {
+        value = gsa.addValue(fi.term(ord, term).utf8ToString());
+        local.put(ord, value);
+      }
+      gsa.add((int)fi.positions.get(i), "|", value);
+    }
+    return true;
+  }
+
+  /**
+   * @return number of bytes used by the cached field indexes
+   */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  public synchronized void clear() {
+    cache.clear();
+    usedBytes = 0;
+  }
+
+  FieldIndex get(AtomicReader reader, String field) throws IOException {
+    final Object coreKey = reader.getCoreCacheKey();
+    Key key = new Key(coreKey, field);
+    FutureTask<FieldIndex> task;
+    boolean run = false;
+    synchronized (this) {
+      Entry e = cache.get(key);
+      if (e != null) {
+        FieldIndex fi = e.ref.get();
+        if (fi != null) {
+          return fi;
+        }
+        // collected under memory pressure
+        cache.remove(key);
+        usedBytes -= e.ramBytes;
+      }
+      task = pending.get(key);
+      if (task == null) {
+        final AtomicReader r = reader;
+        final String f = field;
+        task = new FutureTask<FieldIndex>(new Callable<FieldIndex>() {
+          public FieldIndex call() throws Exception {
+            return uninvert(r, f);
+          }
+        });
+        pending.put(key, task);
+        run = true;
+      }
+      if (reader instanceof SegmentReader && listening.add(coreKey)) {
+        ((SegmentReader)reader).addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+          public void onClose(SegmentReader owner) {
+            purge(coreKey);
+          }
+        });
+      }
+    }
+    if (run) {
+      task.run();
+    }
+    FieldIndex fi = null;
+    try {
+      fi = task.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable t = e.getCause();
+      if (t instanceof IOException) {
+        throw (IOException)t;
+      }
+      throw new IOException(t);
+    } finally {
+      if (run) {
+        synchronized (this) {
+          pending.remove(key);
+          if (fi != null) {
+            put(key, fi);
+          }
+        }
+      }
+    }
+    return fi;
+  }
+
+  private synchronized void put(Key key, FieldIndex fi) {
+    if (fi.ramBytes > maxBytes) {
+      return; // too big to keep
+    }
+    Entry old = cache.put(key, new Entry(fi));
+    if (old != null) {
+      usedBytes -= old.ramBytes;
+    }
+    usedBytes += fi.ramBytes;
+    Iterator<Entry> it = cache.values().iterator();
+    while (usedBytes > maxBytes && it.hasNext()) {
+      Entry e = it.next();
+      it.remove();
+      usedBytes -= e.ramBytes;
+    }
+  }
+
+  private synchronized void purge(Object coreKey) {
+    listening.remove(coreKey);
+    Iterator<Map.Entry<Key,Entry>> it = cache.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Key,Entry> e = it.next();
+      if (e.getKey().coreKey == coreKey) {
+        it.remove();
+        usedBytes -= e.getValue().ramBytes;
+      }
+    }
+  }
+
+  /**
+   * Uninvert one field of a segment. The first pass collects the terms and
+   * the number of positions of each document, the second one fills in the
+   * term ordinals and positions.
+   */
+  static FieldIndex uninvert(AtomicReader reader, String field) throws IOException {
+    Terms terms = reader.terms(field);
+    if (terms == null || !terms.hasPositions()) {
+      return EMPTY;
+    }
+    int maxDoc = reader.maxDoc();
+    int[] counts = new int[maxDoc];
+    PagedBytes bytes = new PagedBytes(16);
+    GrowableWriter termStart = new GrowableWriter(8, 1024, PackedInts.COMPACT);
+    TermsEnum te = terms.iterator(null);
+    DocsEnum de = null;
+    int numTerms = 0;
+    long total = 0;
+    BytesRef term;
+    while ((term = te.next()) != null) {
+      if (numTerms == termStart.size()) {
+        termStart = termStart.resize(numTerms * 2);
+      }
+      termStart.set(numTerms++, bytes.copyUsingLengthPrefix(term));
+      de = te.docs(null, de, DocsEnum.FLAG_FREQS);
+      int doc;
+      while ((doc = de.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        counts[doc] += de.freq();
+        total += de.freq();
+      }
+    }
+    if (total > Integer.MAX_VALUE) {
+      throw new IOException("Too many positions in field '" + field + "': " + total);
+    }
+    FieldIndex fi = new FieldIndex();
+    fi.numTerms = numTerms;
+    long termBytes = bytes.getPointer();
+    fi.terms = bytes.freeze(true);
+    fi.termStart = termStart.resize(numTerms).getMutable();
+    PackedInts.Mutable docStart = PackedInts.getMutable(maxDoc + 1,
+        PackedInts.bitsRequired(total), PackedInts.COMPACT);
+    int upto = 0;
+    for (int i = 0; i < maxDoc; i++) {
+      docStart.set(i, upto);
+      int c = counts[i];
+      counts[i] = upto; // now the next free slot of this document
+      upto += c;
+    }
+    docStart.set(maxDoc, upto);
+    PackedInts.Mutable ords = PackedInts.getMutable(upto,
+        PackedInts.bitsRequired(Math.max(0, numTerms - 1)), PackedInts.COMPACT);
+    GrowableWriter positions = new GrowableWriter(8, upto, PackedInts.COMPACT);
+    te = terms.iterator(te);
+    DocsAndPositionsEnum dpe = null;
+    int ord = 0;
+    while (te.next() != null) {
+      dpe = te.docsAndPositions(null, dpe, 0);
+      int doc;
+      while ((doc = dpe.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        int freq = dpe.freq();
+        for (int k = 0; k < freq; k++) {
+          int slot = counts[doc]++;
+          ords.set(slot, ord);
+          positions.set(slot, dpe.nextPosition());
+        }
+      }
+      ord++;
+    }
+    fi.docStart = docStart;
+    fi.ords = ords;
+    fi.positions = positions.getMutable();
+    fi.ramBytes = docStart.ramBytesUsed() + ords.ramBytesUsed() +
+      fi.positions.ramBytesUsed() + fi.termStart.ramBytesUsed() + termBytes;
+    return fi;
+  }
+}
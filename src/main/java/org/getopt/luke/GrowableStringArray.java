@@ -1,6 +1,12 @@
 package org.getopt.luke;
+
+import java.util.HashMap;
+
 /**
- * Simple Vector-like implementation of a growable String array.
+ * Growable array of Strings indexed by position, used for reconstructed
+ * field content. Values are kept as (position, value ordinal) pairs in
+ * primitive arrays, and each distinct value is stored only once. Strings of
+ * positions with several values are joined only when they are requested.
  * @author Andrzej Bialecki
  */
 public class GrowableStringArray {
@@ -8,6 +14,19 @@ public class GrowableStringArray {
 
   private int size = 0;
 
+  // appended (position, value ordinal) pairs
+  private int count = 0;
+  private int[] positions = null;
+  private int[] ords = null;
+
+  // distinct values
+  private int numValues = 0;
+  private String[] values = null;
+  private HashMap<String, Integer> valueOrds = null;
+
+  private String sep = "";
+
+  // joined values of each position, built on demand
   private String[] array = null;
 
   public int size() {
@@ -21,14 +40,12 @@ public class GrowableStringArray {
    * @param value
    */
   public void set(int index, String value) {
-    if (array == null) array = new String[INITIAL_SIZE];
-    if (array.length < index + 1) {
-      String[] newArray = new String[index + INITIAL_SIZE];
-      System.arraycopy(array, 0, newArray, 0, array.length);
-      array = newArray;
+    for (int i = 0; i < count; i++) {
+      if (positions[i] == index) {
+        ords[i] = -1;
+      }
     }
-    if (index > size - 1) size = index + 1;
-    array[index] = value;
+    add(index, sep, addValue(value));
   }
 
   /**
@@ -40,12 +57,84 @@ public class GrowableStringArray {
    * @param value value
    */
   public void append(int index, String sep, String value) {
-    String oldVal = get(index);
-    if (oldVal == null) {
-      set(index, value);
-    } else {
-      set(index, oldVal + sep + value);
+    add(index, sep, addValue(value));
+  }
+
+  /**
+   * Add a distinct value.
+   * @param value value
+   * @return ordinal of the value, to be used with {@link #add(int, String, int)}
+   */
+  public int addValue(String value) {
+    if (values == null) {
+      values = new String[INITIAL_SIZE];
+      valueOrds = new HashMap<String, Integer>();
+    }
+    Integer ord = valueOrds.get(value);
+    if (ord != null) {
+      return ord.intValue();
+    }
+    if (numValues == values.length) {
+      String[] newValues = new String[numValues * 2];
+      System.arraycopy(values, 0, newValues, 0, numValues);
+      values = newValues;
+    }
+    values[numValues] = value;
+    valueOrds.put(value, Integer.valueOf(numValues));
+    return numValues++;
+  }
+
+  /**
+   * Appends the separator and a value added with {@link #addValue(String)}
+   * at specified index. Values of one position are joined with the last
+   * separator used.
+   * @param index selected position
+   * @param sep separator
+   * @param ord value ordinal
+   */
+  public void add(int index, String sep, int ord) {
+    if (positions == null) {
+      positions = new int[INITIAL_SIZE];
+      ords = new int[INITIAL_SIZE];
+    }
+    if (count == positions.length) {
+      int[] newPositions = new int[count * 2];
+      int[] newOrds = new int[count * 2];
+      System.arraycopy(positions, 0, newPositions, 0, count);
+      System.arraycopy(ords, 0, newOrds, 0, count);
+      positions = newPositions;
+      ords = newOrds;
     }
+    positions[count] = index;
+    ords[count] = ord;
+    count++;
+    if (index > size - 1) size = index + 1;
+    this.sep = sep;
+    array = null;
+  }
+
+  /**
+   * @return number of appended (position, value) pairs
+   */
+  public int getNumPairs() {
+    return count;
+  }
+
+  /**
+   * @param i number of the pair, in the order they were appended
+   * @return position of the pair
+   */
+  public int getPairPosition(int i) {
+    return positions[i];
+  }
+
+  /**
+   * @param i number of the pair, in the order they were appended
+   * @return value of the pair, or null if it was replaced with
+   * {@link #set(int, String)}
+   */
+  public String getPairValue(int i) {
+    return ords[i] < 0 ? null : values[ords[i]];
   }
 
   /**
@@ -54,10 +143,43 @@ public class GrowableStringArray {
    * @return
    */
   public String get(int index) {
-    if (array == null || index < 0 || index > array.length - 1) return null;
+    if (index < 0 || index > size - 1) return null;
+    if (array == null) join();
     return array[index];
   }
-  
+
+  private void join() {
+    // group values by position, keeping the order in which they were added
+    int[] start = new int[size + 1];
+    for (int i = 0; i < count; i++) {
+      if (ords[i] >= 0) start[positions[i] + 1]++;
+    }
+    for (int j = 0; j < size; j++) {
+      start[j + 1] += start[j];
+    }
+    int[] sorted = new int[start[size]];
+    int[] upto = new int[size];
+    System.arraycopy(start, 0, upto, 0, size);
+    for (int i = 0; i < count; i++) {
+      if (ords[i] >= 0) sorted[upto[positions[i]]++] = ords[i];
+    }
+    array = new String[size];
+    StringBuilder sb = new StringBuilder();
+    for (int j = 0; j < size; j++) {
+      int n = start[j + 1] - start[j];
+      if (n == 1) {
+        array[j] = values[sorted[start[j]]];
+      } else if (n > 1) {
+        sb.setLength(0);
+        for (int k = start[j]; k < start[j + 1]; k++) {
+          if (k > start[j]) sb.append(sep);
+          sb.append(values[sorted[k]]);
+        }
+        array[j] = sb.toString();
+      }
+    }
+  }
+
   public String toString(String separator) {
     StringBuffer sb = new StringBuffer();
     String sNull = "null";
@@ -79,4 +201,4 @@ public class GrowableStringArray {
     }
     return sb.toString();
   }
-}
\ No newline at end of file
+}
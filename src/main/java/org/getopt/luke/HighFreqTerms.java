@@ -20,7 +20,6 @@ package org.getopt.luke;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.PriorityQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,7 +36,8 @@ import java.util.Iterator;
  * <code>HighFreqTerms</code> class extracts the top n most frequent terms
  * (by document frequency ) from an existing Lucene index and reports their document frequencey.
  * If the -t flag is  and reports both their document frequency and their total tf (total number of occurences) 
- * in order of highest total tf
+ * in order of highest total tf. Other ranking metrics (see {@link TermMetric}) can be
+ * selected with the -m flag.
  */
 public class HighFreqTerms {
   private static final Logger LOG = LoggerFactory.getLogger(HighFreqTerms.class);
@@ -50,9 +50,9 @@ public class HighFreqTerms {
     IndexReader reader = null;
     FSDirectory dir = null;
     String field = null;
-    boolean IncludeTermFreqs = false; 
+    int metric = TermMetric.DOC_FREQ;
    
-    if (args.length == 0 || args.length > 4) {
+    if (args.length == 0 || args.length > 5) {
       usage();
       System.exit(1);
     }     
@@ -63,7 +63,13 @@ public class HighFreqTerms {
    
     for (int i = 1; i < args.length; i++) {
       if (args[i].equals("-t")) {
-        IncludeTermFreqs = true;
+        metric = TermMetric.TOTAL_TERM_FREQ;
+      } else if (args[i].equals("-m") && i + 1 < args.length) {
+        metric = TermMetric.parse(args[++i]);
+        if (metric == -1) {
+          usage();
+          System.exit(1);
+        }
       }
       else{
         try {
@@ -75,20 +81,25 @@ public class HighFreqTerms {
     }
     String[] fields = field != null ? new String[]{field} : null;
     reader = DirectoryReader.open(dir);
-    TermStats[] terms = getHighFreqTerms(reader, numTerms, fields);
-    if (!IncludeTermFreqs) {
+    TermStats[] terms = getHighFreqTerms(reader, numTerms, fields, metric);
+    if (metric == TermMetric.DOC_FREQ) {
       //default HighFreqTerms behavior
       for (int i = 0; i < terms.length; i++) {
         System.out.printf("%s:%s %,d \n",
             terms[i].field, terms[i].termtext.utf8ToString(), terms[i].docFreq);
       }
-    }
-    else{
-      TermStats[] termsWithTF = sortByTotalTermFreq(reader, terms);
-      for (int i = 0; i < termsWithTF.length; i++) {
+    } else if (metric == TermMetric.TOTAL_TERM_FREQ) {
+      for (int i = 0; i < terms.length; i++) {
         System.out.printf("%s:%s \t totalTF = %,d \t doc freq = %,d \n",
-            termsWithTF[i].field, termsWithTF[i].termtext.utf8ToString(),
-            termsWithTF[i].totalTermFreq, termsWithTF[i].docFreq);
+            terms[i].field, terms[i].termtext.utf8ToString(),
+            terms[i].totalTermFreq, terms[i].docFreq);
+      }
+    } else {
+      for (int i = 0; i < terms.length; i++) {
+        System.out.printf("%s:%s \t %s = %,.1f \t totalTF = %,d \t doc freq = %,d \n",
+            terms[i].field, terms[i].termtext.utf8ToString(), TermMetric.NAMES[metric],
+            TermMetric.value(metric, terms[i], reader.maxDoc()),
+            terms[i].totalTermFreq, terms[i].docFreq);
       }
     }
     reader.close();
@@ -97,7 +108,10 @@ public class HighFreqTerms {
   private static void usage() {
     System.out
         .println("\n\n"
-            + "java org.apache.lucene.misc.HighFreqTerms <index dir> [-t][number_terms] [field]\n\t -t: include totalTermFreq\n\n");
+            + "java org.apache.lucene.misc.HighFreqTerms <index dir> [-t | -m metric][number_terms] [field]\n"
+            + "\t -t: rank by totalTermFreq, same as '-m ttf'\n"
+            + "\t -m: ranking metric, one of: df (docFreq, default), ttf (totalTermFreq),\n"
+            + "\t     bytes (estimated postings size), idf (idf-weighted totalTermFreq)\n\n");
   }
   
   private static final TermStats[] EMPTY_STATS = new TermStats[0];
@@ -110,50 +124,48 @@ public class HighFreqTerms {
    * @throws Exception
    */
   public static TermStats[] getHighFreqTerms(IndexReader reader, int numTerms, String[] fieldNames) throws Exception {
-    TermStatsQueue tiq = null;
+    return getHighFreqTerms(reader, numTerms, fieldNames, TermMetric.DOC_FREQ);
+  }
+
+  /**
+   * Collect top terms ranked by the selected metric. Both docFreq and totalTermFreq
+   * of each term are collected in the same pass over the term dictionary.
+   * @param reader
+   * @param numTerms
+   * @param fieldNames
+   * @param metric one of {@link TermMetric} constants
+   * @return TermStats[] ordered by terms with highest metric value first.
+   * @throws Exception
+   */
+  public static TermStats[] getHighFreqTerms(IndexReader reader, int numTerms, String[] fieldNames,
+      int metric) throws Exception {
     TermsEnum te = null;
-    
+    Fields fields = MultiFields.getFields(reader);
+    if (fields == null) {
+      LOG.info("Index with no fields - probably empty or corrupted");
+      return EMPTY_STATS;
+    }
+    TopTermsScanner scanner = new TopTermsScanner(numTerms, metric, reader.maxDoc());
     if (fieldNames != null) {
-      Fields fields = MultiFields.getFields(reader);
-      if (fields == null) {
-        LOG.info("Index with no fields - probably empty or corrupted");
-        return EMPTY_STATS;
-      }
-      tiq = new TermStatsQueue(numTerms);
       for (String field : fieldNames) {
         Terms terms = fields.terms(field);
         if (terms != null) {
           te = terms.iterator(te);
-          fillQueue(te, tiq, field);
+          scanner.scan(te, field);
         }
       }
     } else {
-      Fields fields = MultiFields.getFields(reader);
-      if (fields == null) {
-        LOG.info("Index with no fields - probably empty or corrupted");
-        return EMPTY_STATS;
-      }
-      tiq = new TermStatsQueue(numTerms);
       Iterator<String> fieldIterator = fields.iterator();
       while (fieldIterator.hasNext()) {
-          String field = fieldIterator.next();
+        String field = fieldIterator.next();
         Terms terms = fields.terms(field);
         if (terms != null) {
           te = terms.iterator(te);
-          fillQueue(te, tiq, field);
+          scanner.scan(te, field);
         }
       }
     }
-
-    TermStats[] result = new TermStats[tiq.size()];
-    // we want highest first so we read the queue and populate the array
-    // starting at the end and work backwards
-    int count = tiq.size() - 1;
-    while (tiq.size() != 0) {
-      result[count] = tiq.pop();
-      count--;
-    }
-    return result;
+    return scanner.topTerms();
   }
   
   /**
@@ -183,12 +195,8 @@ public class HighFreqTerms {
   }
   
   public static long getTotalTermFreq(IndexReader reader, String field, BytesRef termtext) throws Exception {
-    //BytesRef br = termtext;
-    long totalTF = 0;
     try {
-      Bits liveDocs = MultiFields.getLiveDocs(reader);
-      totalTF = reader.getSumTotalTermFreq(field);
-      return totalTF;
+      return totalTermFreq(reader, field, termtext);
     } catch (Exception e) {
       return 0;
     }
@@ -235,17 +243,3 @@ final class TotalTermFreqComparatorSortDescending implements Comparator<TermStat
     }
   }
 }
-
-/**
- * Priority queue for TermStats objects ordered by docFreq
- **/
-final class TermStatsQueue extends PriorityQueue<TermStats> {
-  TermStatsQueue(int size) {
-    super(size);
-  }
-  
-  @Override
-  protected boolean lessThan(TermStats termInfoA, TermStats termInfoB) {
-    return termInfoA.docFreq < termInfoB.docFreq;
-  }
-}
@@ -0,0 +1,170 @@
+package org.getopt.luke;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * HyperLogLog sketch (Flajolet et al., with the small-range correction) for
+ * estimating the number of distinct terms. Sketches of different segments
+ * can be merged, which gives an estimate of the number of unique terms in
+ * the whole index without a k-way merge of the term dictionaries.
+ * <p>With the default precision the standard error is about 0.8%.</p>
+ */
+public final class HyperLogLog {
+  public static final int DEFAULT_PRECISION = 14;
+
+  private static final byte DENSE = 0;
+  private static final byte SPARSE = 1;
+
+  private final int p;
+  private final byte[] registers;
+
+  public HyperLogLog() {
+    this(DEFAULT_PRECISION);
+  }
+
+  /**
+   * @param precision number of index bits, between 4 and 18. The sketch
+   * uses 2<sup>precision</sup> registers.
+   */
+  public HyperLogLog(int precision) {
+    if (precision < 4 || precision > 18) {
+      throw new IllegalArgumentException("precision must be in [4, 18]: " + precision);
+    }
+    p = precision;
+    registers = new byte[1 << p];
+  }
+
+  public void add(BytesRef term) {
+    addHash(hash(term));
+  }
+
+  public void addHash(long hash) {
+    int idx = (int)(hash >>> (64 - p));
+    // position of the leftmost 1-bit in the remaining bits
+    long w = (hash << p) | (1L << (p - 1));
+    byte rank = (byte)(Long.numberOfLeadingZeros(w) + 1);
+    if (registers[idx] < rank) {
+      registers[idx] = rank;
+    }
+  }
+
+  /**
+   * Add all terms counted by another sketch.
+   */
+  public void merge(HyperLogLog other) {
+    if (other.p != p) {
+      throw new IllegalArgumentException("precision mismatch: " + p + " != " + other.p);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (registers[i] < other.registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /**
+   * Estimated number of distinct terms.
+   */
+  public long cardinality() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (int i = 0; i < m; i++) {
+      sum += 1.0 / (1L << registers[i]);
+      if (registers[i] == 0) {
+        zeros++;
+      }
+    }
+    double alpha = 0.7213 / (1.0 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting
+      estimate = m * Math.log((double)m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * Serialize the sketch. Sketches of small segments are mostly empty, so
+   * only the non-zero registers are written when that is shorter.
+   */
+  public byte[] toBytes() {
+    int nonZero = 0;
+    for (int i = 0; i < registers.length; i++) {
+      if (registers[i] != 0) {
+        nonZero++;
+      }
+    }
+    byte[] res;
+    if (nonZero * 4 < registers.length) {
+      res = new byte[2 + nonZero * 4];
+      res[0] = SPARSE;
+      res[1] = (byte)p;
+      int upto = 2;
+      for (int i = 0; i < registers.length; i++) {
+        if (registers[i] != 0) {
+          res[upto++] = (byte)(i >>> 16);
+          res[upto++] = (byte)(i >>> 8);
+          res[upto++] = (byte)i;
+          res[upto++] = registers[i];
+        }
+      }
+    } else {
+      res = new byte[2 + registers.length];
+      res[0] = DENSE;
+      res[1] = (byte)p;
+      System.arraycopy(registers, 0, res, 2, registers.length);
+    }
+    return res;
+  }
+
+  public static HyperLogLog fromBytes(byte[] bytes) {
+    HyperLogLog hll = new HyperLogLog(bytes[1]);
+    if (bytes[0] == DENSE) {
+      System.arraycopy(bytes, 2, hll.registers, 0, hll.registers.length);
+    } else {
+      for (int upto = 2; upto < bytes.length; upto += 4) {
+        int i = ((bytes[upto] & 0xff) << 16) | ((bytes[upto + 1] & 0xff) << 8) |
+          (bytes[upto + 2] & 0xff);
+        hll.registers[i] = bytes[upto + 3];
+      }
+    }
+    return hll;
+  }
+
+  /**
+   * 64-bit MurmurHash2 (MurmurHash64A) of the term bytes.
+   */
+  public static long hash(BytesRef term) {
+    final long m = 0xc6a4a7935bd1e995L;
+    final int r = 47;
+    byte[] data = term.bytes;
+    int off = term.offset;
+    int len = term.length;
+    long h = 0x9747b28cL ^ (len * m);
+    int end = off + (len & ~7);
+    for (int i = off; i < end; i += 8) {
+      long k = (data[i] & 0xffL) | ((data[i + 1] & 0xffL) << 8) |
+        ((data[i + 2] & 0xffL) << 16) | ((data[i + 3] & 0xffL) << 24) |
+        ((data[i + 4] & 0xffL) << 32) | ((data[i + 5] & 0xffL) << 40) |
+        ((data[i + 6] & 0xffL) << 48) | ((data[i + 7] & 0xffL) << 56);
+      k *= m;
+      k ^= k >>> r;
+      k *= m;
+      h ^= k;
+      h *= m;
+    }
+    // remaining bytes, little-endian
+    int rest = len & 7;
+    if (rest > 0) {
+      for (int j = rest - 1; j >= 0; j--) {
+        h ^= (data[end + j] & 0xffL) << (8 * j);
+      }
+      h *= m;
+    }
+    h ^= h >>> r;
+    h *= m;
+    h ^= h >>> r;
+    return h;
+  }
+}
@@ -5,20 +5,32 @@ import org.apache.lucene.index.IndexGate.FormatDetails;
 import org.apache.lucene.store.Directory;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 public class IndexInfo {
   private IndexReader reader;
   private Directory dir;
   private String indexPath;
   private long totalFileSize;
-  private int numTerms = -1;
+  private long numTerms = -1;
   private FormatDetails formatDetails;
   private TermStats[] topTerms = null;
   private List<String> fieldNames;
   private String lastModified;
   private String version;
   private String dirImpl;
-  private HashMap<String,FieldTermCount> termCounts = null;
+  private Map<String,FieldTermCount> termCounts = null;
+  private SegmentStatsCache statsCache = null;
+  private long estNumTerms = -1;
+  private Map<String,FieldTermCount> estTermCounts = null;
+  private IndexStatsJob statsJob = null;
+  private boolean estimated = false;
+  private ExecutorService executor = null;
+  private FutureTask<SegmentStatsCache.SegmentStats[]> segmentStats = null;
+  private TopTermsEngine topTermsEngine = null;
   
   public IndexInfo(IndexReader reader, String indexPath) throws Exception {
     this.reader = reader;
@@ -42,35 +54,188 @@ public class IndexInfo {
     }
   }
 
+  /**
+   * Use cached term statistics where possible.
+   * @param statsCache cache, or null
+   */
+  public void setStatsCache(SegmentStatsCache statsCache) {
+    this.statsCache = statsCache;
+  }
+
+  /**
+   * @param executor executor that decodes segments for the statistics job,
+   * the top terms and the term count estimates, or null to use private pools
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public SegmentStatsCache getStatsCache() {
+    return statsCache;
+  }
+
   private void countTerms() throws Exception {
     termCounts = new HashMap<String,FieldTermCount>();
     numTerms = 0;
-    Fields fields = MultiFields.getFields(reader);
-
-      // if there are no postings, throw an exception
-      if (fields == null) {
-          throw new Exception("There are no postings in the index reader.");
+    SegmentStatsCache.IndexStats stats = null;
+    if (statsCache != null) {
+      stats = statsCache.getIndexStats(reader);
+    }
+    if (stats != null) {
+      for (Map.Entry<String,Long> e : stats.fieldTermCounts.entrySet()) {
+        FieldTermCount ftc = new FieldTermCount();
+        ftc.fieldname = e.getKey();
+        ftc.termCount = e.getValue();
+        termCounts.put(ftc.fieldname, ftc);
       }
-
-    Iterator<String> fe = fields.iterator();
-    TermsEnum te = null;
-
-    while (fe.hasNext()) {
-      String fld = fe.next();
+      numTerms = stats.numTerms;
+      estNumTerms = numTerms;
+      estTermCounts = termCounts;
+      estimated = false;
+      return;
+    }
+    IndexStatsJob job = getStatsJob();
+    numTerms = job.getNumTerms();
+    termCounts = job.getFieldTermCounts();
+    if (statsCache != null) {
+      stats = new SegmentStatsCache.IndexStats();
+      stats.numTerms = numTerms;
+      for (FieldTermCount ftc : termCounts.values()) {
+        stats.fieldTermCounts.put(ftc.fieldname, ftc.termCount);
+      }
+      statsCache.putIndexStats(reader, stats);
+    }
+    // exact counts replace the estimates
+    estNumTerms = numTerms;
+    estTermCounts = termCounts;
+    estimated = false;
+  }
+  
+  /**
+   * Estimate the number of unique terms by merging the {@link HyperLogLog}
+   * sketches of all segments, which are built in parallel, or taken from
+   * the cache. Fields that occur in a single segment get their exact term
+   * count, and estimates are kept between the largest per-segment count
+   * and the sum of all per-segment counts.
+   */
+  private void estimateTerms() throws Exception {
+    if (termCounts == null && statsCache != null && statsCache.getIndexStats(reader) != null) {
+      countTerms(); // exact counts are cached
+    }
+    if (termCounts != null) {
+      return;
+    }
+    SegmentStatsCache.SegmentStats[] stats = getSegmentStats();
+    HashMap<String,HyperLogLog> sketches = new HashMap<String,HyperLogLog>();
+    HashMap<String,long[]> bounds = new HashMap<String,long[]>();
+    for (SegmentStatsCache.SegmentStats ss : stats) {
+      for (SegmentStatsCache.FieldStats fs : ss.fields.values()) {
+        HyperLogLog hll = HyperLogLog.fromBytes(fs.hll);
+        HyperLogLog merged = sketches.get(fs.field);
+        long[] b = bounds.get(fs.field);
+        if (merged == null) {
+          sketches.put(fs.field, hll);
+          // max, sum and number of segments
+          bounds.put(fs.field, new long[] {fs.termCount, fs.termCount, 1});
+        } else {
+          merged.merge(hll);
+          b[0] = Math.max(b[0], fs.termCount);
+          b[1] += fs.termCount;
+          b[2]++;
+        }
+      }
+    }
+    estTermCounts = new HashMap<String,FieldTermCount>();
+    estNumTerms = 0;
+    estimated = false;
+    for (Map.Entry<String,HyperLogLog> e : sketches.entrySet()) {
+      long[] b = bounds.get(e.getKey());
       FieldTermCount ftc = new FieldTermCount();
-      ftc.fieldname = fld;
-      Terms terms = fields.terms(fld);
-      if (terms != null) { // count terms
-        te = terms.iterator(te);
-        while (te.next() != null) {
-          ftc.termCount++;
-          numTerms++;
+      ftc.fieldname = e.getKey();
+      if (b[2] == 1) {
+        ftc.termCount = b[0];
+      } else {
+        ftc.termCount = Math.min(b[1], Math.max(b[0], e.getValue().cardinality()));
+        estimated = true;
+      }
+      estTermCounts.put(ftc.fieldname, ftc);
+      estNumTerms += ftc.termCount;
+    }
+  }
+
+  /**
+   * Statistics of all segments, collected once and shared by the term count
+   * estimates and the top terms. The first caller collects them, the others
+   * wait for the result.
+   */
+  private SegmentStatsCache.SegmentStats[] getSegmentStats() throws Exception {
+    FutureTask<SegmentStatsCache.SegmentStats[]> task;
+    boolean run = false;
+    synchronized (this) {
+      if (segmentStats == null) {
+        segmentStats = new FutureTask<SegmentStatsCache.SegmentStats[]>(
+            new Callable<SegmentStatsCache.SegmentStats[]>() {
+          public SegmentStatsCache.SegmentStats[] call() throws Exception {
+            ExecutorService exec = executor;
+            if (exec == null) {
+              exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            }
+            try {
+              return SegmentStatsCache.collect(statsCache, reader.leaves(),
+                  IndexStatsJob.DEFAULT_TOP_TERMS, exec);
+            } finally {
+              if (executor == null) {
+                exec.shutdownNow();
+              }
+            }
+          }
+        });
+        run = true;
+      }
+      task = segmentStats;
+    }
+    if (run) {
+      task.run();
+    }
+    try {
+      return Util.getResult(task);
+    } catch (Exception e) {
+      synchronized (this) {
+        // let the next caller try again
+        if (segmentStats == task) {
+          segmentStats = null;
         }
       }
-      termCounts.put(fld, ftc);
+      throw e;
     }
   }
-  
+
+  /**
+   * @return the estimated number of unique terms, or the exact number if
+   * it's already known
+   */
+  public long getEstimatedNumTerms() throws Exception {
+    if (estNumTerms == -1) {
+      estimateTerms();
+    }
+    return estNumTerms;
+  }
+
+  public Map<String,FieldTermCount> getEstimatedFieldTermCounts() throws Exception {
+    if (estTermCounts == null) {
+      estimateTerms();
+    }
+    return estTermCounts;
+  }
+
+  /**
+   * @return true if the values returned by {@link #getEstimatedNumTerms()}
+   * and {@link #getEstimatedFieldTermCounts()} are not exact
+   */
+  public boolean isTermCountEstimated() {
+    return estimated;
+  }
+
   /**
    * @return the reader
    */
@@ -99,7 +264,7 @@ public class IndexInfo {
   /**
    * @return the numTerms
    */
-  public int getNumTerms() throws Exception {
+  public long getNumTerms() throws Exception {
     if (numTerms == -1) {
       countTerms();
     }
@@ -125,11 +290,97 @@ public class IndexInfo {
    */
   public TermStats[] getTopTerms() throws Exception {
     if (topTerms == null) {
-      topTerms = HighFreqTerms.getHighFreqTerms(reader, 50, null);
+      if (useStatsJob()) {
+        topTerms = getStatsJob().getTopTerms();
+      } else {
+        // cheaper than a full pass, if segments are cached
+        TopTermsEngine engine = getTopTermsEngine();
+        topTerms = engine.getHighFreqTerms(IndexStatsJob.DEFAULT_TOP_TERMS, null);
+        if (engine.isAborted()) {
+          // partial results, a later call starts over with a new engine
+          topTerms = null;
+          synchronized (this) {
+            if (topTermsEngine == engine) {
+              topTermsEngine = null;
+            }
+          }
+          throw new Exception("Collecting top terms was aborted.");
+        }
+      }
     }
     return topTerms;
   }
 
+  private synchronized boolean useStatsJob() {
+    return statsCache == null || (statsJob != null && statsJob.isStarted());
+  }
+
+  /**
+   * @return the job or the engine that {@link #getTopTerms()} runs, to
+   * observe its progress. Both are {@link Abortable}.
+   */
+  public Observable getTopTermsWorker() {
+    return useStatsJob() ? getStatsJob() : getTopTermsEngine();
+  }
+
+  private synchronized TopTermsEngine getTopTermsEngine() {
+    if (topTermsEngine == null) {
+      topTermsEngine = new TopTermsEngine(reader, executor);
+      topTermsEngine.setCache(statsCache);
+      topTermsEngine.setSegmentStats(new Callable<SegmentStatsCache.SegmentStats[]>() {
+        public SegmentStatsCache.SegmentStats[] call() throws Exception {
+          return getSegmentStats();
+        }
+      }, IndexStatsJob.DEFAULT_TOP_TERMS);
+    }
+    return topTermsEngine;
+  }
+
+  /**
+   * Get the job that collects term statistics for this index. All consumers
+   * share the same job, so the term dictionary is read at most once.
+   */
+  public synchronized IndexStatsJob getStatsJob() {
+    if (statsJob == null) {
+      statsJob = new IndexStatsJob(reader, IndexStatsJob.DEFAULT_TOP_TERMS, executor);
+    }
+    return statsJob;
+  }
+
+  /**
+   * Abort the statistics job and the top terms, if running, before the
+   * reader is closed.
+   */
+  public synchronized void close() {
+    if (statsJob != null) {
+      statsJob.abort();
+    }
+    if (topTermsEngine != null) {
+      topTermsEngine.abort();
+    }
+  }
+
+  /**
+   * Start collecting exact term statistics in the background, unless term
+   * counts are already known or cached.
+   */
+  public void startStatsJob() throws Exception {
+    if (termCounts == null && (statsCache == null || statsCache.getIndexStats(reader) == null)) {
+      getStatsJob().start();
+    }
+  }
+
+  /**
+   * @return per-field statistics, or null if they were not collected
+   */
+  public Map<String,IndexStatsJob.FieldResult> getFieldStats() {
+    IndexStatsJob job = statsJob;
+    if (job == null || !job.isDone() || job.isAborted()) {
+      return null;
+    }
+    return job.getFieldResults();
+  }
+
   /**
    * @return the fieldNames
    */
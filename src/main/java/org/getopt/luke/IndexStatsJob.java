@@ -0,0 +1,303 @@
+package org.getopt.luke;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects all term statistics of an index in a single pass over the term
+ * dictionary: the number of unique terms per field, top terms, docFreq
+ * histograms and per-field sums. Fields are processed in parallel, and the
+ * terms of each field are merged from all segments by {@link TopTermsEngine}.
+ * <p>The job runs at most once. Results of each field are published to
+ * observers as {@link FieldResult} objects as soon as the field is done,
+ * and the overall progress as {@link ProgressNotification}. Consumers that
+ * need complete results call one of the getters, which wait for the job to
+ * finish - or run it in the calling thread, if nobody started it yet.</p>
+ */
+public class IndexStatsJob extends Observable implements Abortable {
+  /** Number of top terms collected by default. */
+  public static final int DEFAULT_TOP_TERMS = 50;
+  /**
+   * Number of buckets of the docFreq histograms. Bucket <code>i</code>
+   * counts terms with docFreq in <code>[2<sup>i</sup>, 2<sup>i+1</sup>)</code>.
+   */
+  public static final int HISTOGRAM_SIZE = 32;
+
+  /**
+   * Statistics of one field.
+   */
+  public static class FieldResult {
+    public String field;
+    public long termCount;
+    public long sumDocFreq;
+    /** Sum of totalTermFreq, or -1 if frequencies are omitted. */
+    public long sumTotalTermFreq;
+    /** Number of documents with at least one term in this field. */
+    public int docCount;
+    public long[] docFreqHistogram = new long[HISTOGRAM_SIZE];
+    /** Top terms of this field, highest docFreq first. */
+    public TermStats[] topTerms;
+
+    public String toString() {
+      return "Collected term statistics of '" + field + "'";
+    }
+  }
+
+  private IndexReader reader;
+  private int numTopTerms;
+  private ExecutorService executor;
+  private TopTermsEngine engine;
+  private volatile boolean abort = false;
+  private ProgressNotification pn = new ProgressNotification();
+  private LinkedHashMap<String,FieldResult> results = new LinkedHashMap<String,FieldResult>();
+  private TermStats[] topTerms = null;
+  private boolean started = false;
+  private boolean done = false;
+  private Exception failure = null;
+
+  public IndexStatsJob(IndexReader reader) {
+    this(reader, DEFAULT_TOP_TERMS, null);
+  }
+
+  /**
+   * @param reader index reader
+   * @param numTopTerms number of top terms to collect
+   * @param executor executor that decodes segments, or null to use a
+   * private pool for the duration of the job
+   */
+  public IndexStatsJob(IndexReader reader, int numTopTerms, ExecutorService executor) {
+    this.reader = reader;
+    this.numTopTerms = numTopTerms;
+    this.executor = executor;
+  }
+
+  /**
+   * Run the job in a background thread, unless it was already started.
+   */
+  public void start() {
+    synchronized (this) {
+      if (started) {
+        return;
+      }
+      started = true;
+    }
+    Thread t = new Thread("IndexStatsJob") {
+      public void run() {
+        execute();
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Wait until the job is done. If it wasn't started yet it is run in the
+   * calling thread.
+   * @throws Exception if the job failed or was aborted
+   */
+  public void waitFor() throws Exception {
+    boolean run = false;
+    synchronized (this) {
+      if (!started) {
+        started = true;
+        run = true;
+      }
+    }
+    if (run) {
+      execute();
+    }
+    synchronized (this) {
+      while (!done) {
+        wait();
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  public synchronized boolean isStarted() {
+    return started;
+  }
+
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  public void abort() {
+    abort = true;
+    if (engine != null) {
+      engine.abort();
+    }
+  }
+
+  public boolean isAborted() {
+    return abort;
+  }
+
+  /**
+   * @return results of the fields done so far
+   */
+  public synchronized Map<String,FieldResult> getFieldResults() {
+    return new LinkedHashMap<String,FieldResult>(results);
+  }
+
+  /**
+   * @return the number of unique terms in the index
+   */
+  public long getNumTerms() throws Exception {
+    waitFor();
+    long numTerms = 0;
+    for (FieldResult fr : results.values()) {
+      numTerms += fr.termCount;
+    }
+    return numTerms;
+  }
+
+  public Map<String,FieldTermCount> getFieldTermCounts() throws Exception {
+    waitFor();
+    HashMap<String,FieldTermCount> termCounts = new HashMap<String,FieldTermCount>();
+    for (FieldResult fr : results.values()) {
+      FieldTermCount ftc = new FieldTermCount();
+      ftc.fieldname = fr.field;
+      ftc.termCount = fr.termCount;
+      termCounts.put(fr.field, ftc);
+    }
+    return termCounts;
+  }
+
+  /**
+   * @return top terms by docFreq across all fields
+   */
+  public TermStats[] getTopTerms() throws Exception {
+    waitFor();
+    return topTerms;
+  }
+
+  public int getNumTopTerms() {
+    return numTopTerms;
+  }
+
+  private void execute() {
+    try {
+      collect();
+    } catch (Exception e) {
+      failure = e;
+    } finally {
+      if (abort && failure == null) {
+        // partial results must not pass for exact ones
+        failure = new Exception("Collecting term statistics was aborted.");
+      }
+      pn.message = abort ? "User requested abort." : "Done.";
+      pn.aborted = abort;
+      pn.curValue = pn.maxValue;
+      publish(pn);
+      synchronized (this) {
+        done = true;
+        notifyAll();
+      }
+    }
+  }
+
+  private void collect() throws Exception {
+    Fields fields = MultiFields.getFields(reader);
+    if (fields == null) {
+      throw new Exception("There are no postings in the index reader.");
+    }
+    ArrayList<String> names = new ArrayList<String>();
+    for (String f : fields) {
+      names.add(f);
+    }
+    final List<AtomicReaderContext> leaves = reader.leaves();
+    int cpus = Runtime.getRuntime().availableProcessors();
+    final ExecutorService decodeExec = executor != null ? executor :
+      Executors.newFixedThreadPool(cpus);
+    // merge loops wait for decoding tasks, so they need their own threads
+    ExecutorService fieldExec = Executors.newFixedThreadPool(Math.max(1, Math.min(cpus, names.size())));
+    engine = new TopTermsEngine(reader, decodeExec);
+    if (abort) {
+      engine.abort();
+    }
+    pn.message = "Collecting term statistics ...";
+    pn.minValue = 0;
+    pn.maxValue = names.size();
+    pn.curValue = 0;
+    publish(pn);
+    ArrayList<Future<FieldResult>> futures = new ArrayList<Future<FieldResult>>();
+    try {
+      for (final String field : names) {
+        futures.add(fieldExec.submit(new Callable<FieldResult>() {
+          public FieldResult call() throws Exception {
+            FieldResult fr = collectField(field, leaves, decodeExec);
+            synchronized (IndexStatsJob.this) {
+              results.put(field, fr);
+              pn.curValue++;
+              pn.message = "Collected term statistics of '" + field + "' ...";
+            }
+            publish(fr);
+            publish(pn);
+            return fr;
+          }
+        }));
+      }
+      TopTermsScanner top = new TopTermsScanner(numTopTerms);
+      for (Future<FieldResult> f : futures) {
+        FieldResult fr = Util.getResult(f);
+        for (TermStats ts : fr.topTerms) {
+          top.offer(ts.field, ts.termtext, ts.docFreq, ts.totalTermFreq);
+        }
+      }
+      synchronized (this) {
+        // keep the order of fields in the index
+        LinkedHashMap<String,FieldResult> ordered = new LinkedHashMap<String,FieldResult>();
+        for (String field : names) {
+          ordered.put(field, results.get(field));
+        }
+        results = ordered;
+        topTerms = top.topTerms();
+      }
+    } finally {
+      for (Future<FieldResult> f : futures) {
+        f.cancel(true);
+      }
+      fieldExec.shutdownNow();
+      if (executor == null) {
+        decodeExec.shutdownNow();
+      }
+    }
+  }
+
+  private FieldResult collectField(final String field, List<AtomicReaderContext> leaves,
+      ExecutorService exec) throws Exception {
+    final FieldResult fr = new FieldResult();
+    fr.field = field;
+    for (AtomicReaderContext ctx : leaves) {
+      Terms terms = ctx.reader().terms(field);
+      if (terms == null) {
+        continue;
+      }
+      fr.sumDocFreq += terms.getSumDocFreq();
+      long sttf = terms.getSumTotalTermFreq();
+      fr.sumTotalTermFreq = sttf == -1 || fr.sumTotalTermFreq == -1 ? -1 : fr.sumTotalTermFreq + sttf;
+      fr.docCount += terms.getDocCount();
+    }
+    final TopTermsScanner scanner = new TopTermsScanner(numTopTerms);
+    engine.mergeField(field, leaves, exec, new TopTermsEngine.TermConsumer() {
+      public void term(BytesRef term, int docFreq, long totalTermFreq) {
+        fr.termCount++;
+        fr.docFreqHistogram[31 - Integer.numberOfLeadingZeros(Math.max(1, docFreq))]++;
+        scanner.offer(field, term, docFreq, totalTermFreq);
+      }
+    });
+    fr.topTerms = scanner.topTerms();
+    return fr;
+  }
+
+  private synchronized void publish(Object arg) {
+    setChanged();
+    notifyObservers(arg);
+  }
+}
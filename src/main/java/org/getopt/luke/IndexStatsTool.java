@@ -0,0 +1,356 @@
+package org.getopt.luke;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Command-line tool that collects the information shown in the Overview
+ * tab - files, commits, segments, term counts per field, top terms and
+ * deletions - without a display. The index is opened read-only, term
+ * statistics are collected in one parallel pass by {@link IndexStatsJob},
+ * and the results are written as JSON or TSV, so that they can be easily
+ * tracked by scripts.
+ * <p>In TSV output every line is a record, and the first column is the
+ * record type: <code>index, file, commit, segment, field, term</code>.
+ * Each group of records is preceded by a header line starting with '#'.</p>
+ */
+public class IndexStatsTool {
+  private IndexReader reader;
+  private Directory dir;
+  private String indexPath;
+  private int numTopTerms = IndexStatsJob.DEFAULT_TOP_TERMS;
+  private boolean estimate = false;
+  private boolean useCache = true;
+  private ExecutorService executor = null;
+  // record type -> records, in output order
+  private LinkedHashMap<String,List<LinkedHashMap<String,Object>>> records =
+    new LinkedHashMap<String,List<LinkedHashMap<String,Object>>>();
+
+  public IndexStatsTool(IndexReader reader, Directory dir, String indexPath) {
+    this.reader = reader;
+    this.dir = dir;
+    this.indexPath = indexPath;
+  }
+
+  public void setNumTopTerms(int numTopTerms) {
+    this.numTopTerms = numTopTerms;
+  }
+
+  /**
+   * Estimate term counts from per-segment sketches instead of counting them.
+   * @param estimate if true, estimate term counts
+   * @param useCache if true, use the persistent cache of segment statistics
+   */
+  public void setEstimate(boolean estimate, boolean useCache) {
+    this.estimate = estimate;
+    this.useCache = useCache;
+  }
+
+  /**
+   * @param executor executor for segment tasks, or null to use a private pool
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  private LinkedHashMap<String,Object> record(String type) {
+    List<LinkedHashMap<String,Object>> list = records.get(type);
+    if (list == null) {
+      list = new ArrayList<LinkedHashMap<String,Object>>();
+      records.put(type, list);
+    }
+    LinkedHashMap<String,Object> rec = new LinkedHashMap<String,Object>();
+    list.add(rec);
+    return rec;
+  }
+
+  /**
+   * Collect all statistics.
+   */
+  public void collect() throws Exception {
+    records.clear();
+    LinkedHashMap<String,Object> info = record("index");
+    info.put("path", indexPath);
+    info.put("numDocs", reader.numDocs());
+    info.put("maxDoc", reader.maxDoc());
+    info.put("numDeletedDocs", reader.numDeletedDocs());
+    info.put("numFields", Util.fieldNames(reader, false).size());
+    IndexCommit ic = null;
+    if (reader instanceof DirectoryReader) {
+      DirectoryReader dr = (DirectoryReader)reader;
+      info.put("version", dr.getVersion());
+      ic = dr.getIndexCommit();
+      info.put("generation", ic.getGeneration());
+      info.put("segmentCount", ic.getSegmentCount());
+    }
+    if (dir != null) {
+      IndexGate.FormatDetails format = IndexGate.getIndexFormat(dir);
+      info.put("format", format.genericName);
+      info.put("capabilities", format.capabilities);
+      info.put("directoryImpl", dir.getClass().getName());
+      info.put("totalFileSize", Util.calcTotalFileSize(indexPath, dir));
+      String[] files = dir.listAll();
+      Arrays.sort(files);
+      for (String file : files) {
+        LinkedHashMap<String,Object> rec = record("file");
+        rec.put("name", file);
+        rec.put("size", dir.fileLength(file));
+        rec.put("func", IndexGate.getFileFunction(file));
+      }
+      for (IndexCommit c : DirectoryReader.listCommits(dir)) {
+        LinkedHashMap<String,Object> rec = record("commit");
+        rec.put("segmentsFile", c.getSegmentsFileName());
+        rec.put("generation", c.getGeneration());
+        rec.put("segmentCount", c.getSegmentCount());
+        rec.put("files", c.getFileNames().size());
+        rec.put("current", ic != null && c.getGeneration() == ic.getGeneration());
+        rec.put("userData", String.valueOf(c.getUserData()));
+      }
+    }
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      if (!(ctx.reader() instanceof SegmentReader)) {
+        continue;
+      }
+      SegmentInfoPerCommit si = ((SegmentReader)ctx.reader()).getSegmentInfo();
+      LinkedHashMap<String,Object> rec = record("segment");
+      rec.put("name", si.info.name);
+      rec.put("codec", si.info.getCodec().getName());
+      rec.put("version", si.info.getVersion());
+      rec.put("docCount", si.info.getDocCount());
+      rec.put("delCount", si.getDelCount());
+      rec.put("delGen", si.getDelGen());
+      rec.put("compound", si.info.getUseCompoundFile());
+      rec.put("sizeInBytes", si.sizeInBytes());
+    }
+    collectTerms(info);
+  }
+
+  private void collectTerms(LinkedHashMap<String,Object> info) throws Exception {
+    ExecutorService exec = executor;
+    if (exec == null) {
+      exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+    try {
+      if (estimate) {
+        IndexInfo idxInfo = new IndexInfo(reader, indexPath);
+        SegmentStatsCache cache = useCache ? SegmentStatsCache.open(reader, indexPath) : null;
+        idxInfo.setStatsCache(cache);
+        idxInfo.setExecutor(exec);
+        info.put("numTerms", idxInfo.getEstimatedNumTerms());
+        info.put("numTermsEstimated", idxInfo.isTermCountEstimated());
+        Map<String,FieldTermCount> counts = idxInfo.getEstimatedFieldTermCounts();
+        for (String field : new TreeSet<String>(counts.keySet())) {
+          LinkedHashMap<String,Object> rec = record("field");
+          rec.put("name", field);
+          rec.put("terms", counts.get(field).termCount);
+        }
+        TopTermsEngine engine = new TopTermsEngine(reader, exec);
+        engine.setCache(cache);
+        addTopTerms(engine.getHighFreqTerms(numTopTerms, null));
+        if (cache != null) {
+          cache.save();
+        }
+      } else {
+        IndexStatsJob job = new IndexStatsJob(reader, numTopTerms, exec);
+        info.put("numTerms", job.getNumTerms());
+        info.put("numTermsEstimated", false);
+        for (IndexStatsJob.FieldResult fr : job.getFieldResults().values()) {
+          LinkedHashMap<String,Object> rec = record("field");
+          rec.put("name", fr.field);
+          rec.put("terms", fr.termCount);
+          rec.put("sumDocFreq", fr.sumDocFreq);
+          rec.put("sumTotalTermFreq", fr.sumTotalTermFreq);
+          rec.put("docCount", fr.docCount);
+          // drop empty buckets at the end
+          int len = fr.docFreqHistogram.length;
+          while (len > 0 && fr.docFreqHistogram[len - 1] == 0) {
+            len--;
+          }
+          rec.put("docFreqHistogram", Arrays.copyOf(fr.docFreqHistogram, len));
+        }
+        addTopTerms(job.getTopTerms());
+      }
+    } finally {
+      if (executor == null) {
+        exec.shutdownNow();
+      }
+    }
+  }
+
+  private void addTopTerms(TermStats[] topTerms) {
+    for (TermStats ts : topTerms) {
+      LinkedHashMap<String,Object> rec = record("term");
+      rec.put("field", ts.field);
+      rec.put("text", ts.termtext.utf8ToString());
+      rec.put("docFreq", ts.docFreq);
+      rec.put("totalTermFreq", ts.totalTermFreq);
+    }
+  }
+
+  /**
+   * Write collected statistics as a JSON object, with the index record as
+   * "index", and the other record types as arrays.
+   */
+  public void writeJSON(Writer w) throws IOException {
+    w.write("{");
+    boolean firstType = true;
+    for (Map.Entry<String,List<LinkedHashMap<String,Object>>> e : records.entrySet()) {
+      if (!firstType) {
+        w.write(",");
+      }
+      firstType = false;
+      w.write("\n \"" + e.getKey() + "\": ");
+      if (e.getKey().equals("index")) {
+        writeJSONObject(w, e.getValue().get(0));
+        continue;
+      }
+      w.write("[");
+      boolean first = true;
+      for (LinkedHashMap<String,Object> rec : e.getValue()) {
+        w.write(first ? "\n  " : ",\n  ");
+        first = false;
+        writeJSONObject(w, rec);
+      }
+      w.write("\n ]");
+    }
+    w.write("\n}\n");
+    w.flush();
+  }
+
+  private void writeJSONObject(Writer w, Map<String,Object> rec) throws IOException {
+    w.write("{");
+    boolean first = true;
+    for (Map.Entry<String,Object> e : rec.entrySet()) {
+      if (!first) {
+        w.write(", ");
+      }
+      first = false;
+      w.write("\"" + e.getKey() + "\": ");
+      Object v = e.getValue();
+      if (v instanceof long[]) {
+        long[] arr = (long[])v;
+        w.write("[");
+        for (int i = 0; i < arr.length; i++) {
+          if (i > 0) w.write(", ");
+          w.write(String.valueOf(arr[i]));
+        }
+        w.write("]");
+      } else if (v instanceof Number || v instanceof Boolean) {
+        w.write(v.toString());
+      } else {
+        w.write("\"" + Util.jsonEscape(String.valueOf(v)) + "\"");
+      }
+    }
+    w.write("}");
+  }
+
+  /**
+   * Write collected statistics as tab-separated records.
+   */
+  public void writeTSV(Writer w) throws IOException {
+    for (Map.Entry<String,List<LinkedHashMap<String,Object>>> e : records.entrySet()) {
+      List<LinkedHashMap<String,Object>> list = e.getValue();
+      if (list.isEmpty()) {
+        continue;
+      }
+      w.write("#" + e.getKey());
+      for (String key : list.get(0).keySet()) {
+        w.write("\t" + key);
+      }
+      w.write("\n");
+      for (LinkedHashMap<String,Object> rec : list) {
+        w.write(e.getKey());
+        for (Object v : rec.values()) {
+          w.write("\t");
+          if (v instanceof long[]) {
+            long[] arr = (long[])v;
+            for (int i = 0; i < arr.length; i++) {
+              if (i > 0) w.write(",");
+              w.write(String.valueOf(arr[i]));
+            }
+          } else {
+            w.write(Util.escape(String.valueOf(v)));
+          }
+        }
+        w.write("\n");
+      }
+    }
+    w.flush();
+  }
+
+  private static void usage() {
+    System.err.println("Usage: IndexStatsTool <indexPath> <outputFile> [-format json|tsv] [-top N] [-estimate] [-nocache] [-threads N]");
+    System.err.println("\tindexPath\tname of the directory containing the index");
+    System.err.println("\toutputFile\toutput file, or '-' for System.out");
+    System.err.println("\tformat\toutput format, default json");
+    System.err.println("\ttop\tnumber of top terms, default " + IndexStatsJob.DEFAULT_TOP_TERMS);
+    System.err.println("\testimate\testimate term counts from per-segment sketches (fast)");
+    System.err.println("\tnocache\tdon't use the cache of segment statistics in ~/" + SegmentStatsCache.CACHE_DIR);
+    System.err.println("\tthreads\tnumber of threads, default is the number of CPUs");
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      usage();
+      System.exit(-1);
+    }
+    boolean tsv = false;
+    int top = IndexStatsJob.DEFAULT_TOP_TERMS;
+    boolean estimate = false;
+    boolean useCache = true;
+    int threads = Runtime.getRuntime().availableProcessors();
+    for (int i = 2; i < args.length; i++) {
+      if (args[i].equals("-format") && i + 1 < args.length) {
+        String f = args[++i];
+        if (f.equals("tsv")) {
+          tsv = true;
+        } else if (!f.equals("json")) {
+          throw new Exception("Unknown format: '" + f + "'");
+        }
+      } else if (args[i].equals("-top") && i + 1 < args.length) {
+        top = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-threads") && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-estimate")) {
+        estimate = true;
+      } else if (args[i].equals("-nocache")) {
+        useCache = false;
+      } else {
+        usage();
+        throw new Exception("Unknown argument: '" + args[i] + "'");
+      }
+    }
+    Directory dir = FSDirectory.open(new File(args[0]));
+    if (!DirectoryReader.indexExists(dir)) {
+      throw new Exception("There is no valid Lucene index here: '" + args[0] + "'");
+    }
+    DirectoryReader reader = DirectoryReader.open(dir);
+    ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      IndexStatsTool tool = new IndexStatsTool(reader, dir, args[0]);
+      tool.setNumTopTerms(top);
+      tool.setEstimate(estimate, useCache);
+      tool.setExecutor(exec);
+      tool.collect();
+      OutputStream os = args[1].equals("-") ? System.out : new FileOutputStream(args[1]);
+      Writer w = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+      if (tsv) {
+        tool.writeTSV(w);
+      } else {
+        tool.writeJSON(w);
+      }
+      w.close();
+    } finally {
+      exec.shutdownNow();
+      reader.close();
+      dir.close();
+    }
+    System.exit(0);
+  }
+}
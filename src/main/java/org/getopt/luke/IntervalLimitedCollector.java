@@ -1,28 +1,40 @@
 package org.getopt.luke;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TimeLimitingCollector;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TopDocsCollector;
 import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
 
 public class IntervalLimitedCollector extends LimitedHitCollector {
   private long maxTime;
   private long lastDoc = 0;
-  private TopScoreDocCollector tdc;
+  private TopDocsCollector<?> tdc;
   private TopDocs topDocs = null;
   private TimeLimitingCollector thc;
+  // start of a concurrent search, shared by its sub-collectors
+  private long start = -1;
   
   
   public IntervalLimitedCollector(int maxTime, boolean outOfOrder, boolean shouldScore) {
+    this(maxTime, null, outOfOrder, shouldScore);
+  }
+
+  /**
+   * @param sort sort order, or null to rank hits by score
+   */
+  public IntervalLimitedCollector(int maxTime, Sort sort, boolean outOfOrder, boolean shouldScore) {
     this.maxTime = maxTime;
     this.outOfOrder = outOfOrder;
     this.shouldScore = shouldScore;
-    tdc = TopScoreDocCollector.create(1000, outOfOrder);
+    this.sort = sort;
+    tdc = createTopCollector(1000, sort, outOfOrder, shouldScore);
     thc = new TimeLimitingCollector(tdc, TimeLimitingCollector.getGlobalCounter(), maxTime);
   }
 
@@ -42,12 +54,19 @@ public class IntervalLimitedCollector extends LimitedHitCollector {
     return TYPE_TIME;
   }
 
-  @Override
-  public int getDocId(int pos) {
+  /**
+   * @return top hits collected so far
+   */
+  public TopDocs getTopDocs() {
     if (topDocs == null) {
       topDocs = tdc.topDocs();
     }
-    return topDocs.scoreDocs[pos].doc;
+    return topDocs;
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    return getTopDocs().scoreDocs[pos].doc;
   }
 
   /* (non-Javadoc)
@@ -55,15 +74,12 @@ public class IntervalLimitedCollector extends LimitedHitCollector {
    */
   @Override
   public float getScore(int pos) {
-    if (topDocs == null) {
-      topDocs = tdc.topDocs();
-    }
-    return topDocs.scoreDocs[pos].score;
+    return getTopDocs().scoreDocs[pos].score;
   }
 
   @Override
   public int getTotalHits() {
-    return tdc.getTotalHits();
+    return topDocs != null ? topDocs.totalHits : tdc.getTotalHits();
   }
 
   @Override
@@ -97,10 +113,37 @@ public class IntervalLimitedCollector extends LimitedHitCollector {
     }
   }
 
+  /**
+   * All sub-collectors count the time limit from the creation of the first
+   * one, when the search starts. Otherwise each would start counting when
+   * it gets its first segment, and slices that wait for a free thread would
+   * run past the limit.
+   */
+  @Override
+  public AccessibleHitCollector newSubCollector() {
+    if (start == -1) {
+      start = TimeLimitingCollector.getGlobalCounter().get();
+    }
+    IntervalLimitedCollector sub = new IntervalLimitedCollector((int)maxTime, sort, outOfOrder, shouldScore);
+    sub.thc.setBaseline(start);
+    return sub;
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    TopDocs[] slices = new TopDocs[subs.size()];
+    for (int i = 0; i < slices.length; i++) {
+      slices[i] = ((IntervalLimitedCollector)subs.get(i)).getTopDocs();
+    }
+    topDocs = mergeTopDocs(sort, 1000, slices);
+  }
+
   @Override
   public void reset() {
     lastDoc = 0;
-    tdc = TopScoreDocCollector.create(1000, outOfOrder);
+    topDocs = null;
+    start = -1;
+    tdc = createTopCollector(1000, sort, outOfOrder, shouldScore);
     thc = new TimeLimitingCollector(tdc, TimeLimitingCollector.getGlobalCounter(), maxTime);
   }
 }
@@ -58,7 +58,9 @@ import java.util.Observer;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JFileChooser;
 import javax.swing.UIManager;
@@ -120,6 +122,7 @@ import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.FuzzyQuery;
@@ -129,6 +132,8 @@ import org.apache.lucene.search.MultiTermQuery;
 import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.WildcardQuery;
@@ -192,11 +197,15 @@ public class Luke extends Thinlet implements ClipboardOwner {
   private IndexReader ir = null;
   private AtomicReader ar = null;
   private IndexSearcher is = null;
+  private ExecutorService searchPool = null;
+  private int searchThreads = 1;
+  private ResultSets resultSets = new ResultSets();
   private boolean slowAccess = false;
   private List<String> fn = null;
   private String[] idxFields = null;
   private FieldInfos infos = null;
   private IndexInfo idxInfo = null;
+  private ForwardIndex fwdIndex = null;
   private Map<String, FieldTermCount> termCounts;
   private List<LukePlugin> plugins = new ArrayList<LukePlugin>();
   private Object errorDlg = null;
@@ -237,7 +246,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
           {0x6375d6, 0xffffff, 0x7f8fdd, 0xd6dff5, 0x9caae5, 0x666666, 0x003399, 0xff3333, 0x666666}  // navy
   };
 
-  private int numTerms = 0;
+  private long numTerms = 0;
   private static boolean exitOnDestroy = false;
   private Class[] analyzers = null;
 
@@ -772,10 +781,21 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
   
+  /**
+   * Abort collecting term statistics of the current reader, so that a
+   * running job doesn't read a closed reader or cache partial counts.
+   */
+  private void abortStats() {
+    if (idxInfo != null) {
+      idxInfo.close();
+    }
+  }
+
   public void actionClose() {
     if (ir != null) {
       try {
         if (is != null) is = null;
+        abortStats();
         ir.close();
         if (ar != null) ar.close();
         if (dir != null) dir.close();
@@ -935,6 +955,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     statmsg = find("statmsg");
     if (dir != null) {
       try {
+        abortStats();
         if (ir != null) ir.close();
         if (ar != null) ar.close();
       } catch (Exception e) {}
@@ -1050,7 +1071,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
       } else {
         ir = new MultiReader((IndexReader[])readers.toArray(new IndexReader[readers.size()]));
       }
-      is = new IndexSearcher(ir);
+      is = newSearcher(ir);
       // XXX 
       slowAccess = false;
       initOverview();
@@ -1201,6 +1222,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
       }      
       // we need IndexReader from now on
       idxInfo = new IndexInfo(ir, pName);
+      idxInfo.setStatsCache(SegmentStatsCache.open(ir, pName));
       Object iDocs = find(pOver, "iDocs");
       String numdocs = String.valueOf(ir.numDocs());
       setString(iDocs, "text", numdocs);
@@ -1228,7 +1250,25 @@ public class Luke extends Thinlet implements ClipboardOwner {
       idxFields = (String[])fields.toArray(new String[fields.size()]);
       setString(iFields, "text", String.valueOf(idxFields.length));
       final Object iTerms = find(pOver, "iTerms");
+      final boolean estimate = Prefs.getBoolean(Prefs.P_ESTIMATE_TERMS, true);
+      setBoolean(find("ckEstTerms"), "selected", estimate);
+      setBoolean(find("ckFwdIndex"), "selected", Prefs.getBoolean(Prefs.P_FORWARD_INDEX, false));
+      setString(find("cntThreads"), "text", String.valueOf(Prefs.getInteger(Prefs.P_SEARCH_THREADS, 1)));
+      showResultSets();
       if (!slowAccess) {
+        // term counts and top terms share one pass over the terms
+        idxInfo.getStatsJob().addObserver(new Observer() {
+          long partial = 0;
+          public void update(Observable o, Object arg) {
+            if (arg instanceof IndexStatsJob.FieldResult) {
+              partial += ((IndexStatsJob.FieldResult)arg).termCount;
+              setString(iTerms, "text", partial + " ...");
+            }
+          }
+        });
+        if (!estimate) {
+          idxInfo.startStatsJob();
+        }
         Thread t = new Thread() {
           public void run() {
             Object r = create("row");
@@ -1238,9 +1278,15 @@ public class Luke extends Thinlet implements ClipboardOwner {
             setBoolean(cell, "enabled", false);
             setString(cell, "text", "..wait..");
             try {
-              numTerms = idxInfo.getNumTerms();
-              termCounts = idxInfo.getFieldTermCounts();
-              setString(iTerms, "text", String.valueOf(numTerms));
+              if (estimate) {
+                numTerms = idxInfo.getEstimatedNumTerms();
+                termCounts = idxInfo.getEstimatedFieldTermCounts();
+              } else {
+                numTerms = idxInfo.getNumTerms();
+                termCounts = idxInfo.getFieldTermCounts();
+              }
+              saveStatsCache();
+              showNumTerms();
               initFieldList(fList, fCombo, defFld);
             } catch (Exception e) {
               e.printStackTrace();
@@ -1302,10 +1348,31 @@ public class Luke extends Thinlet implements ClipboardOwner {
       }
       setString(iUser, "text", userData);
       final Object nTerms = find("nTerms");
+      setBoolean(find("ckApprox"), "selected", Prefs.getBoolean(Prefs.P_APPROX_TERMS, false));
       if (!slowAccess) {
         Thread t = new Thread() {
           public void run() {
-            actionTopTerms(nTerms);
+            if (getBoolean(find("ckApprox"), "selected")) {
+              actionTopTerms(nTerms);
+              return;
+            }
+            // default settings - use the shared statistics, and follow
+            // whatever computes them
+            Observable worker = idxInfo.getTopTermsWorker();
+            Progress progress = new Progress(Luke.this);
+            progress.setAbortable((Abortable)worker);
+            worker.addObserver(progress);
+            try {
+              TermStats[] topTerms = idxInfo.getTopTerms();
+              saveStatsCache();
+              showTopTerms(topTerms, TermMetric.DOC_FREQ);
+            } catch (Exception e) {
+              e.printStackTrace();
+              errorMsg(e.getMessage());
+            } finally {
+              worker.deleteObserver(progress);
+              progress.hide();
+            }
           }
         };
         t.start();
@@ -1322,6 +1389,15 @@ public class Luke extends Thinlet implements ClipboardOwner {
     removeAll(defFld);
     setString(fCombo, "text", idxFields[0]);
     setString(defFld, "text", idxFields[0]);
+    Object sortFld = find("sortFld");
+    removeAll(sortFld);
+    Object scoreChoice = create("choice");
+    setString(scoreChoice, "text", "(score)");
+    add(sortFld, scoreChoice);
+    setInteger(sortFld, "selected", 0);
+    setString(sortFld, "text", "(score)");
+    Object facetFlds = find("facetFlds");
+    removeAll(facetFlds);
     NumberFormat intCountFormat = NumberFormat.getIntegerInstance();
     NumberFormat percentFormat = NumberFormat.getNumberInstance();
     intCountFormat.setGroupingUsed(true);
@@ -1378,6 +1454,12 @@ public class Luke extends Thinlet implements ClipboardOwner {
       add(defFld, choice);
       setString(choice, "text", s);
       putProperty(choice, "fName", s);
+      choice = create("choice");
+      add(sortFld, choice);
+      setString(choice, "text", s);
+      Object item = create("item");
+      setString(item, "text", s);
+      add(facetFlds, item);
     }
     setString(find("defFld"), "text", idxFields[0]);
     // Remove columns
@@ -1686,6 +1768,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
       showStatus("Already open at this commit point.");
       return;
     }
+    abortStats();
     ir.close();
     IndexDeletionPolicy policy;
     if (keepCommits) {
@@ -1822,58 +1905,42 @@ public class Luke extends Thinlet implements ClipboardOwner {
       }
     }
     final String[] fflds = flds;
+    int m = getSelectedIndex(find("cbMetric"));
+    final boolean approx = getBoolean(find("ckApprox"), "selected");
+    // approximate mode ranks by docFreq only
+    final int metric = m < 0 || approx ? TermMetric.DOC_FREQ : m;
+    float sample = 1.0f;
+    try {
+      sample = Integer.parseInt(getString(find("approxSample"), "text")) / 100.0f;
+    } catch (Exception e) {}
+    final float sampleRatio = sample;
     SlowThread st = new SlowThread(this) {
       public void execute() {
+        Progress progress = new Progress(Luke.this);
         try {
-          TermStats[] topTerms = HighFreqTerms.getHighFreqTerms(ir, ndoc, fflds);
-          Object table = find("tTable");
-          removeAll(table);
-          if (topTerms == null || topTerms.length == 0) {
-            Object row = create("row");
-            Object cell = create("cell");
-            add(row, cell);
-            cell = create("cell");
-            add(row, cell);
-            cell = create("cell");
-            add(row, cell);
-            cell = create("cell");
-            setBoolean(cell, "enabled", false);
-            setString(cell, "text", "No Results");
-            add(row, cell);
-            add(table, row);
-            return;
+          TopTermsEngine engine = new TopTermsEngine(ir);
+          if (idxInfo != null) {
+            engine.setCache(idxInfo.getStatsCache());
           }
-          for (int i = 0; i < topTerms.length; i++) {
-            Object row = create("row");
-            add(table, row);
-            putProperty(row, "term", new Term(topTerms[i].field, topTerms[i].termtext));
-            putProperty(row, "ti", topTerms[i]);
-            Object cell = create("cell");
-            setChoice(cell, "alignment", "right");
-            setString(cell, "text", String.valueOf(i + 1));
-            add(row, cell);
-            cell = create("cell");
-            setChoice(cell, "alignment", "right");
-            setString(cell, "text", String.valueOf(topTerms[i].docFreq) + "  ");
-            add(row, cell);
-            cell = create("cell");
-            setString(cell, "text", topTerms[i].field);
-            add(row, cell);
-            cell = create("cell");
-            Decoder dec = decoders.get(topTerms[i].field);
-            if (dec == null) dec = defDecoder;
-            String s;
-            try {
-              s = dec.decodeTerm(topTerms[i].field, topTerms[i].termtext.utf8ToString());
-            } catch (Throwable e) {
-              //e.printStackTrace();
-              s = topTerms[i].termtext.utf8ToString();
-              setColor(cell, "foreground", Color.RED);
-            }
-            setString(cell, "text", "  " + s);
-            add(row, cell);
+          engine.addObserver(progress);
+          progress.setAbortable(engine);
+          TermStats[] topTerms;
+          if (approx) {
+            topTerms = engine.getApproxHighFreqTerms(ndoc, fflds, sampleRatio);
+          } else {
+            topTerms = engine.getHighFreqTerms(ndoc, fflds, metric);
+            saveStatsCache();
           }
+          progress.hide();
+          setBoolean(find("bExactTerms"), "enabled", approx);
+          if (engine.isAborted()) {
+            showStatus("Top terms aborted - showing partial results.");
+          } else if (approx) {
+            showStatus("Approximate top terms - press 'Exact' to refine.");
+          }
+          showTopTerms(topTerms, metric);
         } catch (Exception e) {
+          progress.hide();
           e.printStackTrace();
           errorMsg(e.getMessage());
         }
@@ -1886,13 +1953,167 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
   
+  /**
+   * Fill the table of top terms.
+   * @param topTerms terms to show
+   * @param metric metric used for ranking the terms
+   */
+  private void showTopTerms(TermStats[] topTerms, int metric) {
+    Object table = find("tTable");
+    removeAll(table);
+    if (topTerms == null || topTerms.length == 0) {
+      Object row = create("row");
+      Object cell = create("cell");
+      add(row, cell);
+      cell = create("cell");
+      add(row, cell);
+      cell = create("cell");
+      add(row, cell);
+      cell = create("cell");
+      add(row, cell);
+      cell = create("cell");
+      add(row, cell);
+      cell = create("cell");
+      setBoolean(cell, "enabled", false);
+      setString(cell, "text", "No Results");
+      add(row, cell);
+      add(table, row);
+      return;
+    }
+    for (int i = 0; i < topTerms.length; i++) {
+      Object row = create("row");
+      add(table, row);
+      putProperty(row, "term", new Term(topTerms[i].field, topTerms[i].termtext));
+      putProperty(row, "ti", topTerms[i]);
+      Object cell = create("cell");
+      setChoice(cell, "alignment", "right");
+      setString(cell, "text", String.valueOf(i + 1));
+      add(row, cell);
+      cell = create("cell");
+      setChoice(cell, "alignment", "right");
+      setString(cell, "text", formatDocFreq(topTerms[i]) + "  ");
+      add(row, cell);
+      cell = create("cell");
+      setChoice(cell, "alignment", "right");
+      String ttf = topTerms[i].totalTermFreq == -1 ? "N/A" : String.valueOf(topTerms[i].totalTermFreq);
+      setString(cell, "text", ttf + "  ");
+      add(row, cell);
+      cell = create("cell");
+      setChoice(cell, "alignment", "right");
+      double value = TermMetric.value(metric, topTerms[i], ir.maxDoc());
+      setString(cell, "text", (metric == TermMetric.IDF_WEIGHTED ? df.format(value) :
+        String.valueOf((long)value)) + "  ");
+      add(row, cell);
+      cell = create("cell");
+      setString(cell, "text", topTerms[i].field);
+      add(row, cell);
+      cell = create("cell");
+      Decoder dec = decoders.get(topTerms[i].field);
+      if (dec == null) dec = defDecoder;
+      String s;
+      try {
+        s = dec.decodeTerm(topTerms[i].field, topTerms[i].termtext.utf8ToString());
+      } catch (Throwable e) {
+        //e.printStackTrace();
+        s = topTerms[i].termtext.utf8ToString();
+        setColor(cell, "foreground", Color.RED);
+      }
+      setString(cell, "text", "  " + s);
+      add(row, cell);
+    }
+  }
+
+  private void showNumTerms() {
+    boolean estimated = idxInfo.isTermCountEstimated();
+    setString(find("iTerms"), "text", (estimated ? "~" : "") + String.valueOf(numTerms));
+    setBoolean(find("bExactCount"), "visible", estimated);
+  }
+
+  /**
+   * Replace estimated term counts with exact ones.
+   */
+  public void actionCountTerms() {
+    if (idxInfo == null) {
+      return;
+    }
+    SlowThread st = new SlowThread(this) {
+      public void execute() {
+        try {
+          numTerms = idxInfo.getNumTerms();
+          termCounts = idxInfo.getFieldTermCounts();
+          saveStatsCache();
+          showNumTerms();
+          Object pOver = find("pOver");
+          initFieldList(find(pOver, "fList"), find("fCombo"), find("defFld"));
+        } catch (Exception e) {
+          e.printStackTrace();
+          errorMsg("Can't count terms: " + e.getMessage());
+        }
+      }
+    };
+    if (slowAccess) {
+      st.start();
+    } else {
+      st.execute();
+    }
+  }
+
+  public void toggleEstimateTerms(Object ckEstTerms) {
+    Prefs.setProperty(Prefs.P_ESTIMATE_TERMS, String.valueOf(getBoolean(ckEstTerms, "selected")));
+  }
+
+  public void toggleForwardIndex(Object ckFwdIndex) {
+    boolean enabled = getBoolean(ckFwdIndex, "selected");
+    Prefs.setProperty(Prefs.P_FORWARD_INDEX, String.valueOf(enabled));
+    if (!enabled) {
+      fwdIndex = null;
+    }
+  }
+
+  private void saveStatsCache() {
+    SegmentStatsCache cache = idxInfo != null ? idxInfo.getStatsCache() : null;
+    if (cache == null) {
+      return;
+    }
+    try {
+      cache.save();
+    } catch (Exception e) {
+      e.printStackTrace();
+      showStatus("Can't save term statistics cache: " + e.getMessage());
+    }
+  }
+
+  private String formatDocFreq(TermStats ts) {
+    if (!ts.estimated) {
+      return String.valueOf(ts.docFreq);
+    }
+    if (ts.docFreqError > 0) {
+      // the true value is in [docFreq - error, docFreq]
+      return (ts.docFreq - ts.docFreqError) + ".." + ts.docFreq;
+    }
+    return "~" + ts.docFreq;
+  }
+
+  /**
+   * Refine approximate top terms with an exact scan.
+   * @param nTerms Thinlet widget containing the number of top terms to show
+   */
+  public void actionExactTopTerms(Object nTerms) {
+    setBoolean(find("ckApprox"), "selected", false);
+    actionTopTerms(nTerms);
+  }
+
+  public void toggleApproxTopTerms(Object ckApprox) {
+    Prefs.setProperty(Prefs.P_APPROX_TERMS, String.valueOf(getBoolean(ckApprox, "selected")));
+  }
+
   public void clipTopTerms(Object tTable) {
     Object[] rows = getItems(tTable);
     StringBuffer sb = new StringBuffer();
     for (int i = 0; i < rows.length; i++) {
       TermStats ti = (TermStats)getProperty(rows[i], "ti");
       if (ti == null) continue;
-      sb.append(ti.docFreq + "\t" + ti.field + "\t" + ti.termtext.utf8ToString() + "\n");
+      sb.append(formatDocFreq(ti) + "\t" + ti.totalTermFreq + "\t" + ti.field + "\t" + ti.termtext.utf8ToString() + "\n");
     }
     StringSelection sel = new StringSelection(sb.toString());
     Toolkit.getDefaultToolkit().getSystemClipboard().setContents(sel, this);
@@ -1995,6 +2216,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
       if (is != null) {
         is = null;
       }
+      abortStats();
       if (ir != null) {
         ir.close();
         ir = null;
@@ -2013,7 +2235,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
         dir = null;
       }
       ir = reader;
-      is = new IndexSearcher(ir);
+      is = newSearcher(ir);
       pName = indexName;
       initOverview();
       initPlugins();
@@ -2229,6 +2451,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
       if (is != null) {
         is = null;
       }
+      abortStats();
       if (ir != null) {
         ir.close();
       }
@@ -2318,6 +2541,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
   public void export(final Object dialog) {
     Object ckOver = find(dialog, "ckOver");
     Object ckGzip = find(dialog, "ckGzip");
+    Object ckRecon = find(dialog, "ckRecon");
     Object path = find(dialog, "path");
     Object ckRanges = find(dialog, "ckRanges");
     Object list = find(dialog, "ranges");
@@ -2329,6 +2553,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
     boolean over = getBoolean(ckOver, "selected");
     boolean gzip = getBoolean(ckGzip, "selected");
+    boolean recon = getBoolean(ckRecon, "selected");
     if (gzip && !fileName.endsWith(".gz")) {
       fileName = fileName + ".gz";
       setString(path, "text", fileName);
@@ -2378,26 +2603,38 @@ public class Luke extends Thinlet implements ClipboardOwner {
     setBoolean(find(dialog, "abortButton"), "visible", true);
     setBoolean(find(dialog, "closeButton"), "enabled", false);
     try {
-      _runExport(out, gzip, obs, dialog, ranges);
+      _runExport(out, gzip, recon, obs, dialog, ranges);
     } catch (IOException ioe) {
       errorMsg("Export failed: " + ioe.toString());
     }
   }
   
+  private List<String> fieldList(String text) {
+    text = text.trim();
+    if (text.length() == 0) {
+      return null;
+    }
+    return Arrays.asList(text.split("\\s*,\\s*"));
+  }
+
   XMLExporter exporter = null;
   
-  public void _runExport(final File out, final boolean gzip, Observer obs,
+  public void _runExport(final File out, final boolean gzip, boolean recon, Observer obs,
       final Object dialog, final Ranges ranges) throws IOException {
     exporter = new XMLExporter(ir, pName, decoders);
+    exporter.setIndexInfo(idxInfo);
+    exporter.setReconstruct(recon);
+    exporter.setGzip(gzip);
+    exporter.setFields(fieldList(getString(find(dialog, "inclFields"), "text")),
+        fieldList(getString(find(dialog, "exclFields"), "text")));
+    exporter.setTermVectors(getBoolean(find(dialog, "ckTv"), "selected"));
+    exporter.setNorms(getBoolean(find(dialog, "ckNorms"), "selected"));
     exporter.addObserver(obs);
     Thread t = new Thread() {
       public void run() {
         OutputStream os = null;
         try {
           os = new FileOutputStream(out);
-          if (gzip) {
-            os = new GZIPOutputStream(os);
-          }
           exporter.export(os, true, true, true, "index", ranges);
           exporter = null;
         } catch (Exception e) {
@@ -2474,6 +2711,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
         int segnum = Integer.parseInt(getString(segnumSpin, "text"));
         try {
           if (is != null) is = null;
+          abortStats();
           if (ir != null) ir.close();
           if (ar != null) ar.close();
           IndexDeletionPolicy policy;
@@ -2538,7 +2776,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
         }
         try {
           actionReopen();
-          is = new IndexSearcher(ir);
+          is = newSearcher(ir);
           // add dialog again
           add(dialog);
         } catch (Exception e) {
@@ -2637,7 +2875,13 @@ public class Luke extends Thinlet implements ClipboardOwner {
       public void run() {
         try {
           int docNum = nums[0];
-          DocReconstructor recon = new DocReconstructor(ir, idxFields, numTerms);
+          DocReconstructor recon = new DocReconstructor(ir, idxFields);
+          if (Prefs.getBoolean(Prefs.P_FORWARD_INDEX, false)) {
+            if (fwdIndex == null) {
+              fwdIndex = new ForwardIndex();
+            }
+            recon.setForwardIndex(fwdIndex);
+          }
           recon.addObserver(progress);
           Reconstructed doc = recon.reconstruct(docNum);
           Object dialog = addComponent(null, "/xml/editdoc.xml", null, null);
@@ -2827,6 +3071,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     boolean res = false;
     String msg = null;
     try {
+      abortStats();
       ir.close();
       if (ar != null) {
         ar.close();
@@ -3987,7 +4232,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
       public void execute() {
         IndexSearcher is = null;
         try {
-          is = new IndexSearcher(ir);
+          is = newSearcher(ir);
           Object sTable = find("sTable");
           removeAll(sTable);
           AllHitsCollector ahc = new AllHitsCollector(orderRes, scoreRes);
@@ -4184,7 +4429,9 @@ public class Luke extends Thinlet implements ClipboardOwner {
   public AccessibleHitCollector createCollector(Object srchOpts) throws Exception {
     Object ckNormRes = find(srchOpts, "ckNormRes");
     Object ckAllRes = find(srchOpts, "ckAllRes");
+    Object ckPagedRes = find(srchOpts, "ckPagedRes");
     Object ckLimRes = find(srchOpts, "ckLimRes");
+    Object ckBudgetRes = find(srchOpts, "ckBudgetRes");
     Object ckLimTime = find(srchOpts, "ckLimTime");
     Object limTime = find(srchOpts, "limTime");
     Object ckLimCount = find(srchOpts, "ckLimCount");
@@ -4193,19 +4440,27 @@ public class Luke extends Thinlet implements ClipboardOwner {
     Object ckOrderRes = find(srchOpts, "ckOrderRes");
     boolean scoreRes = getBoolean(ckScoreRes, "selected");
     boolean orderRes = getBoolean(ckOrderRes, "selected");
+    Sort sort = createSort(srchOpts);
     Collector hc = null;
     if (getBoolean(ckNormRes, "selected")) {
-      return new AccessibleTopHitCollector(1000, orderRes, scoreRes);
+      return new AccessibleTopHitCollector(1000, sort, orderRes, scoreRes);
+    } else if (getBoolean(ckPagedRes, "selected")) {
+      return new SearchAfterCollector(resCount, sort, orderRes, scoreRes);
     } else if (getBoolean(ckAllRes, "selected")) {
       return new AllHitsCollector(orderRes, scoreRes);
+    } else if (getBoolean(ckBudgetRes, "selected")) {
+      long time = Long.parseLong(getString(find(srchOpts, "budTime"), "text"));
+      int count = Integer.parseInt(getString(find(srchOpts, "budCount"), "text"));
+      long mb = Long.parseLong(getString(find(srchOpts, "budMem"), "text"));
+      return new BudgetCollector(1000, sort, time, count, mb * 1024 * 1024, scoreRes);
     } else if (getBoolean(ckLimRes, "selected")) {
       // figure out the type
       if (getBoolean(ckLimCount, "selected")) {
         int lim = Integer.parseInt(getString(limCount, "text"));
-        return new CountLimitedHitCollector(lim, orderRes, scoreRes);
+        return new CountLimitedHitCollector(lim, sort, orderRes, scoreRes);
       } else if (getBoolean(ckLimTime, "selected")) {
         int lim = Integer.parseInt(getString(limTime, "text"));
-        return new IntervalLimitedCollector(lim, orderRes, scoreRes);
+        return new IntervalLimitedCollector(lim, sort, orderRes, scoreRes);
       } else {
         throw new Exception("Unknown LimitedHitCollector type");
       }
@@ -4214,6 +4469,78 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
 
+  private static final SortField.Type[] SORT_TYPES = {
+    null, SortField.Type.STRING, SortField.Type.INT, SortField.Type.LONG,
+    SortField.Type.FLOAT, SortField.Type.DOUBLE
+  };
+
+  /**
+   * Create the sort order selected in the search options.
+   * @return sort order, or null to rank hits by score
+   */
+  public Sort createSort(Object srchOpts) throws Exception {
+    Object sortFld = find(srchOpts, "sortFld");
+    String field = getString(sortFld, "text");
+    if (getSelectedIndex(sortFld) <= 0 || field == null || field.length() == 0) {
+      return null;
+    }
+    SortField.Type type = SORT_TYPES[Math.max(0, getSelectedIndex(find(srchOpts, "sortType")))];
+    if (type == null) {
+      type = SortFieldInfo.detectType(ir, field);
+    }
+    boolean reverse = getBoolean(find(srchOpts, "ckSortRev"), "selected");
+    return new Sort(new SortField(field, type, reverse));
+  }
+
+  /**
+   * Load the values of the selected sort field, and show their heap cost
+   * and load time.
+   */
+  public void checkSort(final Object srchOpts) {
+    if (ir == null) {
+      showStatus(MSG_NOINDEX);
+      return;
+    }
+    final Sort sort;
+    try {
+      sort = createSort(srchOpts);
+    } catch (Exception e) {
+      errorMsg(e.toString());
+      return;
+    }
+    final Object sortInfo = find(srchOpts, "sortInfo");
+    if (sort == null) {
+      setString(sortInfo, "text", "Hits are ranked by score.");
+      return;
+    }
+    SlowThread st = new SlowThread(this) {
+      public void execute() {
+        showSortInfo(sort, sortInfo);
+      }
+    };
+    if (slowAccess) {
+      st.start();
+    } else {
+      st.execute();
+    }
+  }
+
+  private void showSortInfo(Sort sort, Object sortInfo) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      for (SortField sf : sort.getSort()) {
+        if (sf.getField() != null) {
+          if (sb.length() > 0) sb.append("; ");
+          sb.append(SortFieldInfo.load(ir, sf.getField(), sf.getType()).toString());
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      sb.append("ERROR loading sort field: " + e.toString());
+    }
+    setString(sortInfo, "text", sb.toString());
+  }
+
   public void explainStructure(Object qTabs) {
     Object qField = find("qField");
     String queryS = getString(qField, "text");
@@ -4235,6 +4562,14 @@ public class Luke extends Thinlet implements ClipboardOwner {
   }
   
   private void _explainStructure(Object parent, Query q) {
+    _explainStructure(parent, q, null);
+  }
+
+  /**
+   * Add a query and its clauses to the structure tree.
+   * @param prof profile of the query, to show the cost of each clause, or null
+   */
+  private void _explainStructure(Object parent, Query q, QueryProfiler prof) {
     String clazz = q.getClass().getName();
     if (clazz.startsWith("org.apache.lucene.")) {
       clazz = "lucene." + q.getClass().getSimpleName();
@@ -4285,7 +4620,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
         }
         setString(n1, "text", "Clause " + i + ": " + occur);
         add(n, n1);
-        _explainStructure(n1, clauses[i].getQuery());
+        _explainStructure(n1, clauses[i].getQuery(), prof);
       }
     } else if (clazz.equals("lucene.PrefixQuery")) {
       Object n1 = create("node");
@@ -4403,6 +4738,12 @@ public class Luke extends Thinlet implements ClipboardOwner {
         setString(n1, "text", "TermEnum: Exception " + e.getMessage());
         add(n, n1);
       }
+    } else if (q instanceof DisjunctionMaxQuery) {
+      DisjunctionMaxQuery dq = (DisjunctionMaxQuery)q;
+      setString(n, "text", getString(n, "text") + ", tieBreaker=" + df.format(dq.getTieBreakerMultiplier()));
+      for (Query d : dq) {
+        _explainStructure(n, d, prof);
+      }
     } else if (q instanceof ConstantScoreQuery) {
       ConstantScoreQuery cq = (ConstantScoreQuery)q;
       setString(n, "text", getString(n, "text") + ", " + cq.toString());
@@ -4411,14 +4752,14 @@ public class Luke extends Thinlet implements ClipboardOwner {
       if (cq.getFilter() != null) {
         setString(n1, "text", "Filter: " + cq.getFilter().toString());
       } else if (cq.getQuery() != null) {
-        _explainStructure(n, cq.getQuery());
+        _explainStructure(n, cq.getQuery(), prof);
       }
     } else if (q instanceof FilteredQuery) {
       FilteredQuery fq = (FilteredQuery)q;
       Object n1 = create("node");
       setString(n1, "text", "Filter: " + fq.getFilter().toString());
       add(n, n1);
-      _explainStructure(n, fq.getQuery());
+      _explainStructure(n, fq.getQuery(), prof);
     } else if (q instanceof SpanQuery) {
       SpanQuery sq = (SpanQuery)q;
       Class sqlass = sq.getClass();
@@ -4427,12 +4768,12 @@ public class Luke extends Thinlet implements ClipboardOwner {
         SpanOrQuery soq = (SpanOrQuery)sq;
         setString(n, "text", getString(n, "text") + ", " + soq.getClauses().length + " clauses");
         for (SpanQuery sq1 : soq.getClauses()) {
-          _explainStructure(n, sq1);
+          _explainStructure(n, sq1, prof);
         }
       } else if (sqlass == SpanFirstQuery.class) {
         SpanFirstQuery sfq = (SpanFirstQuery)sq;
         setString(n, "text", getString(n, "text") + ", end=" + sfq.getEnd() + ", match:");
-        _explainStructure(n, sfq.getMatch());
+        _explainStructure(n, sfq.getMatch(), prof);
       } else if (q instanceof SpanNearQuery) { // catch also known subclasses
         SpanNearQuery snq = (SpanNearQuery)sq;
         setString(n, "text", getString(n, "text") + ", slop=" + snq.getSlop());
@@ -4447,18 +4788,18 @@ public class Luke extends Thinlet implements ClipboardOwner {
           }
         }
         for (SpanQuery sq1 : snq.getClauses()) {
-          _explainStructure(n, sq1);
+          _explainStructure(n, sq1, prof);
         }
       } else if (sqlass == SpanNotQuery.class) {
         SpanNotQuery snq = (SpanNotQuery)sq;
         Object n1 = create("node");
         add(n, n1);
         setString(n1, "text", "Include:");
-        _explainStructure(n1, snq.getInclude());
+        _explainStructure(n1, snq.getInclude(), prof);
         n1 = create("node");
         add(n, n1);
         setString(n1, "text", "Exclude:");
-        _explainStructure(n1, snq.getExclude());
+        _explainStructure(n1, snq.getExclude(), prof);
       } else if (q instanceof SpanTermQuery) {
         SpanTermQuery stq = (SpanTermQuery)sq;
         setString(n, "text", getString(n, "text") + ", term=" + stq.getTerm());        
@@ -4538,6 +4879,91 @@ public class Luke extends Thinlet implements ClipboardOwner {
         add(n, n1);
       }
     }
+    if (prof != null) {
+      addProfile(n, prof.getStats(q));
+    }
+  }
+
+  /**
+   * Show the cost of a clause on its node, with the counts of each segment
+   * below.
+   */
+  private void addProfile(Object n, QueryProfiler.ClauseStats cs) {
+    if (cs == null) {
+      return;
+    }
+    QueryProfiler.SegmentStats total = cs.getTotal();
+    setString(n, "text", getString(n, "text") + "  [" + total.getTime() / 1000 +
+        " us, matched=" + total.matched + "]");
+    Object n1 = create("node");
+    setString(n1, "text", "Profile: " + total.toString());
+    setBoolean(n1, "expanded", false);
+    add(n, n1, 0);
+    for (int i = 0; i < cs.getNumSegments(); i++) {
+      QueryProfiler.SegmentStats s = cs.getSegment(i);
+      if (s == null || s.isEmpty()) {
+        continue;
+      }
+      Object n2 = create("node");
+      setString(n2, "text", "segment " + i + ": " + s.toString());
+      add(n1, n2);
+    }
+  }
+
+  /**
+   * Search with the rewritten query, measuring each clause, and show the
+   * cost of each clause in the structure tree.
+   * @param qExplain query structure dialog
+   */
+  public void profileStructure(final Object qExplain) {
+    if (ir == null) {
+      showStatus(MSG_NOINDEX);
+      return;
+    }
+    final Query q = (Query)getProperty(find("qField"), "qParsed");
+    if (q == null) {
+      return;
+    }
+    Object srchOpts = find("srchOptTabs");
+    final Similarity sim = createSimilarity(srchOpts);
+    final AccessibleHitCollector col;
+    try {
+      col = createCollector(srchOpts);
+    } catch (Throwable t) {
+      errorMsg("ERROR creating Collector: " + t.getMessage());
+      return;
+    }
+    SlowThread t = new SlowThread(this) {
+      public void execute() {
+        try {
+          IndexSearcher is = newSearcher(ir);
+          is.setSimilarity(sim);
+          Query rq = is.rewrite(q);
+          QueryProfiler prof = new QueryProfiler(rq, ir);
+          long start = System.nanoTime();
+          try {
+            // sequentially, as the counts are not thread-safe
+            is.search(prof.getQuery(), col);
+          } catch (LimitedException e) {
+            // the clauses were measured up to the limit
+          }
+          long delta = (System.nanoTime() - start) / 1000;
+          Object tree = find(qExplain, "qTree");
+          removeAll(tree);
+          _explainStructure(tree, rq, prof);
+          showStatus("Profiled rewritten query: " + delta + " us, " + col.getTotalHits() +
+              " hits. Times include those of sub-clauses.");
+        } catch (Throwable th) {
+          th.printStackTrace();
+          errorMsg("ERROR profiling: " + th.toString());
+        }
+      }
+    };
+    if (slowAccess) {
+      t.start();
+    } else {
+      t.execute();
+    }
   }
   
   private void addAutomaton(Object parent, Automaton a) {
@@ -4679,6 +5105,17 @@ public class Luke extends Thinlet implements ClipboardOwner {
     AccessibleHitCollector col;
     try {
       col = createCollector(srchOpts);
+      Object[] facets = getSelectedItems(find(srchOpts, "facetFlds"));
+      if (facets.length > 0) {
+        String[] fields = new String[facets.length];
+        for (int i = 0; i < facets.length; i++) {
+          fields[i] = getString(facets[i], "text");
+        }
+        col = new FacetCollector(col, fields, ir);
+      }
+      if (getBoolean(find(srchOpts, "ckKeepSets"), "selected")) {
+        col = new ResultSetCollector(col, ir.maxDoc());
+      }
     } catch (Throwable t) {
       errorMsg("ERROR creating Collector: " + t.getMessage());
       return;
@@ -4686,6 +5123,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     Object sTable = find("sTable");
     Object cntRepeat = find("cntRepeat");
     int repeat = Integer.parseInt(getString(cntRepeat, "text"));
+    setSearchThreads(Integer.parseInt(getString(find("cntThreads"), "text")));
     removeAll(sTable);
     Query q = null;
     try {
@@ -4702,6 +5140,417 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
   
+  /**
+   * Set the number of threads that search the leaves of the index. With
+   * more than one, searchers run on a shared pool of that size.
+   */
+  public void setSearchThreads(int threads) {
+    threads = Math.max(1, threads);
+    if (threads == Prefs.getInteger(Prefs.P_SEARCH_THREADS, 1) && threads == searchThreads) {
+      return;
+    }
+    Prefs.setProperty(Prefs.P_SEARCH_THREADS, String.valueOf(threads));
+    if (searchPool != null) {
+      searchPool.shutdown();
+      searchPool = null;
+    }
+    searchThreads = threads;
+    if (ir != null) {
+      // the old searcher holds the old pool
+      is = newSearcher(ir);
+    }
+  }
+
+  private ExecutorService getSearchPool() {
+    if (searchPool == null && searchThreads > 1) {
+      searchPool = Executors.newFixedThreadPool(searchThreads, new ThreadFactory() {
+        int cnt = 0;
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "luke-search-" + (cnt++));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return searchPool;
+  }
+
+  /**
+   * Create a searcher, that searches on the search pool when more than one
+   * search thread is set.
+   */
+  private IndexSearcher newSearcher(IndexReader reader) {
+    searchThreads = Math.max(1, Prefs.getInteger(Prefs.P_SEARCH_THREADS, 1));
+    ExecutorService pool = getSearchPool();
+    return pool != null ? new IndexSearcher(reader, pool) : new IndexSearcher(reader);
+  }
+
+  private static final String[] LIMIT_NAMES = {"time", "hit count", "memory"};
+
+  /**
+   * Keep the hits of a search as a result set, if they were recorded.
+   * @param partial true if the search stopped at a limit
+   */
+  private void keepResultSet(AccessibleHitCollector hc, Query q, boolean partial) {
+    ResultSetCollector rsc = FilterHitCollector.find(hc, ResultSetCollector.class);
+    if (rsc == null) {
+      return;
+    }
+    resultSets.put(ir, q, rsc.getBits().clone(), partial);
+    showResultSets();
+  }
+
+  /**
+   * List the result sets of the current index, selecting the last two.
+   */
+  private void showResultSets() {
+    List<ResultSets.ResultSet> sets = ir != null ? resultSets.getSets(ir) :
+      new ArrayList<ResultSets.ResultSet>();
+    Object[] combos = {find("rsA"), find("rsB")};
+    for (int c = 0; c < combos.length; c++) {
+      removeAll(combos[c]);
+      for (ResultSets.ResultSet rs : sets) {
+        Object choice = create("choice");
+        setString(choice, "text", rs.toString());
+        putProperty(choice, "rs", rs);
+        add(combos[c], choice);
+      }
+      int sel = Math.max(0, sets.size() - 2 + c);
+      if (sel < sets.size()) {
+        setInteger(combos[c], "selected", sel);
+        setString(combos[c], "text", sets.get(sel).toString());
+      } else {
+        setInteger(combos[c], "selected", -1);
+        setString(combos[c], "text", "");
+      }
+    }
+  }
+
+  private ResultSets.ResultSet getResultSet(Object combo) {
+    int sel = getSelectedIndex(combo);
+    if (sel < 0) {
+      return null;
+    }
+    ResultSets.ResultSet rs = (ResultSets.ResultSet)getProperty(getItem(combo, sel), "rs");
+    if (rs != null && !ResultSets.isCurrent(rs, ir)) {
+      return null;
+    }
+    return rs;
+  }
+
+  /**
+   * Count documents of all combinations of the two selected result sets.
+   */
+  public void countSets(Object srchOpts) {
+    if (ir == null) {
+      showStatus(MSG_NOINDEX);
+      return;
+    }
+    ResultSets.ResultSet a = getResultSet(find(srchOpts, "rsA"));
+    ResultSets.ResultSet b = getResultSet(find(srchOpts, "rsB"));
+    if (a == null || b == null) {
+      showStatus("Select two result sets of the current index.");
+      return;
+    }
+    long start = System.nanoTime();
+    StringBuilder sb = new StringBuilder();
+    sb.append("A AND B: " + ResultSets.count(a, ResultSets.Op.AND, b));
+    sb.append(", A OR B: " + ResultSets.count(a, ResultSets.Op.OR, b));
+    sb.append(", A AND NOT B: " + ResultSets.count(a, ResultSets.Op.AND_NOT, b));
+    sb.append(", B AND NOT A: " + ResultSets.count(b, ResultSets.Op.AND_NOT, a));
+    long delta = (System.nanoTime() - start) / 1000;
+    setString(find(srchOpts, "rsCount"), "text", sb.toString());
+    showStatus("Counted in " + delta + " us.");
+  }
+
+  /**
+   * Show documents of the selected combination of two result sets as
+   * search results.
+   */
+  public void showSetDocs(Object srchOpts) {
+    if (ir == null) {
+      showStatus(MSG_NOINDEX);
+      return;
+    }
+    ResultSets.ResultSet a = getResultSet(find(srchOpts, "rsA"));
+    ResultSets.ResultSet b = getResultSet(find(srchOpts, "rsB"));
+    if (a == null || b == null) {
+      showStatus("Select two result sets of the current index.");
+      return;
+    }
+    int op = Math.max(0, getSelectedIndex(find(srchOpts, "rsOp")));
+    if (op == 3) {
+      // B AND NOT A
+      ResultSets.ResultSet tmp = a;
+      a = b;
+      b = tmp;
+    }
+    ResultSets.Op o = ResultSets.Op.values()[Math.min(op, 2)];
+    BitSetHitCollector hc = new BitSetHitCollector(ResultSets.combine(a, o, b));
+    Query q = ResultSets.combine(a.query, o, b.query);
+    Object sTable = find("sTable");
+    removeAll(sTable);
+    Object prevHc = unwrap(getProperty(sTable, "hc"));
+    if (prevHc instanceof AllHitsCollector) {
+      ((AllHitsCollector)prevHc).reset();
+    }
+    int resNum = hc.getTotalHits();
+    showSearchStatus("#" + a.id + " " + o.text + " #" + b.id + ": " + resNum + " docs");
+    setString(find("qFieldParsed"), "text", q.toString());
+    setString(find("resNum"), "text", String.valueOf(resNum));
+    setBoolean(find("bsPrev"), "enabled", false);
+    setBoolean(find("bsNext"), "enabled", resNum > resCount);
+    budgetStatus(sTable, hc, null);
+    showFacets(hc);
+    putProperty(sTable, "resNum", new Integer(resNum));
+    putProperty(sTable, "query", q);
+    putProperty(sTable, "hc", hc);
+    resStart = 0;
+    _showSearchPage(sTable);
+  }
+
+  /**
+   * Drop all result sets.
+   */
+  public void clearSets(Object srchOpts) {
+    resultSets.clear();
+    showResultSets();
+    setString(find(srchOpts, "rsCount"), "text", " ");
+  }
+
+  /**
+   * @return the collector of hits, without the facet counting around it
+   */
+  private static Object unwrap(Object hc) {
+    if (hc instanceof FilterHitCollector) {
+      return FilterHitCollector.unwrap((FilterHitCollector)hc);
+    }
+    return hc;
+  }
+
+  /**
+   * Show hit counts by term of the facet fields, if any.
+   */
+  private void showFacets(AccessibleHitCollector hc) {
+    Object fTable = find("fTable");
+    removeAll(fTable);
+    FacetCollector fc = FilterHitCollector.find(hc, FacetCollector.class);
+    if (fc == null) {
+      return;
+    }
+    int max = Integer.parseInt(getString(find("facetTop"), "text"));
+    String[] fields = fc.getFields();
+    for (int i = 0; i < fields.length; i++) {
+      for (FacetCollector.TermCount tc : fc.getTopTerms(i, max)) {
+        addFacetRow(fTable, fields[i], tc.term, tc.count, true);
+      }
+      int more = fc.getNumTerms(i) - max;
+      if (more > 0) {
+        addFacetRow(fTable, fields[i], "(" + more + " more terms)", -1, false);
+      }
+      if (fc.getMissing(i) > 0) {
+        addFacetRow(fTable, fields[i], "(none)", fc.getMissing(i), false);
+      }
+    }
+  }
+
+  private void addFacetRow(Object fTable, String field, String term, int count, boolean enabled) {
+    Object row = create("row");
+    add(fTable, row);
+    Object cell = create("cell");
+    setString(cell, "text", field);
+    add(row, cell);
+    cell = create("cell");
+    setString(cell, "text", term);
+    setBoolean(cell, "enabled", enabled);
+    add(row, cell);
+    cell = create("cell");
+    setString(cell, "text", count >= 0 ? String.valueOf(count) : "");
+    setChoice(cell, "alignment", "right");
+    add(row, cell);
+  }
+
+  /**
+   * Keep where a budgeted search stopped, so that it can be continued.
+   * @return status message suffix
+   */
+  private String budgetStatus(Object sTable, AccessibleHitCollector hc, LimitedException e) {
+    BudgetCollector.ResumeToken token = null;
+    if (unwrap(hc) instanceof BudgetCollector && e != null) {
+      token = BudgetCollector.ResumeToken.create(ir, e);
+    }
+    putProperty(sTable, "resume", token);
+    setBoolean(find("bsCont"), "enabled", token != null);
+    if (token == null) {
+      return "";
+    }
+    return ", " + LIMIT_NAMES[e.getLimitType()] + " budget ran out at " + token;
+  }
+
+  /**
+   * Continue a budgeted search where it stopped, with a new budget.
+   */
+  public void continueSearch(final Object sTable) {
+    final AccessibleHitCollector hc = (AccessibleHitCollector)getProperty(sTable, "hc");
+    final Query q = (Query)getProperty(sTable, "query");
+    final BudgetCollector.ResumeToken token = (BudgetCollector.ResumeToken)getProperty(sTable, "resume");
+    if (!(unwrap(hc) instanceof BudgetCollector) || q == null || token == null) {
+      return;
+    }
+    SlowThread t = new SlowThread(this) {
+      public void execute() {
+        BudgetCollector bc = (BudgetCollector)unwrap(hc);
+        int prevHits = bc.getTotalHits();
+        LimitedException e = null;
+        long start = System.nanoTime();
+        try {
+          bc.resume(is, q, token, hc);
+        } catch (LimitedException ex) {
+          e = ex;
+        } catch (Throwable th) {
+          th.printStackTrace();
+          errorMsg("ERROR searching: " + th.toString());
+          return;
+        }
+        long delta = (System.nanoTime() - start) / 1000;
+        int resNum = bc.getTotalHits();
+        String msg = (delta > 100000 ? delta / 1000 + " ms" : delta + " us") +
+          ", " + (resNum - prevHits) + " more hits" + budgetStatus(sTable, bc, e);
+        keepResultSet(hc, q, e != null);
+        showSearchStatus(msg);
+        setString(find("resNum"), "text", String.valueOf(resNum));
+        putProperty(sTable, "resNum", new Integer(resNum));
+        setBoolean(find("bsPrev"), "enabled", false);
+        setBoolean(find("bsNext"), "enabled", resNum > resCount);
+        resStart = 0;
+        _showSearchPage(sTable);
+        showFacets(hc);
+      }
+    };
+    if (slowAccess) {
+      t.start();
+    } else {
+      t.execute();
+    }
+  }
+
+  /**
+   * Search a number of times, and report the average time.
+   * @return status message, or null on error
+   */
+  private String searchRepeated(Query q, IndexSearcher is, AccessibleHitCollector collector,
+      ConcurrentSearch cs, int repeat) {
+    long startTime = System.nanoTime();
+    for (int i = 0; i < repeat; i++) {
+      if (i > 0) {
+        collector.reset();
+      }
+      try {
+        if (cs != null) {
+          cs.search(is, q, collector);
+        } else {
+          is.search(q, collector);
+        }
+      } catch (LimitedException e) {
+        le = e;
+      } catch (Throwable th) {
+        th.printStackTrace();
+        errorMsg("ERROR searching: " + th.toString());
+        return null;
+      }
+    }
+    long endTime = System.nanoTime();
+    long delta = (endTime - startTime) / 1000 / repeat;
+    String msg;
+    if (delta > 100000) {
+      msg = delta / 1000 + " ms";
+    } else {
+      msg = delta + " us";
+    }
+    if (repeat > 1) {
+      msg += " (avg of " + repeat + " runs)";
+    }
+    if (cs != null) {
+      msg += ", " + searchThreads + " threads, " +
+        new DecimalFormat("0.0").format(cs.getSpeedup()) + "x speedup";
+    }
+    return msg;
+  }
+
+  private List<QueryBenchmark.Result> benchResults = new ArrayList<QueryBenchmark.Result>();
+
+  /**
+   * Run a query benchmark, and add its results to those shown.
+   * @return status message, or null on error
+   */
+  private String benchmark(Query q, IndexSearcher is, AccessibleHitCollector collector,
+      ConcurrentSearch cs, int warmup, int iterations) {
+    QueryBenchmark qb = new QueryBenchmark(is, q, collector, cs, searchThreads);
+    QueryBenchmark.Result res;
+    try {
+      res = qb.run(warmup, iterations);
+    } catch (Throwable th) {
+      th.printStackTrace();
+      errorMsg("ERROR searching: " + th.toString());
+      return null;
+    }
+    le = qb.getLimitedException();
+    benchResults.add(res);
+    StringBuilder sb = new StringBuilder();
+    for (QueryBenchmark.Result r : benchResults) {
+      sb.append(r.toString());
+      sb.append('\n');
+    }
+    setString(find("benchRes"), "text", sb.toString());
+    return res.getSummary();
+  }
+
+  /**
+   * Save the results of all benchmarks so far as comma separated values.
+   */
+  public void exportBench() {
+    if (benchResults.isEmpty()) {
+      showStatus("No benchmark results.");
+      return;
+    }
+    JFileChooser fd = new JFileChooser();
+    fd.setDialogType(JFileChooser.SAVE_DIALOG);
+    fd.setDialogTitle("Select Output File");
+    fd.setFileSelectionMode(JFileChooser.FILES_ONLY);
+    fd.setFileHidingEnabled(false);
+    if (this.baseDir != null)
+      fd.setCurrentDirectory(new File(this.baseDir));
+    else fd.setCurrentDirectory(new File(System.getProperty("user.dir")));
+    int res = fd.showSaveDialog(this);
+    if (res != JFileChooser.APPROVE_OPTION || fd.getSelectedFile() == null) {
+      return;
+    }
+    File f = fd.getSelectedFile();
+    try {
+      OutputStream os = new FileOutputStream(f);
+      try {
+        StringBuilder sb = new StringBuilder(QueryBenchmark.Result.CSV_HEADER);
+        sb.append('\n');
+        for (QueryBenchmark.Result r : benchResults) {
+          sb.append(r.toCSV());
+          sb.append('\n');
+        }
+        os.write(sb.toString().getBytes("UTF-8"));
+      } finally {
+        os.close();
+      }
+      showStatus("Saved " + benchResults.size() + " benchmark results to " + f);
+    } catch (Exception e) {
+      e.printStackTrace();
+      errorMsg("ERROR saving benchmark results: " + e.toString());
+    }
+  }
+
+  public void clearBench() {
+    benchResults.clear();
+    setString(find("benchRes"), "text", "");
+  }
+
   int resStart = 0;
   int resCount = 20;
   LimitedException le = null;
@@ -4712,41 +5561,35 @@ public class Luke extends Thinlet implements ClipboardOwner {
       hc = new AccessibleTopHitCollector(1000, true, true);
     }
     final AccessibleHitCollector collector = hc;
+    if (unwrap(collector) instanceof SearchAfterCollector) {
+      ((SearchAfterCollector)unwrap(collector)).setQuery(is, q);
+    }
     le = null;
+    final boolean bench = getBoolean(find("ckBench"), "selected");
+    final int warmup = Integer.parseInt(getString(find("benchWarmup"), "text"));
+    final int iterations = Integer.parseInt(getString(find("benchIters"), "text"));
     SlowThread t = new SlowThread(this) {
       public void execute() {
-        long startTime = System.nanoTime();
-        for (int i = 0; i < repeat; i++) {
-          if (i > 0) {
-            collector.reset();
-          }
-          try {
-            is.search(q, collector);
-          } catch (LimitedException e) {
-            le = e;
-          } catch (Throwable th) {
-            th.printStackTrace();
-            errorMsg("ERROR searching: " + th.toString());
-            return;
-          }
-        }
-        long endTime = System.nanoTime();
-        long delta = (endTime - startTime) / 1000 / repeat;
-        String msg;
-        if (delta > 100000) {
-          msg = delta / 1000 + " ms";
-        } else {
-          msg = delta + " us";
+        if (collector.getSort() != null) {
+          // load sort values first, so that their cost is reported apart
+          showSortInfo(collector.getSort(), find("sortInfo"));
         }
-        if (repeat > 1) {
-          msg += " (avg of " + repeat + " runs)";
+        ExecutorService pool = getSearchPool();
+        ConcurrentSearch cs = pool != null ? new ConcurrentSearch(pool, searchThreads) : null;
+        String msg = bench ? benchmark(q, is, collector, cs, warmup, iterations) :
+          searchRepeated(q, is, collector, cs, repeat);
+        if (msg == null) {
+          return;
         }
+        msg += budgetStatus(sTable, collector, le);
+        keepResultSet(collector, q, le != null);
         showSearchStatus(msg);
         Object bsPrev = find("bsPrev");
         Object bsNext = find("bsNext");
         setBoolean(bsNext, "enabled", false);
         setBoolean(bsPrev, "enabled", false);
         int resNum = collector.getTotalHits();
+        showFacets(collector);
         if (resNum == 0) {
           Object row = create("row");
           Object cell = create("cell");
@@ -4766,6 +5609,11 @@ public class Luke extends Thinlet implements ClipboardOwner {
           setBoolean(bsNext, "enabled", true);
         }
         setString(find("resNum"), "text", String.valueOf(resNum));
+        Object prevHc = unwrap(getProperty(sTable, "hc"));
+        if (prevHc instanceof AllHitsCollector && prevHc != unwrap(collector)) {
+          // release the pages, and the spill file, of previous results
+          ((AllHitsCollector)prevHc).reset();
+        }
         putProperty(sTable, "resNum", new Integer(resNum));
         putProperty(sTable, "query", q);
         putProperty(sTable, "hc", collector);
@@ -4904,7 +5752,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     Thread t = new Thread() {
       public void run() {
         try {
-          IndexSearcher is = new IndexSearcher(ir);
+          IndexSearcher is = newSearcher(ir);
           Similarity sim = createSimilarity(find("srchOptTabs"));
           is.setSimilarity(sim);
           Explanation expl = is.explain(q, docid.intValue());
@@ -5259,6 +6107,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
    * started from the main method), invoke also System.exit().
    */
   public boolean destroy() {
+    abortStats();
     if (ir != null) try {
       ir.close();
     } catch (Exception e) {}
@@ -5388,7 +6237,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
   /**
    * @return the numTerms
    */
-  public int getNumTerms() {
+  public long getNumTerms() {
     return numTerms;
   }
 
@@ -21,6 +21,11 @@ public class Prefs {
     public static final String P_THEME          = "luke.theme";
     public static final String P_ANALYZER       = "luke.analyzer";
     public static final String P_FIELD          = "luke.field";
+    public static final String P_APPROX_TERMS   = "luke.approx_top_terms";
+    public static final String P_STATS_CACHE_SIZE = "luke.stats_cache_mb";
+    public static final String P_ESTIMATE_TERMS = "luke.estimate_terms";
+    public static final String P_FORWARD_INDEX  = "luke.forward_index";
+    public static final String P_SEARCH_THREADS = "luke.search_threads";
     
     private static Properties props = new Properties();
     
@@ -9,6 +9,7 @@ public class Progress implements Observer {
   Object bar, msg;
   boolean showing = false;
   Luke luke;
+  Abortable abortable = null;
   
   public Progress(Luke luke) {
     try {
@@ -26,6 +27,14 @@ public class Progress implements Observer {
     luke.setString(msg, "text", message);
   }
   
+  /**
+   * Show a "Cancel" button that aborts the given operation.
+   */
+  public void setAbortable(Abortable abortable) {
+    this.abortable = abortable;
+    luke.setBoolean(luke.find(ui, "cancel"), "visible", abortable != null);
+  }
+  
   public void show() {
     luke.add(ui);
     luke.repaint();
@@ -33,12 +42,17 @@ public class Progress implements Observer {
   }
   
   public void hide() {
-    luke.remove(ui);
+    if (showing) {
+      luke.remove(ui);
+    }
     showing = false;
   }
   
   public void cancel(Object dialog) {
-    
+    if (abortable != null) {
+      abortable.abort();
+      luke.setString(msg, "text", "Cancelling ...");
+    }
   }
 
   public void update(Observable o, Object arg) {
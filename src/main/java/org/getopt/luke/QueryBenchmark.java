@@ -0,0 +1,271 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Runs a query many times and measures each run. Warmup runs come first
+ * and are not measured, so that caches and the JIT settle. Each measured
+ * run is split into its phases: rewriting the query, creating the
+ * normalized weight, and collecting the hits. Latency is reported as
+ * percentiles, along with hits per second and the bytes allocated per run,
+ * see {@link Util#getAllocatedBytes()}. Allocated bytes are reported as
+ * "n/a" where the JVM can't count them.
+ */
+public class QueryBenchmark {
+  private final IndexSearcher is;
+  private final Query q;
+  private final AccessibleHitCollector hc;
+  private final ConcurrentSearch cs;
+  private final int threads;
+  private LimitedException le = null;
+
+  /**
+   * Measurements of a benchmark. Times are in nanoseconds.
+   */
+  public static class Result {
+    public static final String CSV_HEADER = "query,similarity,collector,sort,threads," +
+      "warmup,iterations,hits,mean_us,p50_us,p90_us,p99_us,max_us," +
+      "rewrite_us,weight_us,collect_us,hits_per_s,bytes_per_query";
+
+    public final String query;
+    public final String similarity;
+    public final String collector;
+    public final Sort sort;
+    public final int threads;
+    public final int warmup;
+    public final int iterations;
+    public final int hits;
+    /** Total time of each run, ascending. */
+    public final long[] times;
+    public final long rewriteTime;
+    public final long weightTime;
+    public final long collectTime;
+    /** Bytes allocated by all runs, or -1 if not known. */
+    public final long allocatedBytes;
+    /** True if the last run stopped at a limit of the collector. */
+    public final boolean limited;
+
+    Result(String query, String similarity, String collector, Sort sort, int threads,
+        int warmup, int hits, long[] times, long rewriteTime, long weightTime,
+        long collectTime, long allocatedBytes, boolean limited) {
+      this.query = query;
+      this.similarity = similarity;
+      this.collector = collector;
+      this.sort = sort;
+      this.threads = threads;
+      this.warmup = warmup;
+      this.iterations = times.length;
+      this.hits = hits;
+      this.times = times;
+      this.rewriteTime = rewriteTime;
+      this.weightTime = weightTime;
+      this.collectTime = collectTime;
+      this.allocatedBytes = allocatedBytes;
+      this.limited = limited;
+    }
+
+    /**
+     * @param p percentile, from 0 to 100
+     * @return run time at the percentile, by nearest rank
+     */
+    public long getPercentile(double p) {
+      int rank = (int)Math.ceil(p / 100 * times.length);
+      return times[Math.max(0, Math.min(times.length - 1, rank - 1))];
+    }
+
+    public long getMax() {
+      return times[times.length - 1];
+    }
+
+    public long getMean() {
+      return (rewriteTime + weightTime + collectTime) / iterations;
+    }
+
+    /** Mean time of rewriting the query. */
+    public long getRewriteMean() {
+      return rewriteTime / iterations;
+    }
+
+    /** Mean time of creating the weight. */
+    public long getWeightMean() {
+      return weightTime / iterations;
+    }
+
+    /** Mean time of collecting the hits. */
+    public long getCollectMean() {
+      return collectTime / iterations;
+    }
+
+    public double getHitsPerSecond() {
+      long total = rewriteTime + weightTime + collectTime;
+      return total > 0 ? (double)hits * iterations * 1000000000L / total : 0;
+    }
+
+    /**
+     * @return bytes allocated per run, or -1 if not known
+     */
+    public long getBytesPerQuery() {
+      return allocatedBytes < 0 ? -1 : allocatedBytes / iterations;
+    }
+
+    private String bytesPerQuery() {
+      long b = getBytesPerQuery();
+      return b < 0 ? "n/a" : Util.normalizeSize(b) + Util.normalizeUnit(b);
+    }
+
+    private static String us(long nanos) {
+      return String.valueOf(nanos / 1000);
+    }
+
+    /**
+     * @return a line with the main measurements
+     */
+    public String getSummary() {
+      DecimalFormat df = new DecimalFormat("0.0");
+      return "p50 " + us(getPercentile(50)) + " us, p90 " + us(getPercentile(90)) +
+        " us, p99 " + us(getPercentile(99)) + " us, max " + us(getMax()) + " us (" +
+        iterations + " runs after " + warmup + " warmup), " +
+        df.format(getHitsPerSecond()) + " hits/s, " +
+        bytesPerQuery() + " allocated per query";
+    }
+
+    public String toString() {
+      DecimalFormat df = new DecimalFormat("0.0");
+      StringBuilder sb = new StringBuilder();
+      sb.append("Query: " + query + "\n");
+      sb.append("Similarity: " + similarity + ", collector: " + collector +
+          (sort != null ? ", sort: " + sort : "") + ", threads: " + threads + "\n");
+      sb.append("Hits: " + hits + (limited ? " (stopped at limit)" : "") + ", runs: " +
+          iterations + ", warmup: " + warmup + "\n");
+      sb.append("Latency [us]: mean " + us(getMean()) + ", p50 " + us(getPercentile(50)) +
+          ", p90 " + us(getPercentile(90)) + ", p99 " + us(getPercentile(99)) +
+          ", max " + us(getMax()) + "\n");
+      sb.append("Phases [us]: rewrite " + us(getRewriteMean()) + ", weight " +
+          us(getWeightMean()) + ", collect " + us(getCollectMean()) + "\n");
+      sb.append("Hits/s: " + df.format(getHitsPerSecond()) + ", allocated per query: " +
+          (getBytesPerQuery() < 0 ? "n/a" : getBytesPerQuery() + " bytes") + "\n");
+      return sb.toString();
+    }
+
+    /**
+     * @return measurements as a line of comma separated values, see
+     * {@link #CSV_HEADER}
+     */
+    public String toCSV() {
+      return csv(query) + "," + csv(similarity) + "," + csv(collector) + "," +
+        csv(sort != null ? sort.toString() : "") + "," + threads + "," + warmup + "," +
+        iterations + "," + hits + "," + us(getMean()) + "," + us(getPercentile(50)) + "," +
+        us(getPercentile(90)) + "," + us(getPercentile(99)) + "," + us(getMax()) + "," +
+        us(getRewriteMean()) + "," + us(getWeightMean()) + "," + us(getCollectMean()) + "," +
+        Math.round(getHitsPerSecond()) + "," +
+        (getBytesPerQuery() < 0 ? "n/a" : String.valueOf(getBytesPerQuery()));
+    }
+
+    private static String csv(String s) {
+      if (s.indexOf(',') == -1 && s.indexOf('"') == -1 && s.indexOf('\n') == -1) {
+        return s;
+      }
+      return "\"" + s.replaceAll("\"", "\"\"") + "\"";
+    }
+  }
+
+  /**
+   * @param is searcher, with the similarity to measure
+   * @param q query
+   * @param hc collector of the hits, reset before each run
+   * @param cs concurrent search, or null to search on the current thread
+   * @param threads number of threads of the concurrent search
+   */
+  public QueryBenchmark(IndexSearcher is, Query q, AccessibleHitCollector hc,
+      ConcurrentSearch cs, int threads) {
+    this.is = is;
+    this.q = q;
+    this.hc = hc;
+    this.cs = cs;
+    this.threads = cs != null ? threads : 1;
+  }
+
+  /**
+   * Run the benchmark. The collector holds the hits of the last run when
+   * done.
+   * @param warmup number of runs that are not measured
+   * @param iterations number of measured runs
+   */
+  public Result run(int warmup, int iterations) throws IOException {
+    iterations = Math.max(1, iterations);
+    for (int i = 0; i < warmup; i++) {
+      runOnce(null);
+    }
+    long[] times = new long[iterations];
+    long[] phases = new long[3];
+    long startBytes = allocatedBytes();
+    for (int i = 0; i < iterations; i++) {
+      times[i] = runOnce(phases);
+    }
+    long bytes = allocatedBytes() - startBytes;
+    if (!allocatedBytesSupported()) {
+      // the heap in use, which shrinks with garbage collection
+      bytes = -1;
+    }
+    Arrays.sort(times);
+    AccessibleHitCollector inner = FilterHitCollector.unwrap(hc);
+    return new Result(q.toString(), is.getSimilarity().getClass().getName(),
+        inner.getClass().getSimpleName(), hc.getSort(), threads, warmup,
+        hc.getTotalHits(), times, phases[0], phases[1], phases[2], bytes, le != null);
+  }
+
+  /**
+   * @return the limit reached by the last run, or null
+   */
+  public LimitedException getLimitedException() {
+    return le;
+  }
+
+  /**
+   * Run the query once.
+   * @param phases times of rewrite, weight and collection are added to it,
+   * if not null
+   * @return total time
+   */
+  private long runOnce(long[] phases) throws IOException {
+    hc.reset();
+    le = null;
+    long start = System.nanoTime();
+    Query rw = is.rewrite(q);
+    long rewritten = System.nanoTime();
+    Weight w = is.createNormalizedWeight(rw);
+    long weighted = System.nanoTime();
+    try {
+      if (cs != null) {
+        cs.search(is, w, hc);
+      } else {
+        ConcurrentSearch.searchLeaves(w, is.getIndexReader().leaves(), hc);
+      }
+    } catch (LimitedException e) {
+      le = e;
+    }
+    long end = System.nanoTime();
+    if (phases != null) {
+      phases[0] += rewritten - start;
+      phases[1] += weighted - rewritten;
+      phases[2] += end - weighted;
+    }
+    return end - start;
+  }
+
+  private long allocatedBytes() {
+    // threads of the pool allocate too
+    return cs != null ? Util.getAllThreadsAllocatedBytes() : Util.getAllocatedBytes();
+  }
+
+  private boolean allocatedBytesSupported() {
+    return cs != null ? Util.isAllThreadsAllocatedBytesSupported() : Util.isAllocatedBytesSupported();
+  }
+}
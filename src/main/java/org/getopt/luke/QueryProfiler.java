@@ -0,0 +1,410 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Measures the cost of each clause of a rewritten query. The query is
+ * copied with each clause wrapped in a query whose {@link Weight} and
+ * {@link Scorer} count calls and time of <code>nextDoc</code>,
+ * <code>advance</code> and <code>score</code>, and the documents found, per
+ * segment. Clauses of {@link BooleanQuery}, {@link DisjunctionMaxQuery},
+ * {@link ConstantScoreQuery} and {@link FilteredQuery} are wrapped; other
+ * queries are measured as a whole.
+ * <p>Times of a clause include those of its sub-clauses. The wrapped query
+ * is not rewritten again, so that it runs with the structure that is
+ * shown.</p>
+ */
+public class QueryProfiler {
+  private final Query query;
+  private final IdentityHashMap<Query,ClauseStats> stats = new IdentityHashMap<Query,ClauseStats>();
+  private final int numLeaves;
+
+  /**
+   * Counts of a clause in one segment. Times are in nanoseconds.
+   */
+  public static class SegmentStats {
+    public long scorerTime;
+    public long nextDocTime;
+    public int nextDocCalls;
+    public long advanceTime;
+    public int advanceCalls;
+    public long scoreTime;
+    public int scoreCalls;
+    /** Time of scoring and collecting all hits at once, by a top scorer. */
+    public long collectTime;
+    public int matched;
+
+    void add(SegmentStats s) {
+      scorerTime += s.scorerTime;
+      nextDocTime += s.nextDocTime;
+      nextDocCalls += s.nextDocCalls;
+      advanceTime += s.advanceTime;
+      advanceCalls += s.advanceCalls;
+      scoreTime += s.scoreTime;
+      scoreCalls += s.scoreCalls;
+      collectTime += s.collectTime;
+      matched += s.matched;
+    }
+
+    /**
+     * @return time spent in this clause
+     */
+    public long getTime() {
+      return scorerTime + nextDocTime + advanceTime + scoreTime + collectTime;
+    }
+
+    public boolean isEmpty() {
+      return getTime() == 0 && matched == 0;
+    }
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("time=" + us(getTime()) + " us, matched=" + matched);
+      sb.append(", nextDoc=" + nextDocCalls + "/" + us(nextDocTime) + " us");
+      sb.append(", advance=" + advanceCalls + "/" + us(advanceTime) + " us");
+      sb.append(", score=" + scoreCalls + "/" + us(scoreTime) + " us");
+      if (scorerTime > 0) {
+        sb.append(", scorer=" + us(scorerTime) + " us");
+      }
+      if (collectTime > 0) {
+        sb.append(", collect=" + us(collectTime) + " us");
+      }
+      return sb.toString();
+    }
+
+    private static String us(long nanos) {
+      return String.valueOf(nanos / 1000);
+    }
+  }
+
+  /**
+   * Counts of a clause, by segment.
+   */
+  public static class ClauseStats {
+    public final Query query;
+    final SegmentStats[] segments;
+
+    ClauseStats(Query query, int numLeaves) {
+      this.query = query;
+      segments = new SegmentStats[numLeaves];
+    }
+
+    /**
+     * @param leaf segment number
+     * @return counts in the segment, or null if the clause didn't search it
+     */
+    public SegmentStats getSegment(int leaf) {
+      return segments[leaf];
+    }
+
+    public int getNumSegments() {
+      return segments.length;
+    }
+
+    /**
+     * @return counts of all segments
+     */
+    public SegmentStats getTotal() {
+      SegmentStats total = new SegmentStats();
+      for (SegmentStats s : segments) {
+        if (s != null) {
+          total.add(s);
+        }
+      }
+      return total;
+    }
+
+    SegmentStats segment(int leaf) {
+      if (segments[leaf] == null) {
+        segments[leaf] = new SegmentStats();
+      }
+      return segments[leaf];
+    }
+  }
+
+  /**
+   * @param query a rewritten query, see {@link IndexSearcher#rewrite(Query)}
+   * @param reader reader that will be searched
+   */
+  public QueryProfiler(Query query, IndexReader reader) {
+    this.numLeaves = reader.leaves().size();
+    this.query = wrap(query);
+  }
+
+  /**
+   * @return the query to search with, which records the counts
+   */
+  public Query getQuery() {
+    return query;
+  }
+
+  /**
+   * @param q a clause of the rewritten query
+   * @return counts of the clause, or null if it was not measured
+   */
+  public ClauseStats getStats(Query q) {
+    return stats.get(q);
+  }
+
+  private Query wrap(Query q) {
+    Query inner = q;
+    if (q instanceof BooleanQuery) {
+      BooleanQuery bq = (BooleanQuery)q;
+      BooleanQuery copy = new BooleanQuery(bq.isCoordDisabled());
+      for (BooleanClause c : bq.getClauses()) {
+        copy.add(wrap(c.getQuery()), c.getOccur());
+      }
+      copy.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+      inner = copy;
+    } else if (q instanceof DisjunctionMaxQuery) {
+      DisjunctionMaxQuery dq = (DisjunctionMaxQuery)q;
+      DisjunctionMaxQuery copy = new DisjunctionMaxQuery(dq.getTieBreakerMultiplier());
+      for (Query d : dq.getDisjuncts()) {
+        copy.add(wrap(d));
+      }
+      inner = copy;
+    } else if (q instanceof ConstantScoreQuery && ((ConstantScoreQuery)q).getQuery() != null) {
+      inner = new ConstantScoreQuery(wrap(((ConstantScoreQuery)q).getQuery()));
+    } else if (q instanceof FilteredQuery) {
+      FilteredQuery fq = (FilteredQuery)q;
+      inner = new FilteredQuery(wrap(fq.getQuery()), fq.getFilter(), fq.getFilterStrategy());
+    }
+    if (inner != q) {
+      inner.setBoost(q.getBoost());
+    }
+    ClauseStats cs = stats.get(q);
+    if (cs == null) {
+      cs = new ClauseStats(q, numLeaves);
+      stats.put(q, cs);
+    }
+    return new ProfiledQuery(inner, cs);
+  }
+
+  private static class ProfiledQuery extends Query {
+    private final Query in;
+    private final ClauseStats stats;
+
+    ProfiledQuery(Query in, ClauseStats stats) {
+      this.in = in;
+      this.stats = stats;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+      return new ProfiledWeight(this, in.createWeight(searcher));
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+      // already rewritten, keep the wrappers
+      return this;
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+      in.extractTerms(terms);
+    }
+
+    @Override
+    public String toString(String field) {
+      return in.toString(field);
+    }
+  }
+
+  private static class ProfiledWeight extends Weight {
+    private final ProfiledQuery query;
+    private final Weight in;
+
+    ProfiledWeight(ProfiledQuery query, Weight in) {
+      this.query = query;
+      this.in = in;
+    }
+
+    @Override
+    public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+      return in.explain(context, doc);
+    }
+
+    @Override
+    public Query getQuery() {
+      return query;
+    }
+
+    @Override
+    public float getValueForNormalization() throws IOException {
+      return in.getValueForNormalization();
+    }
+
+    @Override
+    public void normalize(float norm, float topLevelBoost) {
+      in.normalize(norm, topLevelBoost);
+    }
+
+    @Override
+    public Scorer scorer(AtomicReaderContext context, boolean scoreDocsInOrder,
+        boolean topScorer, Bits acceptDocs) throws IOException {
+      SegmentStats s = query.stats.segment(context.ord);
+      long start = System.nanoTime();
+      Scorer scorer = in.scorer(context, scoreDocsInOrder, topScorer, acceptDocs);
+      s.scorerTime += System.nanoTime() - start;
+      return scorer != null ? new ProfiledScorer(this, scorer, s, topScorer) : null;
+    }
+
+    @Override
+    public boolean scoresDocsOutOfOrder() {
+      return in.scoresDocsOutOfOrder();
+    }
+  }
+
+  private static class ProfiledScorer extends Scorer {
+    private final Scorer in;
+    private final SegmentStats s;
+    private final boolean topScorer;
+
+    ProfiledScorer(Weight weight, Scorer in, SegmentStats s, boolean topScorer) {
+      super(weight);
+      this.in = in;
+      this.s = s;
+      this.topScorer = topScorer;
+    }
+
+    @Override
+    public void score(Collector collector) throws IOException {
+      if (!topScorer) {
+        // iterate with the measured methods
+        super.score(collector);
+        return;
+      }
+      // top scorers may collect out of order, without nextDoc()
+      long start = System.nanoTime();
+      try {
+        in.score(new CountingCollector(collector, s));
+      } finally {
+        s.collectTime += System.nanoTime() - start;
+      }
+    }
+
+    @Override
+    public boolean score(Collector collector, int max, int firstDocID) throws IOException {
+      if (!topScorer) {
+        return super.score(collector, max, firstDocID);
+      }
+      long start = System.nanoTime();
+      try {
+        return in.score(new CountingCollector(collector, s), max, firstDocID);
+      } finally {
+        s.collectTime += System.nanoTime() - start;
+      }
+    }
+
+    @Override
+    public float score() throws IOException {
+      long start = System.nanoTime();
+      float score = in.score();
+      s.scoreTime += System.nanoTime() - start;
+      s.scoreCalls++;
+      return score;
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return in.freq();
+    }
+
+    @Override
+    public int docID() {
+      return in.docID();
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      long start = System.nanoTime();
+      int doc = in.nextDoc();
+      s.nextDocTime += System.nanoTime() - start;
+      s.nextDocCalls++;
+      if (doc != NO_MORE_DOCS) {
+        s.matched++;
+      }
+      return doc;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      long start = System.nanoTime();
+      int doc = in.advance(target);
+      s.advanceTime += System.nanoTime() - start;
+      s.advanceCalls++;
+      if (doc != NO_MORE_DOCS) {
+        s.matched++;
+      }
+      return doc;
+    }
+
+    @Override
+    public long cost() {
+      return in.cost();
+    }
+
+    @Override
+    public Collection<ChildScorer> getChildren() {
+      List<ChildScorer> res = new ArrayList<ChildScorer>(1);
+      res.add(new ChildScorer(in, "PROFILED"));
+      return res;
+    }
+  }
+
+  /**
+   * Counts the documents that a top scorer collects.
+   */
+  private static class CountingCollector extends Collector {
+    private final Collector in;
+    private final SegmentStats s;
+
+    CountingCollector(Collector in, SegmentStats s) {
+      this.in = in;
+      this.s = s;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+      in.setScorer(scorer);
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      s.matched++;
+      in.collect(doc);
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+      in.setNextReader(context);
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+      return in.acceptsDocsOutOfOrder();
+    }
+  }
+}
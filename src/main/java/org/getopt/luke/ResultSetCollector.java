@@ -0,0 +1,85 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Keeps all hits in a bitset, while another collector collects them, so
+ * that they can be kept in {@link ResultSets}.
+ */
+public class ResultSetCollector extends FilterHitCollector {
+  private final FixedBitSet bits;
+  // bits of a sub-collector, or null
+  private final BitSetHitCollector.SliceBits slice;
+
+  /**
+   * @param hc collector of the hits
+   * @param maxDoc number of documents of the searched reader
+   */
+  public ResultSetCollector(AccessibleHitCollector hc, int maxDoc) {
+    super(hc);
+    bits = new FixedBitSet(maxDoc);
+    slice = null;
+  }
+
+  private ResultSetCollector(AccessibleHitCollector hc, BitSetHitCollector.SliceBits slice) {
+    super(hc);
+    bits = null;
+    this.slice = slice;
+  }
+
+  /**
+   * @return all hits collected
+   */
+  public FixedBitSet getBits() {
+    return bits;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    if (slice != null) {
+      slice.set(docBase + doc);
+    } else {
+      bits.set(docBase + doc);
+    }
+    super.collect(doc);
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    super.setNextReader(context);
+    if (slice != null) {
+      slice.setNextReader(context);
+    }
+  }
+
+  /**
+   * Sub-collectors keep only the bits of their slice of leaves.
+   */
+  @Override
+  protected FilterHitCollector newSubCollector(AccessibleHitCollector sub) {
+    return new ResultSetCollector(sub, new BitSetHitCollector.SliceBits());
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    bits.clear(0, bits.length());
+    for (AccessibleHitCollector sub : subs) {
+      ((ResultSetCollector)sub).slice.orInto(bits);
+    }
+    super.merge(subs);
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    if (slice != null) {
+      slice.clear();
+    } else {
+      bits.clear(0, bits.length());
+    }
+  }
+}
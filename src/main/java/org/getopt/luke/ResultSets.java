@@ -0,0 +1,223 @@
+package org.getopt.luke;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BitUtil;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Hits of executed queries, kept as bitsets and keyed by query and reader
+ * version. Result sets are combined with word-level bit operations, without
+ * searching again. The least recently used sets are dropped first.
+ */
+public class ResultSets {
+  public static final int DEFAULT_MAX_SETS = 32;
+
+  /** Operations between two result sets. */
+  public static enum Op {
+    AND("AND"), OR("OR"), AND_NOT("AND NOT");
+
+    public final String text;
+
+    Op(String text) {
+      this.text = text;
+    }
+  }
+
+  /**
+   * Identifies the hits of a query in one version of an index.
+   */
+  public static class Key {
+    final Query query;
+    final Object index;
+    final long version;
+
+    Key(Query query, IndexReader reader) {
+      this.query = query;
+      if (reader instanceof DirectoryReader) {
+        // the same version of the same directory has the same documents
+        index = ((DirectoryReader)reader).directory();
+        version = ((DirectoryReader)reader).getVersion();
+      } else {
+        index = reader.getCoreCacheKey();
+        version = -1;
+      }
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key)o;
+      return index == k.index && version == k.version && query.equals(k.query);
+    }
+
+    public int hashCode() {
+      return query.hashCode() ^ System.identityHashCode(index) ^ (int)(version ^ (version >>> 32));
+    }
+  }
+
+  /**
+   * Hits of a query.
+   */
+  public static class ResultSet {
+    public final int id;
+    public final Query query;
+    public final FixedBitSet bits;
+    public final int count;
+    /** True if the search stopped at a limit, before all hits were found. */
+    public final boolean partial;
+    final Key key;
+
+    ResultSet(int id, Key key, FixedBitSet bits, boolean partial) {
+      this.id = id;
+      this.key = key;
+      this.query = key.query;
+      this.bits = bits;
+      this.count = bits.cardinality();
+      this.partial = partial;
+    }
+
+    public String toString() {
+      return "#" + id + ": " + query.toString() + " (" + count + (partial ? "+" : "") + ")";
+    }
+  }
+
+  private final int maxSets;
+  private int lastId = 0;
+  private final LinkedHashMap<Key,ResultSet> sets;
+
+  public ResultSets() {
+    this(DEFAULT_MAX_SETS);
+  }
+
+  public ResultSets(final int maxSets) {
+    this.maxSets = maxSets;
+    sets = new LinkedHashMap<Key,ResultSet>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Key,ResultSet> eldest) {
+        return size() > ResultSets.this.maxSets;
+      }
+    };
+  }
+
+  /**
+   * Keep the hits of a query, replacing those kept before for the same
+   * query and reader version.
+   * @param partial true if not all hits were collected
+   */
+  public synchronized ResultSet put(IndexReader reader, Query query, FixedBitSet bits, boolean partial) {
+    Key key = new Key(query, reader);
+    ResultSet old = sets.get(key);
+    ResultSet rs = new ResultSet(old != null ? old.id : ++lastId, key, bits, partial);
+    sets.put(key, rs);
+    return rs;
+  }
+
+  /**
+   * @return kept hits of a query in this reader, or null
+   */
+  public synchronized ResultSet get(IndexReader reader, Query query) {
+    return sets.get(new Key(query, reader));
+  }
+
+  /**
+   * @return result sets of this reader, by id
+   */
+  public synchronized List<ResultSet> getSets(IndexReader reader) {
+    List<ResultSet> res = new ArrayList<ResultSet>();
+    for (ResultSet rs : sets.values()) {
+      if (isCurrent(rs, reader)) {
+        res.add(rs);
+      }
+    }
+    Collections.sort(res, new Comparator<ResultSet>() {
+      public int compare(ResultSet a, ResultSet b) {
+        return a.id - b.id;
+      }
+    });
+    return res;
+  }
+
+  /**
+   * @return true if the result set was found in this version of the reader
+   */
+  public static boolean isCurrent(ResultSet rs, IndexReader reader) {
+    Key k = new Key(rs.query, reader);
+    return k.index == rs.key.index && k.version == rs.key.version;
+  }
+
+  public synchronized void clear() {
+    sets.clear();
+    lastId = 0;
+  }
+
+  /**
+   * Count the documents of a combination of two result sets, without
+   * creating it.
+   */
+  public static long count(ResultSet a, Op op, ResultSet b) {
+    long[] wa = a.bits.getBits();
+    long[] wb = b.bits.getBits();
+    int words = Math.min(wa.length, wb.length);
+    switch (op) {
+    case AND:
+      return BitUtil.pop_intersect(wa, wb, 0, words);
+    case OR:
+      return BitUtil.pop_union(wa, wb, 0, words) +
+        BitUtil.pop_array(wa, words, wa.length - words) +
+        BitUtil.pop_array(wb, words, wb.length - words);
+    default:
+      return BitUtil.pop_andnot(wa, wb, 0, words) +
+        BitUtil.pop_array(wa, words, wa.length - words);
+    }
+  }
+
+  /**
+   * @return documents of a combination of two result sets
+   */
+  public static FixedBitSet combine(ResultSet a, Op op, ResultSet b) {
+    FixedBitSet res = a.bits.clone();
+    switch (op) {
+    case AND:
+      res.and(b.bits);
+      break;
+    case OR:
+      res.or(b.bits);
+      break;
+    default:
+      res.andNot(b.bits);
+    }
+    return res;
+  }
+
+  /**
+   * @return query that matches a combination of two result sets
+   */
+  public static Query combine(Query a, Op op, Query b) {
+    BooleanQuery bq = new BooleanQuery();
+    switch (op) {
+    case AND:
+      bq.add(a, BooleanClause.Occur.MUST);
+      bq.add(b, BooleanClause.Occur.MUST);
+      break;
+    case OR:
+      bq.add(a, BooleanClause.Occur.SHOULD);
+      bq.add(b, BooleanClause.Occur.SHOULD);
+      break;
+    default:
+      bq.add(a, BooleanClause.Occur.MUST);
+      bq.add(b, BooleanClause.Occur.MUST_NOT);
+    }
+    return bq;
+  }
+}
@@ -0,0 +1,192 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+
+/**
+ * Pages through top results of any depth with constant memory. The search
+ * collects only the first page, and each following page is searched again
+ * with {@link IndexSearcher#searchAfter(ScoreDoc, Query, int)}, starting
+ * after the last hit of the previous page. The last hit of each visited
+ * page is kept as a cursor, and a few recent pages are cached, so that
+ * going back is instant.
+ * <p>If a sort is set, hits are sorted by fields, and the cursors are
+ * {@link org.apache.lucene.search.FieldDoc}s that hold the sort values of
+ * the last hit.</p>
+ */
+public class SearchAfterCollector extends AccessibleHitCollector {
+  /** Number of recently visited pages kept in memory. */
+  public static final int PAGE_CACHE_SIZE = 4;
+
+  private final int pageSize;
+  private TopDocsCollector<?> tdc;
+  private IndexSearcher searcher;
+  private Query query;
+  private int totalHits = -1;
+  // last hit of each visited page, in page order
+  private ArrayList<ScoreDoc> cursors = new ArrayList<ScoreDoc>();
+  private LinkedHashMap<Integer,ScoreDoc[]> pages = new LinkedHashMap<Integer,ScoreDoc[]>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<Integer,ScoreDoc[]> eldest) {
+      return size() > PAGE_CACHE_SIZE;
+    }
+  };
+
+  public SearchAfterCollector(int pageSize, boolean outOfOrder) {
+    this(pageSize, null, outOfOrder, true);
+  }
+
+  /**
+   * @param sort sort order, or null to rank hits by score
+   * @param shouldScore compute scores of hits, if sorted by fields
+   */
+  public SearchAfterCollector(int pageSize, Sort sort, boolean outOfOrder, boolean shouldScore) {
+    this.pageSize = pageSize;
+    this.sort = sort;
+    this.outOfOrder = outOfOrder;
+    this.shouldScore = sort == null || shouldScore;
+    tdc = createTopCollector(pageSize, sort, outOfOrder, this.shouldScore);
+  }
+
+  /**
+   * Set the query and the searcher that collect the following pages. They
+   * must be the same as in the search that used this collector.
+   */
+  public void setQuery(IndexSearcher searcher, Query query) {
+    this.searcher = searcher;
+    this.query = query;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    tdc.collect(doc);
+  }
+
+  @Override
+  public int getTotalHits() {
+    if (totalHits == -1) {
+      TopDocs td = tdc.topDocs();
+      totalHits = td.totalHits;
+      addPage(0, td.scoreDocs);
+    }
+    return totalHits;
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    return page(pos / pageSize)[pos % pageSize].doc;
+  }
+
+  @Override
+  public float getScore(int pos) {
+    return page(pos / pageSize)[pos % pageSize].score;
+  }
+
+  /**
+   * @return number of pages visited so far, that have a cursor
+   */
+  public int getNumCursors() {
+    return cursors.size();
+  }
+
+  private ScoreDoc[] page(int num) {
+    getTotalHits();
+    ScoreDoc[] page = pages.get(num);
+    if (page != null) {
+      return page;
+    }
+    if (searcher == null) {
+      throw new IllegalStateException("No query to search for the next page");
+    }
+    // continue from the nearest cursor, for pages that were skipped
+    int p = Math.min(num, cursors.size());
+    try {
+      for (; p <= num; p++) {
+        ScoreDoc after = p > 0 ? cursors.get(p - 1) : null;
+        TopDocs td;
+        if (sort == null) {
+          td = searcher.searchAfter(after, query, pageSize);
+        } else {
+          td = searcher.searchAfter(after, query, null, pageSize, sort, shouldScore, shouldScore);
+        }
+        page = td.scoreDocs;
+        if (page.length == 0) {
+          throw new IndexOutOfBoundsException("No hits on page " + p);
+        }
+        addPage(p, page);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error searching page " + p + ": " + e, e);
+    }
+    return page;
+  }
+
+  private void addPage(int num, ScoreDoc[] page) {
+    pages.put(num, page);
+    if (num == cursors.size() && page.length > 0) {
+      cursors.add(page[page.length - 1]);
+    }
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return tdc.acceptsDocsOutOfOrder();
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    this.docBase = context.docBase;
+    tdc.setNextReader(context);
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException {
+    this.scorer = scorer;
+    if (shouldScore) {
+      tdc.setScorer(scorer);
+    } else {
+      tdc.setScorer(NoScoringScorer.INSTANCE);
+    }
+  }
+
+  @Override
+  public AccessibleHitCollector newSubCollector() {
+    return new SearchAfterCollector(pageSize, sort, outOfOrder, shouldScore);
+  }
+
+  /**
+   * Merge the first page. Following pages are searched by the searcher,
+   * which searches concurrently if it has an executor.
+   */
+  @Override
+  public void merge(List<AccessibleHitCollector> subs) throws IOException {
+    TopDocs[] slices = new TopDocs[subs.size()];
+    for (int i = 0; i < slices.length; i++) {
+      slices[i] = ((SearchAfterCollector)subs.get(i)).tdc.topDocs();
+    }
+    TopDocs td = mergeTopDocs(sort, pageSize, slices);
+    cursors.clear();
+    pages.clear();
+    totalHits = td.totalHits;
+    addPage(0, td.scoreDocs);
+  }
+
+  @Override
+  public void reset() {
+    tdc = createTopCollector(pageSize, sort, outOfOrder, shouldScore);
+    totalHits = -1;
+    cursors.clear();
+    pages.clear();
+  }
+}
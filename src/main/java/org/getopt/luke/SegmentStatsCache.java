@@ -0,0 +1,566 @@
+package org.getopt.luke;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Persistent cache of per-segment term statistics. Segments are write-once,
+ * so statistics computed for a segment stay valid as long as the segment
+ * exists - only new segments need to be scanned when an index is reopened
+ * after a commit.
+ * <p>Segments are identified by their name, codec and deletion generation,
+ * and entries are additionally checked against the document count and size
+ * of the segment, in case the index was re-created and the segment names
+ * were reused. For each field of a segment the cache keeps the number of
+ * terms, the Terms-level statistics, the top terms by docFreq, and a
+ * {@link HyperLogLog} sketch of its terms.</p>
+ * <p>The cache is stored in one file per index, in
+ * <code>~/.luke-cache</code>, so that read-only indexes can be cached too.
+ * When the total size of the cache exceeds the limit, the least recently used
+ * entries, and then the least recently used files of other indexes, are
+ * evicted.</p>
+ */
+public class SegmentStatsCache {
+  /** Default size limit, in MB. */
+  public static final int DEFAULT_SIZE_MB = 32;
+  /** Minimum number of top terms kept per field and segment. */
+  public static final int TOP_TERMS = 100;
+  public static final String CACHE_DIR = ".luke-cache";
+
+  private static final int MAGIC = 0x4c53430a;
+  private static final int VERSION = 3;
+
+  private final File file;
+  private final String indexPath;
+  private final long maxBytes;
+  private final HashMap<String,SegmentStats> segments = new HashMap<String,SegmentStats>();
+  private final HashMap<String,IndexStats> commits = new HashMap<String,IndexStats>();
+  private boolean dirty = false;
+
+  /**
+   * Statistics of one segment.
+   */
+  public static class SegmentStats {
+    public int docCount;
+    public long sizeInBytes;
+    /** Number of top terms collected per field. */
+    public int numTop;
+    public HashMap<String,FieldStats> fields = new HashMap<String,FieldStats>();
+    long lastUsed;
+
+    long sizeEstimate() {
+      long size = 64;
+      for (FieldStats fs : fields.values()) {
+        size += fs.sizeEstimate();
+      }
+      return size;
+    }
+  }
+
+  /**
+   * Statistics of one field in a segment.
+   */
+  public static class FieldStats {
+    public String field;
+    public long termCount;
+    public long sumDocFreq;
+    public long sumTotalTermFreq;
+    public int docCount;
+    /** Top terms, highest docFreq first. */
+    public BytesRef[] topTerms;
+    public int[] topDocFreqs;
+    public long[] topTotalTermFreqs;
+    /** Serialized {@link HyperLogLog} sketch of all terms. */
+    public byte[] hll;
+
+    /** True if the top terms are all terms of this field. */
+    public boolean isComplete() {
+      return topTerms.length == termCount;
+    }
+
+    /**
+     * Upper bound on the docFreq of a term that is not one of the top terms.
+     */
+    public int threshold() {
+      if (isComplete() || topTerms.length == 0) {
+        return 0;
+      }
+      return topDocFreqs[topDocFreqs.length - 1];
+    }
+
+    long sizeEstimate() {
+      long size = 64 + field.length() * 2 + hll.length;
+      for (BytesRef term : topTerms) {
+        size += term.length + 16;
+      }
+      return size;
+    }
+  }
+
+  /**
+   * Number of unique terms of a whole index commit.
+   */
+  public static class IndexStats {
+    public long numTerms;
+    public LinkedHashMap<String,Long> fieldTermCounts = new LinkedHashMap<String,Long>();
+    long lastUsed;
+
+    long sizeEstimate() {
+      long size = 64;
+      for (String f : fieldTermCounts.keySet()) {
+        size += f.length() * 2 + 16;
+      }
+      return size;
+    }
+  }
+
+  /**
+   * Open the cache of an index.
+   * @param reader index reader
+   * @param indexPath path of the index
+   * @return cache, or null if caching is disabled, or if the reader doesn't
+   * consist of segments
+   */
+  public static SegmentStatsCache open(IndexReader reader, String indexPath) {
+    int sizeMB = Prefs.getInteger(Prefs.P_STATS_CACHE_SIZE, DEFAULT_SIZE_MB);
+    if (sizeMB <= 0 || readerKey(reader) == null) {
+      return null;
+    }
+    String path = indexPath;
+    try {
+      path = new File(indexPath).getCanonicalPath();
+    } catch (IOException e) {}
+    File dir = new File(System.getProperty("user.home"), CACHE_DIR);
+    File file = new File(dir, Integer.toHexString(path.hashCode()) + ".stats");
+    SegmentStatsCache cache = new SegmentStatsCache(file, path, sizeMB * 1024L * 1024L);
+    try {
+      cache.load();
+    } catch (Exception e) {
+      // missing or corrupted, start with an empty cache
+      cache.segments.clear();
+      cache.commits.clear();
+    }
+    return cache;
+  }
+
+  public SegmentStatsCache(File file, String indexPath, long maxBytes) {
+    this.file = file;
+    this.indexPath = indexPath;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Identity of a segment: name, codec and deletion generation.
+   * @return key, or null if this is not a segment reader
+   */
+  public static String segmentKey(AtomicReader reader) {
+    if (!(reader instanceof SegmentReader)) {
+      return null;
+    }
+    SegmentInfoPerCommit si = ((SegmentReader)reader).getSegmentInfo();
+    return si.info.name + "/" + si.info.getCodec().getName() + "/" + si.getDelGen();
+  }
+
+  /**
+   * Identity of a commit - the keys of all its segments.
+   * @return key, or null if some leaf is not a segment
+   */
+  public static String readerKey(IndexReader reader) {
+    StringBuilder sb = new StringBuilder();
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      String key = segmentKey(ctx.reader());
+      if (key == null) {
+        return null;
+      }
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(key);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get cached statistics of a segment.
+   * @param reader segment reader
+   * @param numTop number of top terms needed per field
+   * @return statistics, or null if the segment is not cached, or if it has
+   * fewer than <code>numTop</code> top terms in some field
+   */
+  public synchronized SegmentStats get(AtomicReader reader, int numTop) throws IOException {
+    String key = segmentKey(reader);
+    if (key == null) {
+      return null;
+    }
+    SegmentStats stats = segments.get(key);
+    if (stats == null) {
+      return null;
+    }
+    SegmentInfoPerCommit si = ((SegmentReader)reader).getSegmentInfo();
+    if (stats.docCount != si.info.getDocCount() || stats.sizeInBytes != si.sizeInBytes()) {
+      // a different segment with the same name
+      segments.remove(key);
+      dirty = true;
+      return null;
+    }
+    if (stats.numTop < numTop) {
+      for (FieldStats fs : stats.fields.values()) {
+        if (!fs.isComplete()) {
+          return null;
+        }
+      }
+    }
+    stats.lastUsed = System.currentTimeMillis();
+    dirty = true;
+    return stats;
+  }
+
+  /**
+   * Get cached statistics of a segment, computing them if needed.
+   * @param reader segment reader
+   * @param numTop number of top terms needed per field
+   */
+  public SegmentStats getOrCompute(AtomicReader reader, int numTop) throws IOException {
+    SegmentStats stats = get(reader, numTop);
+    if (stats == null) {
+      stats = compute(reader, Math.max(numTop, TOP_TERMS));
+      put(reader, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Get statistics of all segments in parallel, using the cache if not null.
+   * @param cache cache, or null to compute all statistics
+   * @param leaves segments
+   * @param numTop number of top terms needed per field
+   * @param exec executor that runs one task per segment
+   */
+  public static SegmentStats[] collect(final SegmentStatsCache cache,
+      List<AtomicReaderContext> leaves, final int numTop, ExecutorService exec) throws Exception {
+    ArrayList<Future<SegmentStats>> futures = new ArrayList<Future<SegmentStats>>(leaves.size());
+    for (final AtomicReaderContext ctx : leaves) {
+      futures.add(exec.submit(new Callable<SegmentStats>() {
+        public SegmentStats call() throws Exception {
+          if (cache != null) {
+            return cache.getOrCompute(ctx.reader(), numTop);
+          }
+          return compute(ctx.reader(), Math.max(numTop, TOP_TERMS));
+        }
+      }));
+    }
+    SegmentStats[] stats = new SegmentStats[leaves.size()];
+    try {
+      for (int i = 0; i < stats.length; i++) {
+        stats[i] = Util.getResult(futures.get(i));
+      }
+    } finally {
+      for (Future<SegmentStats> f : futures) {
+        f.cancel(false);
+      }
+    }
+    return stats;
+  }
+
+  public synchronized void put(AtomicReader reader, SegmentStats stats) {
+    String key = segmentKey(reader);
+    if (key == null) {
+      return;
+    }
+    stats.lastUsed = System.currentTimeMillis();
+    segments.put(key, stats);
+    dirty = true;
+  }
+
+  /**
+   * Collect statistics of a segment, in a single pass over its terms.
+   * @param reader segment reader
+   * @param numTop number of top terms to keep per field
+   */
+  public static SegmentStats compute(AtomicReader reader, int numTop) throws IOException {
+    SegmentStats stats = new SegmentStats();
+    stats.numTop = numTop;
+    stats.docCount = reader.maxDoc();
+    if (reader instanceof SegmentReader) {
+      SegmentInfoPerCommit si = ((SegmentReader)reader).getSegmentInfo();
+      stats.docCount = si.info.getDocCount();
+      stats.sizeInBytes = si.sizeInBytes();
+    }
+    Fields fields = reader.fields();
+    if (fields == null) {
+      return stats;
+    }
+    TopTermsScanner scanner = new TopTermsScanner(numTop);
+    TermsEnum te = null;
+    for (String field : fields) {
+      Terms terms = fields.terms(field);
+      if (terms == null) {
+        continue;
+      }
+      FieldStats fs = new FieldStats();
+      fs.field = field;
+      fs.sumDocFreq = terms.getSumDocFreq();
+      fs.sumTotalTermFreq = terms.getSumTotalTermFreq();
+      fs.docCount = terms.getDocCount();
+      HyperLogLog hll = new HyperLogLog();
+      te = terms.iterator(te);
+      BytesRef term;
+      while ((term = te.next()) != null) {
+        fs.termCount++;
+        hll.add(term);
+        scanner.offer(field, term, te.docFreq(), te.totalTermFreq());
+      }
+      fs.hll = hll.toBytes();
+      TermStats[] top = scanner.topTerms();
+      fs.topTerms = new BytesRef[top.length];
+      fs.topDocFreqs = new int[top.length];
+      fs.topTotalTermFreqs = new long[top.length];
+      for (int i = 0; i < top.length; i++) {
+        fs.topTerms[i] = top[i].termtext;
+        fs.topDocFreqs[i] = top[i].docFreq;
+        fs.topTotalTermFreqs[i] = top[i].totalTermFreq;
+      }
+      stats.fields.put(field, fs);
+    }
+    return stats;
+  }
+
+  /**
+   * Get the number of unique terms of a commit. For an index with a single
+   * segment these are taken from the segment's statistics.
+   * @return statistics, or null if not cached
+   */
+  public synchronized IndexStats getIndexStats(IndexReader reader) throws IOException {
+    String key = readerKey(reader);
+    if (key == null) {
+      return null;
+    }
+    IndexStats is = commits.get(key);
+    if (is == null && reader.leaves().size() == 1) {
+      SegmentStats stats = get(reader.leaves().get(0).reader(), 0);
+      if (stats != null) {
+        is = new IndexStats();
+        for (FieldStats fs : stats.fields.values()) {
+          is.fieldTermCounts.put(fs.field, fs.termCount);
+          is.numTerms += fs.termCount;
+        }
+      }
+    }
+    if (is != null) {
+      is.lastUsed = System.currentTimeMillis();
+      dirty = true;
+    }
+    return is;
+  }
+
+  public synchronized void putIndexStats(IndexReader reader, IndexStats is) {
+    String key = readerKey(reader);
+    if (key == null) {
+      return;
+    }
+    is.lastUsed = System.currentTimeMillis();
+    commits.put(key, is);
+    dirty = true;
+  }
+
+  private void load() throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return;
+      }
+      if (!indexPath.equals(in.readUTF())) {
+        return; // hash collision
+      }
+      int n = in.readInt();
+      for (int i = 0; i < n; i++) {
+        String key = in.readUTF();
+        IndexStats is = new IndexStats();
+        is.lastUsed = in.readLong();
+        is.numTerms = in.readLong();
+        int nf = in.readInt();
+        for (int j = 0; j < nf; j++) {
+          String f = in.readUTF();
+          is.fieldTermCounts.put(f, in.readLong());
+        }
+        commits.put(key, is);
+      }
+      n = in.readInt();
+      for (int i = 0; i < n; i++) {
+        String key = in.readUTF();
+        SegmentStats stats = new SegmentStats();
+        stats.lastUsed = in.readLong();
+        stats.docCount = in.readInt();
+        stats.sizeInBytes = in.readLong();
+        stats.numTop = in.readInt();
+        int nf = in.readInt();
+        for (int j = 0; j < nf; j++) {
+          FieldStats fs = new FieldStats();
+          fs.field = in.readUTF();
+          fs.termCount = in.readLong();
+          fs.sumDocFreq = in.readLong();
+          fs.sumTotalTermFreq = in.readLong();
+          fs.docCount = in.readInt();
+          fs.hll = new byte[in.readInt()];
+          in.readFully(fs.hll);
+          int nt = in.readInt();
+          fs.topTerms = new BytesRef[nt];
+          fs.topDocFreqs = new int[nt];
+          fs.topTotalTermFreqs = new long[nt];
+          for (int k = 0; k < nt; k++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            fs.topTerms[k] = new BytesRef(bytes);
+            fs.topDocFreqs[k] = in.readInt();
+            fs.topTotalTermFreqs[k] = in.readLong();
+          }
+          stats.fields.put(fs.field, fs);
+        }
+        segments.put(key, stats);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Write the cache to disk, if it was modified. Least recently used
+   * entries are evicted first if the cache is over the size limit.
+   */
+  public synchronized void save() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    evict();
+    File dir = file.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Can't create cache directory " + dir);
+    }
+    File tmp = new File(dir, file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(indexPath);
+      out.writeInt(commits.size());
+      for (Map.Entry<String,IndexStats> e : commits.entrySet()) {
+        IndexStats is = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeLong(is.lastUsed);
+        out.writeLong(is.numTerms);
+        out.writeInt(is.fieldTermCounts.size());
+        for (Map.Entry<String,Long> fe : is.fieldTermCounts.entrySet()) {
+          out.writeUTF(fe.getKey());
+          out.writeLong(fe.getValue());
+        }
+      }
+      out.writeInt(segments.size());
+      for (Map.Entry<String,SegmentStats> e : segments.entrySet()) {
+        SegmentStats stats = e.getValue();
+        out.writeUTF(e.getKey());
+        out.writeLong(stats.lastUsed);
+        out.writeInt(stats.docCount);
+        out.writeLong(stats.sizeInBytes);
+        out.writeInt(stats.numTop);
+        out.writeInt(stats.fields.size());
+        for (FieldStats fs : stats.fields.values()) {
+          out.writeUTF(fs.field);
+          out.writeLong(fs.termCount);
+          out.writeLong(fs.sumDocFreq);
+          out.writeLong(fs.sumTotalTermFreq);
+          out.writeInt(fs.docCount);
+          out.writeInt(fs.hll.length);
+          out.write(fs.hll);
+          out.writeInt(fs.topTerms.length);
+          for (int k = 0; k < fs.topTerms.length; k++) {
+            BytesRef term = fs.topTerms[k];
+            out.writeInt(term.length);
+            out.write(term.bytes, term.offset, term.length);
+            out.writeInt(fs.topDocFreqs[k]);
+            out.writeLong(fs.topTotalTermFreqs[k]);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete()) {
+      tmp.delete();
+      throw new IOException("Can't replace " + file);
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Can't rename " + tmp + " to " + file);
+    }
+    dirty = false;
+    evictFiles(dir);
+  }
+
+  // drop the least recently used entries over the size limit
+  private void evict() {
+    ArrayList<Map.Entry<String,?>> entries = new ArrayList<Map.Entry<String,?>>();
+    entries.addAll(segments.entrySet());
+    entries.addAll(commits.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String,?>>() {
+      public int compare(Map.Entry<String,?> a, Map.Entry<String,?> b) {
+        long la = lastUsed(a.getValue());
+        long lb = lastUsed(b.getValue());
+        return la > lb ? -1 : (la < lb ? 1 : 0);
+      }
+    });
+    long size = 0;
+    for (Map.Entry<String,?> e : entries) {
+      Object v = e.getValue();
+      size += v instanceof SegmentStats ? ((SegmentStats)v).sizeEstimate() :
+        ((IndexStats)v).sizeEstimate();
+      if (size > maxBytes) {
+        if (v instanceof SegmentStats) {
+          segments.remove(e.getKey());
+        } else {
+          commits.remove(e.getKey());
+        }
+      }
+    }
+  }
+
+  private static long lastUsed(Object v) {
+    return v instanceof SegmentStats ? ((SegmentStats)v).lastUsed : ((IndexStats)v).lastUsed;
+  }
+
+  // drop the least recently used cache files of other indexes
+  private void evictFiles(File dir) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      public boolean accept(File d, String name) {
+        return name.endsWith(".stats");
+      }
+    });
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File a, File b) {
+        long la = a.lastModified();
+        long lb = b.lastModified();
+        return la > lb ? -1 : (la < lb ? 1 : 0);
+      }
+    });
+    long size = file.length();
+    for (File f : files) {
+      if (f.equals(file)) {
+        continue;
+      }
+      size += f.length();
+      if (size > maxBytes) {
+        f.delete();
+      }
+    }
+  }
+}
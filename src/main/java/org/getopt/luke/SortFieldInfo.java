@@ -0,0 +1,219 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Heap cost and load time of a sort field. Values are loaded per segment
+ * the same way {@link SortField} comparators load them - from DocValues when
+ * the segment has them for this field, otherwise by uninverting the terms
+ * into the {@link FieldCache}.
+ */
+public class SortFieldInfo {
+  public String field;
+  public SortField.Type type;
+  /** Number of segments with DocValues for this field. */
+  public int docValuesSegments;
+  /** Number of segments loaded through the FieldCache. */
+  public int fieldCacheSegments;
+  /** Number of segments that were already loaded before. */
+  public int cachedSegments;
+  /** Estimated heap size of the loaded values. */
+  public long ramBytes;
+  public long loadMillis;
+
+  /**
+   * Load the values of a sort field in all segments of a reader.
+   * @param reader index reader
+   * @param field field name
+   * @param type sort type, or null to detect it with {@link #detectType(IndexReader, String)}
+   * @throws IOException
+   */
+  public static SortFieldInfo load(IndexReader reader, String field, SortField.Type type) throws IOException {
+    SortFieldInfo info = new SortFieldInfo();
+    info.field = field;
+    info.type = type != null ? type : detectType(reader, field);
+    long start = System.nanoTime();
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      AtomicReader ar = ctx.reader();
+      FieldInfo fi = ar.getFieldInfos().fieldInfo(field);
+      if (fi == null) {
+        continue;
+      }
+      if (fi.hasDocValues()) {
+        info.docValuesSegments++;
+      } else {
+        info.fieldCacheSegments++;
+        if (isCached(ar, field)) {
+          info.cachedSegments++;
+        }
+      }
+      Object values;
+      switch (info.type) {
+      case INT:
+        values = FieldCache.DEFAULT.getInts(ar, field, false);
+        break;
+      case LONG:
+        values = FieldCache.DEFAULT.getLongs(ar, field, false);
+        break;
+      case FLOAT:
+        values = FieldCache.DEFAULT.getFloats(ar, field, false);
+        break;
+      case DOUBLE:
+        values = FieldCache.DEFAULT.getDoubles(ar, field, false);
+        break;
+      default:
+        values = FieldCache.DEFAULT.getTermsIndex(ar, field);
+      }
+      info.ramBytes += sizeOf(values, 0);
+    }
+    info.loadMillis = (System.nanoTime() - start) / 1000000;
+    return info;
+  }
+
+  private static boolean isCached(AtomicReader ar, String field) {
+    for (FieldCache.CacheEntry e : FieldCache.DEFAULT.getCacheEntries()) {
+      if (e.getReaderKey() == ar.getCoreCacheKey() && field.equals(e.getFieldName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Estimate the heap size of loaded values. Wrappers around DocValues are
+   * often anonymous classes, whose reference to the enclosing instance
+   * (the whole cache or codec producer) must not be counted.
+   */
+  private static long sizeOf(Object o, int depth) {
+    if (o == null) {
+      return 0;
+    }
+    Class<?> cls = o.getClass();
+    if (depth > 3 || !(cls.isAnonymousClass() || cls.isMemberClass() || cls.isLocalClass())) {
+      return RamUsageEstimator.sizeOf(o);
+    }
+    long size = RamUsageEstimator.shallowSizeOf(o);
+    for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field f : c.getDeclaredFields()) {
+        if (Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive() ||
+            f.getName().startsWith("this$")) {
+          continue;
+        }
+        try {
+          f.setAccessible(true);
+          size += sizeOf(f.get(o), depth + 1);
+        } catch (Exception e) {
+          // not accessible, skip
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Guess the sort type of a field. DocValues decide if present, otherwise
+   * the stored value or the numeric encoding of the first term of the
+   * field.
+   */
+  public static SortField.Type detectType(IndexReader reader, String field) throws IOException {
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      FieldInfo fi = ctx.reader().getFieldInfos().fieldInfo(field);
+      if (fi != null && fi.hasDocValues()) {
+        return fi.getDocValuesType() == FieldInfo.DocValuesType.NUMERIC ?
+            SortField.Type.LONG : SortField.Type.STRING;
+      }
+    }
+    return detectIndexedType(reader, field);
+  }
+
+  /**
+   * Guess the type of the indexed terms of a field, from the stored value
+   * or the numeric encoding of the first term. DocValues are ignored.
+   */
+  public static SortField.Type detectIndexedType(IndexReader reader, String field) throws IOException {
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      AtomicReader ar = ctx.reader();
+      Terms terms = ar.terms(field);
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum te = terms.iterator(null);
+      BytesRef term = te.next();
+      if (term == null) {
+        continue;
+      }
+      DocsEnum de = te.docs(ar.getLiveDocs(), null, DocsEnum.FLAG_NONE);
+      int doc = de.nextDoc();
+      if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(field);
+        ar.document(doc, visitor);
+        Document d = visitor.getDocument();
+        IndexableField f = d.getField(field);
+        Number n = f != null ? f.numericValue() : null;
+        if (n instanceof Integer || n instanceof Short || n instanceof Byte) {
+          return SortField.Type.INT;
+        } else if (n instanceof Long) {
+          return SortField.Type.LONG;
+        } else if (n instanceof Float) {
+          return SortField.Type.FLOAT;
+        } else if (n instanceof Double) {
+          return SortField.Type.DOUBLE;
+        } else if (f != null) {
+          return SortField.Type.STRING;
+        }
+      }
+      // unstored - the lowest terms of numeric fields are full precision
+      if (term.length > 0) {
+        if (term.bytes[term.offset] == NumericUtils.SHIFT_START_INT) {
+          return SortField.Type.INT;
+        } else if (term.bytes[term.offset] == NumericUtils.SHIFT_START_LONG) {
+          return SortField.Type.LONG;
+        }
+      }
+      return SortField.Type.STRING;
+    }
+    return SortField.Type.STRING;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(field).append(" (").append(type).append("): ");
+    if (docValuesSegments > 0) {
+      sb.append(docValuesSegments).append(" segment(s) from DocValues");
+    }
+    if (fieldCacheSegments > 0) {
+      if (docValuesSegments > 0) {
+        sb.append(", ");
+      }
+      sb.append(fieldCacheSegments).append(" from FieldCache");
+      if (cachedSegments > 0) {
+        sb.append(" (").append(cachedSegments).append(" already cached)");
+      }
+    }
+    if (docValuesSegments == 0 && fieldCacheSegments == 0) {
+      sb.append("no values");
+    }
+    sb.append(", ").append(RamUsageEstimator.humanReadableUnits(ramBytes)).append(" heap");
+    sb.append(", loaded in ").append(loadMillis).append(" ms");
+    return sb.toString();
+  }
+}
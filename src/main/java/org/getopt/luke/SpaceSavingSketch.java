@@ -0,0 +1,221 @@
+package org.getopt.luke;
+
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Weighted Space-Saving summary (Metwally et al.) of a stream of terms.
+ * At most <code>capacity</code> terms are monitored. When a new term arrives
+ * and the summary is full, the term with the smallest count is replaced, and
+ * the new term inherits that count as its error.
+ * <p>For every monitored term the true count lies in
+ * <code>[count - error, count]</code>, and no unmonitored term has a true
+ * count larger than {@link #floor()}. Summaries built over disjoint parts
+ * of a stream can be combined with {@link #merge(SpaceSavingSketch)}.</p>
+ */
+public final class SpaceSavingSketch {
+  private final int capacity;
+  private final BytesRef[] terms;
+  private final long[] counts;
+  private final long[] errors;
+  // min-heap of slots by count, 1-based, with the position of each slot
+  private final int[] heap;
+  private final int[] pos;
+  private final Integer[] ids;
+  private final HashMap<BytesRef,Integer> index;
+  private int size = 0;
+  private long floor = 0;
+  private long totalWeight = 0;
+
+  public SpaceSavingSketch(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+    }
+    this.capacity = capacity;
+    terms = new BytesRef[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+    heap = new int[capacity + 1];
+    pos = new int[capacity];
+    ids = new Integer[capacity];
+    for (int i = 0; i < capacity; i++) {
+      ids[i] = Integer.valueOf(i);
+    }
+    index = new HashMap<BytesRef,Integer>(capacity * 2);
+  }
+
+  /**
+   * Add a weighted occurrence of a term. The term's bytes are copied if
+   * it needs to be monitored.
+   */
+  public void add(BytesRef term, long weight) {
+    totalWeight += weight;
+    Integer id = index.get(term);
+    if (id != null) {
+      int slot = id.intValue();
+      counts[slot] += weight;
+      downHeap(pos[slot]);
+      return;
+    }
+    if (size < capacity) {
+      int slot = size;
+      size++;
+      terms[slot] = BytesRef.deepCopyOf(term);
+      counts[slot] = floor + weight;
+      errors[slot] = floor;
+      heap[size] = slot;
+      pos[slot] = size;
+      upHeap(size);
+      index.put(terms[slot], ids[slot]);
+      return;
+    }
+    // replace the least frequent term
+    int slot = heap[1];
+    floor = Math.max(floor, counts[slot]);
+    index.remove(terms[slot]);
+    terms[slot].copyBytes(term);
+    index.put(terms[slot], ids[slot]);
+    counts[slot] = floor + weight;
+    errors[slot] = floor;
+    downHeap(1);
+  }
+
+  /**
+   * Combine with a summary of a disjoint part of the stream. A term missing
+   * from one of the summaries may have had up to that summary's floor
+   * occurrences there, so the floor is added both to its count and to its
+   * error. Only the <code>capacity</code> terms with the highest counts are
+   * kept.
+   */
+  public void merge(SpaceSavingSketch other) {
+    int n = size + other.size;
+    BytesRef[] mTerms = new BytesRef[n];
+    long[] mCounts = new long[n];
+    long[] mErrors = new long[n];
+    int m = 0;
+    for (int i = 0; i < size; i++) {
+      mTerms[m] = terms[i];
+      Integer o = other.index.get(terms[i]);
+      if (o != null) {
+        mCounts[m] = counts[i] + other.counts[o.intValue()];
+        mErrors[m] = errors[i] + other.errors[o.intValue()];
+      } else {
+        mCounts[m] = counts[i] + other.floor;
+        mErrors[m] = errors[i] + other.floor;
+      }
+      m++;
+    }
+    for (int i = 0; i < other.size; i++) {
+      if (index.containsKey(other.terms[i])) {
+        continue;
+      }
+      mTerms[m] = BytesRef.deepCopyOf(other.terms[i]);
+      mCounts[m] = other.counts[i] + floor;
+      mErrors[m] = other.errors[i] + floor;
+      m++;
+    }
+    long newFloor = floor + other.floor;
+    Integer[] order = new Integer[m];
+    for (int i = 0; i < m; i++) {
+      order[i] = Integer.valueOf(i);
+    }
+    final long[] c = mCounts;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long ca = c[a.intValue()];
+        long cb = c[b.intValue()];
+        return ca > cb ? -1 : (ca < cb ? 1 : 0);
+      }
+    });
+    int keep = Math.min(m, capacity);
+    if (keep < m) {
+      // truncated terms may have had this many occurrences
+      newFloor = Math.max(newFloor, mCounts[order[keep].intValue()]);
+    }
+    index.clear();
+    size = 0;
+    for (int i = 0; i < keep; i++) {
+      int j = order[i].intValue();
+      int slot = size;
+      size++;
+      terms[slot] = mTerms[j];
+      counts[slot] = mCounts[j];
+      errors[slot] = mErrors[j];
+      heap[size] = slot;
+      pos[slot] = size;
+      upHeap(size);
+      index.put(terms[slot], ids[slot]);
+    }
+    floor = newFloor;
+    totalWeight += other.totalWeight;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /** Upper bound on the count of any term that is not monitored. */
+  public long floor() {
+    return floor;
+  }
+
+  /** Sum of all weights added to this summary. */
+  public long totalWeight() {
+    return totalWeight;
+  }
+
+  public BytesRef term(int slot) {
+    return terms[slot];
+  }
+
+  /** Estimated count - never smaller than the true count. */
+  public long count(int slot) {
+    return counts[slot];
+  }
+
+  /** Maximum over-estimation of {@link #count(int)}. */
+  public long error(int slot) {
+    return errors[slot];
+  }
+
+  private void upHeap(int i) {
+    int node = heap[i];
+    int j = i >>> 1;
+    while (j > 0 && counts[node] < counts[heap[j]]) {
+      heap[i] = heap[j];
+      pos[heap[i]] = i;
+      i = j;
+      j = j >>> 1;
+    }
+    heap[i] = node;
+    pos[node] = i;
+  }
+
+  private void downHeap(int i) {
+    int node = heap[i];
+    int j = i << 1;
+    int k = j + 1;
+    if (k <= size && counts[heap[k]] < counts[heap[j]]) {
+      j = k;
+    }
+    while (j <= size && counts[heap[j]] < counts[node]) {
+      heap[i] = heap[j];
+      pos[heap[i]] = i;
+      i = j;
+      j = i << 1;
+      k = j + 1;
+      if (k <= size && counts[heap[k]] < counts[heap[j]]) {
+        j = k;
+      }
+    }
+    heap[i] = node;
+    pos[node] = i;
+  }
+}
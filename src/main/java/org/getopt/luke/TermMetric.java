@@ -0,0 +1,94 @@
+package org.getopt.luke;
+
+/**
+ * Metrics used for ranking top terms. All of them are computed from the
+ * statistics available in the term dictionary, i.e. docFreq and
+ * totalTermFreq, so they don't require visiting postings.
+ */
+public final class TermMetric {
+  /** Number of documents containing the term. */
+  public static final int DOC_FREQ          = 0;
+  /** Total number of occurrences of the term. */
+  public static final int TOTAL_TERM_FREQ   = 1;
+  /** Estimated size of the term's postings, in bytes. */
+  public static final int POSTINGS_BYTES    = 2;
+  /** Total number of occurrences, weighted by idf. */
+  public static final int IDF_WEIGHTED      = 3;
+
+  /** Short names, as used on the command-line. */
+  public static final String[] NAMES = {"df", "ttf", "bytes", "idf"};
+  /** Labels for display. */
+  public static final String[] LABELS = {"docFreq", "totalTermFreq",
+    "est. postings bytes", "idf-weighted totalTermFreq"};
+
+  private TermMetric() {}
+
+  /**
+   * Find a metric by its short name.
+   * @return metric, or -1 if unknown
+   */
+  public static int parse(String name) {
+    for (int i = 0; i < NAMES.length; i++) {
+      if (NAMES[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Calculate the value of a metric.
+   * @param metric one of the metric constants
+   * @param docFreq term's docFreq
+   * @param totalTermFreq term's totalTermFreq, or -1 if frequencies are
+   * omitted in this field
+   * @param maxDoc maxDoc of the index
+   */
+  public static double value(int metric, int docFreq, long totalTermFreq, int maxDoc) {
+    switch (metric) {
+    case DOC_FREQ:
+      return docFreq;
+    case TOTAL_TERM_FREQ:
+      return totalTermFreq == -1 ? docFreq : totalTermFreq;
+    case POSTINGS_BYTES:
+      return postingsBytes(docFreq, totalTermFreq, maxDoc);
+    case IDF_WEIGHTED:
+      long tf = totalTermFreq == -1 ? docFreq : totalTermFreq;
+      // same formula as DefaultSimilarity
+      double idf = Math.log(maxDoc / (double)(docFreq + 1)) + 1.0;
+      return tf * idf;
+    default:
+      throw new IllegalArgumentException("Unknown metric: " + metric);
+    }
+  }
+
+  public static double value(int metric, TermStats ts, int maxDoc) {
+    return value(metric, ts.docFreq, ts.totalTermFreq, maxDoc);
+  }
+
+  /**
+   * Rough estimate of the postings size: doc deltas are written as vInts of
+   * the average gap between documents, followed by a freq vInt when
+   * frequencies are indexed, and each position costs about one byte.
+   */
+  static double postingsBytes(int docFreq, long totalTermFreq, int maxDoc) {
+    if (docFreq == 0) {
+      return 0;
+    }
+    long gap = Math.max(1, maxDoc / docFreq);
+    int bytesPerDoc = vIntSize(gap);
+    if (totalTermFreq == -1) {
+      return (double)docFreq * bytesPerDoc;
+    }
+    return (double)docFreq * (bytesPerDoc + 1) + totalTermFreq;
+  }
+
+  private static int vIntSize(long v) {
+    int size = 1;
+    while ((v & ~0x7FL) != 0) {
+      v >>>= 7;
+      size++;
+    }
+    return size;
+  }
+}
@@ -24,6 +24,10 @@ public final class TermStats {
   public String field;
   public int docFreq;
   public long totalTermFreq;
+  /** True if docFreq is an estimate, see {@link TopTermsEngine#getApproxHighFreqTerms(int, String[], float)}. */
+  public boolean estimated = false;
+  /** Maximum over-estimation of an estimated docFreq. */
+  public int docFreqError = 0;
   
   TermStats(String field, BytesRef termtext, int df) {
     this.termtext = (BytesRef)termtext.clone();
@@ -0,0 +1,736 @@
+package org.getopt.luke;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.PriorityQueue;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Parallel replacement for {@link HighFreqTerms#getHighFreqTerms(IndexReader, int, String[])}.
+ * Instead of walking the merged {@link MultiFields} view on a single thread,
+ * the term dictionary of each segment is decoded by its own task, in chunks
+ * of terms, and a single merge loop sums up docFreq and totalTermFreq across
+ * segments with a sorted k-way merge of the per-segment chunks.
+ * <p>Each segment keeps at most two chunks in memory - the one being merged,
+ * and the one being decoded in the background - so memory use doesn't depend
+ * on the size of the term dictionary.</p>
+ *
+ * @author ab
+ */
+public class TopTermsEngine extends Observable implements Abortable {
+  /** Number of terms decoded by one segment task. */
+  public static final int CHUNK_SIZE = 4096;
+  /** Terms monitored per field in approximate mode, per requested top term. */
+  public static final int SKETCH_FACTOR = 20;
+  public static final int MIN_SKETCH_CAPACITY = 1000;
+
+  private static final long SAMPLE_SEED = 0x5eedL;
+  // approximate cost of a term lookup, in terms read sequentially
+  private static final int SEEK_COST = 32;
+
+  private static final TermStats[] EMPTY_STATS = new TermStats[0];
+
+  /**
+   * Receives the terms of a field in index order, with their statistics
+   * summed across segments.
+   */
+  interface TermConsumer {
+    void term(BytesRef term, int docFreq, long totalTermFreq);
+  }
+
+  private IndexReader reader;
+  private ExecutorService executor;
+  private SegmentStatsCache cache = null;
+  private Callable<SegmentStatsCache.SegmentStats[]> segmentStats = null;
+  private int segmentStatsTop = 0;
+  private volatile boolean abort = false;
+  private ProgressNotification pn = new ProgressNotification();
+
+  /**
+   * Create an engine that uses a private pool of threads, one per available
+   * CPU, for the duration of each call.
+   * @param reader index reader
+   */
+  public TopTermsEngine(IndexReader reader) {
+    this(reader, null);
+  }
+
+  /**
+   * Create an engine that runs segment tasks on the given executor.
+   * @param reader index reader
+   * @param executor executor to use, or null to use a private pool
+   */
+  public TopTermsEngine(IndexReader reader, ExecutorService executor) {
+    this.reader = reader;
+    this.executor = executor;
+  }
+
+  /**
+   * Use cached per-segment top terms where possible. Only segments missing
+   * from the cache are scanned, and their statistics are added to the cache.
+   * @param cache cache, or null to always scan all segments
+   */
+  public void setCache(SegmentStatsCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Take the statistics of all segments from another consumer, instead of
+   * collecting them from the cache, so that segments are not read twice.
+   * Used only if a cache is set.
+   * @param stats returns statistics of all segments of the reader, in order
+   * @param numTop number of top terms per field they were collected for
+   */
+  public void setSegmentStats(Callable<SegmentStatsCache.SegmentStats[]> stats, int numTop) {
+    this.segmentStats = stats;
+    this.segmentStatsTop = numTop;
+  }
+
+  /**
+   * Stop the running and all later calls of this engine.
+   */
+  public void abort() {
+    abort = true;
+  }
+
+  public boolean isAborted() {
+    return abort;
+  }
+
+  /**
+   * Collect top terms by docFreq.
+   * @param numTerms number of top terms to return
+   * @param fieldNames collect terms only from these fields, or from all fields if null
+   * @return TermStats[] ordered by terms with highest docFreq first. If the
+   * operation was aborted this contains the top terms found so far.
+   * @throws Exception
+   */
+  public TermStats[] getHighFreqTerms(int numTerms, String[] fieldNames) throws Exception {
+    return getHighFreqTerms(numTerms, fieldNames, TermMetric.DOC_FREQ);
+  }
+
+  /**
+   * Collect top terms. Both docFreq and totalTermFreq of the returned terms
+   * are summed across all segments.
+   * @param numTerms number of top terms to return
+   * @param fieldNames collect terms only from these fields, or from all fields if null
+   * @param metric one of {@link TermMetric} constants
+   * @return TermStats[] ordered by terms with highest metric value first. If the
+   * operation was aborted this contains the top terms found so far.
+   * @throws Exception
+   */
+  public TermStats[] getHighFreqTerms(int numTerms, String[] fieldNames, int metric) throws Exception {
+    if (fieldNames == null) {
+      fieldNames = allFields();
+      if (fieldNames == null) {
+        return EMPTY_STATS;
+      }
+    }
+    List<AtomicReaderContext> leaves = reader.leaves();
+    startProgress("Collecting top terms ...", fieldNames.length * leaves.size());
+    ExecutorService exec = executor;
+    if (exec == null) {
+      exec = newExecutor();
+    }
+    final TopTermsScanner scanner = new TopTermsScanner(numTerms, metric, reader.maxDoc());
+    try {
+      if (cache != null && metric == TermMetric.DOC_FREQ && numTerms > 0 &&
+          SegmentStatsCache.readerKey(reader) != null) {
+        fieldNames = mergeCached(fieldNames, leaves, exec, scanner);
+      }
+      for (final String field : fieldNames) {
+        if (abort) {
+          break;
+        }
+        pn.message = "Collecting top terms in '" + field + "' ...";
+        setChanged();
+        notifyObservers(pn);
+        mergeField(field, leaves, exec, new TermConsumer() {
+          public void term(BytesRef term, int docFreq, long totalTermFreq) {
+            scanner.offer(field, term, docFreq, totalTermFreq);
+          }
+        });
+      }
+    } finally {
+      if (executor == null) {
+        exec.shutdownNow();
+      }
+    }
+    finishProgress();
+    return scanner.topTerms();
+  }
+
+  /**
+   * Estimate top terms by docFreq. Terms of each segment are streamed into
+   * {@link SpaceSavingSketch} summaries - one per task - which are merged
+   * at the end, so no k-way merge of the term dictionaries is needed. Each
+   * returned term reports the maximum over-estimation of its docFreq in
+   * {@link TermStats#docFreqError}.
+   * <p>Optionally only a sample of segments is scanned. Segments are picked
+   * at random, with probability proportional to their size, until
+   * <code>sampleRatio</code> of all documents is covered, and the counts
+   * are scaled up accordingly. Note that the reported error bounds don't
+   * include the sampling error.</p>
+   * @param numTerms number of top terms to return
+   * @param fieldNames collect terms only from these fields, or from all fields if null
+   * @param sampleRatio fraction of documents to sample, 1.0 to scan all segments
+   * @return TermStats[] ordered by terms with highest estimated docFreq first.
+   * totalTermFreq is not collected in this mode and is set to -1.
+   * @throws Exception
+   */
+  public TermStats[] getApproxHighFreqTerms(int numTerms, String[] fieldNames,
+      float sampleRatio) throws Exception {
+    if (fieldNames == null) {
+      fieldNames = allFields();
+      if (fieldNames == null) {
+        return EMPTY_STATS;
+      }
+    }
+    List<AtomicReaderContext> leaves = sampleLeaves(reader.leaves(), sampleRatio);
+    boolean sampled = leaves.size() < reader.leaves().size();
+    long sampledDocs = 0;
+    for (AtomicReaderContext ctx : leaves) {
+      sampledDocs += ctx.reader().maxDoc();
+    }
+    double scale = sampledDocs == 0 ? 1.0 : reader.maxDoc() / (double)sampledDocs;
+    startProgress("Estimating top terms ...", fieldNames.length * leaves.size());
+    ExecutorService exec = executor;
+    if (exec == null) {
+      exec = newExecutor();
+    }
+    int capacity = Math.max(numTerms * SKETCH_FACTOR, MIN_SKETCH_CAPACITY);
+    TermStatsQueue tiq = new TermStatsQueue(numTerms);
+    try {
+      for (String field : fieldNames) {
+        if (abort) {
+          break;
+        }
+        pn.message = "Estimating top terms in '" + field + "' ...";
+        setChanged();
+        notifyObservers(pn);
+        SpaceSavingSketch sketch = sketchField(field, leaves, exec, capacity);
+        if (sketch == null) {
+          continue;
+        }
+        for (int i = 0; i < sketch.size(); i++) {
+          int df = (int)Math.min(Integer.MAX_VALUE, Math.round(sketch.count(i) * scale));
+          if (numTerms == 0 || (tiq.size() == numTerms && df <= tiq.top().docFreq)) {
+            continue;
+          }
+          TermStats ts = new TermStats(field, BytesRef.deepCopyOf(sketch.term(i)), df, -1);
+          ts.docFreqError = (int)Math.min(Integer.MAX_VALUE, Math.round(sketch.error(i) * scale));
+          ts.estimated = sampled || ts.docFreqError > 0;
+          tiq.insertWithOverflow(ts);
+        }
+      }
+    } finally {
+      if (executor == null) {
+        exec.shutdownNow();
+      }
+    }
+    finishProgress();
+    TermStats[] result = new TermStats[tiq.size()];
+    for (int i = result.length - 1; i >= 0; i--) {
+      result[i] = tiq.pop();
+    }
+    return result;
+  }
+
+  /**
+   * Collect top terms from the cached top terms of each segment, using the
+   * threshold algorithm. Each segment lists its top terms by docFreq, so a
+   * term missing from a segment's list has at most the docFreq of the last
+   * listed term there. The candidate terms from all lists get their exact
+   * docFreq by looking them up in the segments that don't list them. The
+   * result for a field is exact if no term missing from all lists could
+   * make it to the top.
+   * @return fields for which the cached statistics were not enough, or
+   * would be too expensive to verify, and that need to be merged
+   */
+  private String[] mergeCached(String[] fieldNames, List<AtomicReaderContext> leaves,
+      ExecutorService exec, TopTermsScanner scanner) throws Exception {
+    int numTerms = scanner.getNumTerms();
+    pn.message = "Reading cached segment statistics ...";
+    setChanged();
+    notifyObservers(pn);
+    SegmentStatsCache.SegmentStats[] stats;
+    if (segmentStats != null && numTerms <= segmentStatsTop) {
+      stats = segmentStats.call();
+    } else {
+      stats = SegmentStatsCache.collect(cache, leaves, numTerms, exec);
+    }
+    ArrayList<String> rest = new ArrayList<String>();
+    ArrayList<CachedField> pending = new ArrayList<CachedField>();
+    for (String field : fieldNames) {
+      if (abort) {
+        break;
+      }
+      CachedField cf = candidates(field, leaves, stats, numTerms);
+      if (cf == null) {
+        rest.add(field);
+        continue;
+      }
+      if (cf.bound == 0 || cf.bound <= cf.kth) {
+        cf.offerTo(scanner);
+      } else {
+        pending.add(cf);
+      }
+      addProgress(leaves.size());
+    }
+    // terms missing from the lists don't matter if they can't make it to
+    // the top across all fields
+    for (CachedField cf : pending) {
+      if (!scanner.isCompetitive(cf.bound)) {
+        cf.offerTo(scanner);
+      } else {
+        addProgress(-leaves.size());
+        rest.add(cf.field);
+      }
+    }
+    return rest.toArray(new String[rest.size()]);
+  }
+
+  private CachedField candidates(String field, List<AtomicReaderContext> leaves,
+      SegmentStatsCache.SegmentStats[] stats, int numTerms) throws Exception {
+    CachedField cf = new CachedField(field);
+    SegmentStatsCache.FieldStats[] fs = new SegmentStatsCache.FieldStats[stats.length];
+    long[] thresholds = new long[stats.length];
+    long termCount = 0;
+    HashMap<BytesRef,Candidate> cands = new HashMap<BytesRef,Candidate>();
+    for (int s = 0; s < stats.length; s++) {
+      fs[s] = stats[s].fields.get(field);
+      if (fs[s] == null) {
+        continue;
+      }
+      termCount += fs[s].termCount;
+      thresholds[s] = fs[s].threshold();
+      cf.bound += thresholds[s];
+      for (int i = 0; i < fs[s].topTerms.length; i++) {
+        BytesRef term = fs[s].topTerms[i];
+        Candidate c = cands.get(term);
+        if (c == null) {
+          c = new Candidate(term, stats.length);
+          cands.put(term, c);
+        }
+        c.listed[s] = true;
+        c.docFreq += fs[s].topDocFreqs[i];
+        c.listedBound += thresholds[s];
+        long ttf = fs[s].topTotalTermFreqs[i];
+        c.totalTermFreq = ttf == -1 || c.totalTermFreq == -1 ? -1 : c.totalTermFreq + ttf;
+      }
+    }
+    ArrayList<Candidate> list = new ArrayList<Candidate>(cands.values());
+    Collections.sort(list);
+    long kthLower = list.size() >= numTerms ? list.get(numTerms - 1).docFreq : 0;
+    long seeks = 0;
+    for (Candidate c : list) {
+      if (c.docFreq + cf.bound - c.listedBound < kthLower) {
+        continue; // can't make it to the top of this field
+      }
+      for (int s = 0; s < stats.length; s++) {
+        if (!c.listed[s] && thresholds[s] != 0) {
+          seeks++;
+        }
+      }
+      cf.exact.add(c);
+    }
+    if (seeks * SEEK_COST > termCount) {
+      return null; // cheaper to merge all terms
+    }
+    TermsEnum[] tes = new TermsEnum[stats.length];
+    for (Candidate c : cf.exact) {
+      for (int s = 0; s < stats.length; s++) {
+        if (c.listed[s] || thresholds[s] == 0) {
+          continue;
+        }
+        if (tes[s] == null) {
+          tes[s] = leaves.get(s).reader().terms(field).iterator(null);
+        }
+        if (tes[s].seekExact(c.term, false)) {
+          c.docFreq += tes[s].docFreq();
+          long ttf = tes[s].totalTermFreq();
+          c.totalTermFreq = ttf == -1 || c.totalTermFreq == -1 ? -1 : c.totalTermFreq + ttf;
+        }
+      }
+    }
+    Collections.sort(cf.exact);
+    if (cf.exact.size() >= numTerms) {
+      cf.kth = cf.exact.get(numTerms - 1).docFreq;
+    }
+    return cf;
+  }
+
+  private String[] allFields() throws Exception {
+    Fields fields = MultiFields.getFields(reader);
+    if (fields == null) {
+      return null;
+    }
+    ArrayList<String> names = new ArrayList<String>();
+    Iterator<String> it = fields.iterator();
+    while (it.hasNext()) {
+      names.add(it.next());
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  private static ExecutorService newExecutor() {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  private void startProgress(String message, int max) {
+    pn.message = message;
+    pn.minValue = 0;
+    pn.maxValue = max;
+    pn.curValue = 0;
+    pn.aborted = false;
+    setChanged();
+    notifyObservers(pn);
+  }
+
+  private void finishProgress() {
+    if (abort) {
+      pn.message = "User requested abort.";
+      pn.aborted = true;
+    } else {
+      pn.message = "Done.";
+      pn.curValue = pn.maxValue;
+    }
+    setChanged();
+    notifyObservers(pn);
+  }
+
+  /**
+   * Pick segments at random, with probability proportional to their size,
+   * until the requested ratio of documents is covered.
+   */
+  private static List<AtomicReaderContext> sampleLeaves(List<AtomicReaderContext> leaves,
+      float sampleRatio) {
+    if (sampleRatio >= 1.0f || leaves.size() < 2) {
+      return leaves;
+    }
+    long total = 0;
+    for (AtomicReaderContext ctx : leaves) {
+      total += ctx.reader().maxDoc();
+    }
+    // weighted sampling without replacement (Efraimidis-Spirakis)
+    Random random = new Random(SAMPLE_SEED);
+    final double[] keys = new double[leaves.size()];
+    Integer[] order = new Integer[leaves.size()];
+    for (int i = 0; i < keys.length; i++) {
+      int w = Math.max(1, leaves.get(i).reader().maxDoc());
+      keys[i] = Math.pow(random.nextDouble(), 1.0 / w);
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Double.compare(keys[b.intValue()], keys[a.intValue()]);
+      }
+    });
+    ArrayList<AtomicReaderContext> res = new ArrayList<AtomicReaderContext>();
+    long docs = 0;
+    for (int i = 0; i < order.length && docs < sampleRatio * total; i++) {
+      AtomicReaderContext ctx = leaves.get(order[i].intValue());
+      res.add(ctx);
+      docs += ctx.reader().maxDoc();
+    }
+    return res;
+  }
+
+  // stream the terms of a field into one sketch per task, and merge them
+  private SpaceSavingSketch sketchField(final String field, List<AtomicReaderContext> leaves,
+      ExecutorService exec, final int capacity) throws Exception {
+    int nTasks = Math.min(leaves.size(), Runtime.getRuntime().availableProcessors());
+    if (nTasks == 0) {
+      return null;
+    }
+    // deal the segments round-robin, largest first, to balance the tasks
+    ArrayList<AtomicReaderContext> bySize = new ArrayList<AtomicReaderContext>(leaves);
+    Collections.sort(bySize, new Comparator<AtomicReaderContext>() {
+      public int compare(AtomicReaderContext a, AtomicReaderContext b) {
+        return b.reader().maxDoc() - a.reader().maxDoc();
+      }
+    });
+    ArrayList<Future<SpaceSavingSketch>> futures = new ArrayList<Future<SpaceSavingSketch>>(nTasks);
+    for (int t = 0; t < nTasks; t++) {
+      final ArrayList<AtomicReaderContext> group = new ArrayList<AtomicReaderContext>();
+      for (int i = t; i < bySize.size(); i += nTasks) {
+        group.add(bySize.get(i));
+      }
+      futures.add(exec.submit(new Callable<SpaceSavingSketch>() {
+        public SpaceSavingSketch call() throws Exception {
+          SpaceSavingSketch sketch = new SpaceSavingSketch(capacity);
+          TermsEnum te = null;
+          for (AtomicReaderContext ctx : group) {
+            Terms terms = ctx.reader().terms(field);
+            if (terms != null) {
+              te = terms.iterator(te);
+              BytesRef term;
+              while ((term = te.next()) != null) {
+                if (abort) {
+                  return sketch;
+                }
+                sketch.add(term, te.docFreq());
+              }
+            }
+            addProgress(1);
+          }
+          return sketch;
+        }
+      }));
+    }
+    SpaceSavingSketch res = null;
+    try {
+      for (Future<SpaceSavingSketch> f : futures) {
+        SpaceSavingSketch sketch = Util.getResult(f);
+        if (res == null) {
+          res = sketch;
+        } else {
+          res.merge(sketch);
+        }
+      }
+    } finally {
+      for (Future<SpaceSavingSketch> f : futures) {
+        f.cancel(false);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Count segments done. Workers of several fields call it concurrently.
+   */
+  private synchronized void addProgress(int leaves) {
+    pn.curValue += leaves;
+    setChanged();
+    notifyObservers(pn);
+  }
+
+  /**
+   * Merge the terms of a field from all segments.
+   * @param exec executor that decodes the segments' terms - merging waits
+   * for these tasks, so it must not run on a bounded executor shared with them
+   */
+  void mergeField(String field, List<AtomicReaderContext> leaves,
+      ExecutorService exec, TermConsumer consumer) throws Exception {
+    Comparator<BytesRef> cmp = null;
+    ArrayList<LeafCursor> cursors = new ArrayList<LeafCursor>(leaves.size());
+    for (AtomicReaderContext ctx : leaves) {
+      Terms terms = ctx.reader().terms(field);
+      if (terms == null) {
+        addProgress(1);
+        continue;
+      }
+      if (cmp == null) {
+        cmp = terms.getComparator();
+      }
+      LeafCursor c = new LeafCursor(terms.iterator(null), exec);
+      cursors.add(c);
+    }
+    if (cursors.isEmpty()) {
+      return;
+    }
+    CursorQueue pq = new CursorQueue(cursors.size(), cmp);
+    try {
+      for (LeafCursor c : cursors) {
+        if (c.next()) {
+          pq.add(c);
+        } else {
+          addProgress(1);
+        }
+      }
+      BytesRef merged = new BytesRef();
+      while (pq.size() > 0) {
+        if (abort) {
+          return;
+        }
+        LeafCursor top = pq.top();
+        merged.copyBytes(top.term);
+        int docFreq = 0;
+        long totalTermFreq = 0;
+        do {
+          docFreq += top.docFreq();
+          long ttf = top.totalTermFreq();
+          if (ttf == -1 || totalTermFreq == -1) {
+            totalTermFreq = -1; // frequencies omitted in some segment
+          } else {
+            totalTermFreq += ttf;
+          }
+          if (top.next()) {
+            top = pq.updateTop();
+          } else {
+            pq.pop();
+            addProgress(1);
+            top = pq.top();
+          }
+        } while (top != null && top.term.bytesEquals(merged));
+        consumer.term(merged, docFreq, totalTermFreq);
+      }
+    } finally {
+      for (LeafCursor c : cursors) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * A term from the cached top terms of some segments.
+   */
+  private static final class Candidate implements Comparable<Candidate> {
+    final BytesRef term;
+    final boolean[] listed;
+    long docFreq = 0;
+    long totalTermFreq = 0;
+    // sum of the thresholds of the segments that list this term
+    long listedBound = 0;
+
+    Candidate(BytesRef term, int numSegments) {
+      this.term = term;
+      listed = new boolean[numSegments];
+    }
+
+    public int compareTo(Candidate other) {
+      return docFreq > other.docFreq ? -1 : (docFreq < other.docFreq ? 1 : 0);
+    }
+  }
+
+  /**
+   * Candidates with exact statistics for one field, and an upper bound on
+   * the docFreq of the terms not listed in any segment.
+   */
+  private static final class CachedField {
+    final String field;
+    final ArrayList<Candidate> exact = new ArrayList<Candidate>();
+    long bound = 0;
+    long kth = -1;
+
+    CachedField(String field) {
+      this.field = field;
+    }
+
+    void offerTo(TopTermsScanner scanner) {
+      for (Candidate c : exact) {
+        scanner.offer(field, c.term, (int)c.docFreq, c.totalTermFreq);
+      }
+    }
+  }
+
+  /**
+   * A block of consecutive terms from one segment.
+   */
+  private static final class Chunk {
+    byte[] bytes = new byte[CHUNK_SIZE * 8];
+    int[] starts = new int[CHUNK_SIZE + 1];
+    int[] docFreqs = new int[CHUNK_SIZE];
+    long[] totalTermFreqs = new long[CHUNK_SIZE];
+    int size;
+    boolean last;
+
+    void fill(TermsEnum te) throws Exception {
+      size = 0;
+      last = false;
+      int upto = 0;
+      BytesRef term;
+      while (size < CHUNK_SIZE) {
+        if ((term = te.next()) == null) {
+          last = true;
+          break;
+        }
+        if (upto + term.length > bytes.length) {
+          bytes = ArrayUtil.grow(bytes, upto + term.length);
+        }
+        System.arraycopy(term.bytes, term.offset, bytes, upto, term.length);
+        starts[size] = upto;
+        docFreqs[size] = te.docFreq();
+        totalTermFreqs[size] = te.totalTermFreq();
+        upto += term.length;
+        size++;
+      }
+      starts[size] = upto;
+    }
+  }
+
+  /**
+   * Iterates over the terms of one segment. The next chunk is always decoded
+   * in the background while the current one is being merged.
+   */
+  private static final class LeafCursor implements Callable<Chunk> {
+    final TermsEnum te;
+    final ExecutorService exec;
+    final BytesRef term = new BytesRef();
+    Chunk current = null;
+    Chunk spare = new Chunk();
+    Future<Chunk> pending;
+    int pos;
+
+    LeafCursor(TermsEnum te, ExecutorService exec) {
+      this.te = te;
+      this.exec = exec;
+      pending = exec.submit(this);
+    }
+
+    // runs on the executor - there is at most one pending task per cursor
+    public Chunk call() throws Exception {
+      Chunk c = spare;
+      c.fill(te);
+      return c;
+    }
+
+    boolean next() throws Exception {
+      if (current == null || ++pos >= current.size) {
+        if (current != null && current.last) {
+          return false;
+        }
+        Chunk c = Util.getResult(pending);
+        pending = null;
+        if (current != null) {
+          spare = current;
+        } else {
+          spare = new Chunk();
+        }
+        current = c;
+        pos = 0;
+        if (!c.last) {
+          pending = exec.submit(this);
+        }
+        if (c.size == 0) {
+          return false;
+        }
+      }
+      term.bytes = current.bytes;
+      term.offset = current.starts[pos];
+      term.length = current.starts[pos + 1] - term.offset;
+      return true;
+    }
+
+    int docFreq() {
+      return current.docFreqs[pos];
+    }
+
+    long totalTermFreq() {
+      return current.totalTermFreqs[pos];
+    }
+
+    void close() {
+      if (pending != null) {
+        pending.cancel(false);
+      }
+    }
+  }
+
+  private static final class CursorQueue extends PriorityQueue<LeafCursor> {
+    private Comparator<BytesRef> cmp;
+
+    CursorQueue(int size, Comparator<BytesRef> cmp) {
+      super(size);
+      this.cmp = cmp;
+    }
+
+    @Override
+    protected boolean lessThan(LeafCursor a, LeafCursor b) {
+      return cmp.compare(a.term, b.term) < 0;
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package org.getopt.luke;
+
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Streaming top-K collector of terms, ordered by one of the {@link TermMetric}
+ * metrics (docFreq by default). Unlike
+ * {@link HighFreqTerms#fillQueue(TermsEnum, TermStatsQueue, String)} this class
+ * doesn't allocate anything per term: each term's metric value is first
+ * compared with the current minimum of the queue, and only competitive terms are
+ * kept. Queue entries are preallocated slots in primitive arrays, and the
+ * bytes of the surviving terms are appended to a {@link ByteBlockPool}.
+ * <p>Bytes of evicted terms stay in the pool until it is compacted, which
+ * happens when the pool becomes much larger than the bytes of the live
+ * terms.</p>
+ * <p>{@link TermStats} instances are created only in {@link #topTerms()}.</p>
+ */
+public final class TopTermsScanner {
+  private final int numTerms;
+  private final int metric;
+  private final int maxDoc;
+  // slot data
+  private final double[] scores;
+  private final int[] docFreqs;
+  private final long[] totalTermFreqs;
+  private final int[] fieldOrds;
+  private final long[] starts;
+  private final int[] lengths;
+  // min-heap of slot numbers, 1-based
+  private final int[] heap;
+  private int size = 0;
+  private ByteBlockPool pool;
+  // recycled by compact()
+  private ByteBlockPool spare = null;
+  private long liveBytes = 0;
+  private byte[] scratch = new byte[16];
+  private final ArrayList<String> fields = new ArrayList<String>();
+  private long termsSeen = 0;
+
+  /**
+   * Create a scanner that ranks terms by docFreq.
+   * @param numTerms the number of top terms to keep
+   */
+  public TopTermsScanner(int numTerms) {
+    this(numTerms, TermMetric.DOC_FREQ, 0);
+  }
+
+  /**
+   * @param numTerms the number of top terms to keep
+   * @param metric one of {@link TermMetric} constants
+   * @param maxDoc maxDoc of the index, used by some metrics
+   */
+  public TopTermsScanner(int numTerms, int metric, int maxDoc) {
+    if (numTerms < 0) {
+      throw new IllegalArgumentException("numTerms must be >= 0: " + numTerms);
+    }
+    if (metric < 0 || metric >= TermMetric.NAMES.length) {
+      throw new IllegalArgumentException("Unknown metric: " + metric);
+    }
+    this.numTerms = numTerms;
+    this.metric = metric;
+    this.maxDoc = maxDoc;
+    scores = new double[numTerms];
+    docFreqs = new int[numTerms];
+    totalTermFreqs = new long[numTerms];
+    fieldOrds = new int[numTerms];
+    starts = new long[numTerms];
+    lengths = new int[numTerms];
+    heap = new int[numTerms + 1];
+    pool = newPool();
+  }
+
+  private static ByteBlockPool newPool() {
+    ByteBlockPool p = new ByteBlockPool(new ByteBlockPool.DirectAllocator());
+    p.nextBuffer();
+    return p;
+  }
+
+  /**
+   * Consume all remaining terms from a TermsEnum.
+   * @param te terms enum, positioned before the first term to collect
+   * @param field name of the field this enum belongs to
+   * @throws IOException
+   */
+  public void scan(TermsEnum te, String field) throws IOException {
+    int fieldOrd = fieldOrd(field);
+    BytesRef term;
+    while ((term = te.next()) != null) {
+      termsSeen++;
+      int df = te.docFreq();
+      long ttf = te.totalTermFreq();
+      double score = metric == TermMetric.DOC_FREQ ? df :
+        TermMetric.value(metric, df, ttf, maxDoc);
+      if (size == numTerms && (numTerms == 0 || score <= scores[heap[1]])) {
+        continue; // not competitive - the common case
+      }
+      insert(fieldOrd, term, score, df, ttf);
+    }
+  }
+
+  /**
+   * Offer a single term.
+   * @param totalTermFreq term's totalTermFreq, or -1 if not available
+   * @return true if the term was added to the queue
+   */
+  public boolean offer(String field, BytesRef term, int docFreq, long totalTermFreq) {
+    termsSeen++;
+    double score = TermMetric.value(metric, docFreq, totalTermFreq, maxDoc);
+    if (!isCompetitive(score)) {
+      return false;
+    }
+    insert(fieldOrd(field), term, score, docFreq, totalTermFreq);
+    return true;
+  }
+
+  /**
+   * Returns true if a term with this metric value would enter the queue.
+   */
+  public boolean isCompetitive(double score) {
+    return size < numTerms || (numTerms > 0 && score > scores[heap[1]]);
+  }
+
+  public int getNumTerms() {
+    return numTerms;
+  }
+
+  public int getMetric() {
+    return metric;
+  }
+
+  /**
+   * Number of terms offered to this scanner so far.
+   */
+  public long getTermsSeen() {
+    return termsSeen;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private int fieldOrd(String field) {
+    // few fields, and the last one is the most likely
+    for (int i = fields.size() - 1; i >= 0; i--) {
+      if (fields.get(i).equals(field)) {
+        return i;
+      }
+    }
+    fields.add(field);
+    return fields.size() - 1;
+  }
+
+  private void insert(int fieldOrd, BytesRef term, double score, int df, long ttf) {
+    int slot;
+    if (size < numTerms) {
+      slot = size;
+      size++;
+      heap[size] = slot;
+      store(slot, fieldOrd, term, score, df, ttf);
+      upHeap(size);
+    } else {
+      slot = heap[1];
+      liveBytes -= lengths[slot];
+      store(slot, fieldOrd, term, score, df, ttf);
+      downHeap(1);
+    }
+    if (pool.byteOffset + pool.byteUpto > 4 * liveBytes + ByteBlockPool.BYTE_BLOCK_SIZE) {
+      compact();
+    }
+  }
+
+  private void store(int slot, int fieldOrd, BytesRef term, double score, int df, long ttf) {
+    scores[slot] = score;
+    docFreqs[slot] = df;
+    totalTermFreqs[slot] = ttf;
+    fieldOrds[slot] = fieldOrd;
+    starts[slot] = pool.byteOffset + pool.byteUpto;
+    lengths[slot] = term.length;
+    pool.append(term);
+    liveBytes += term.length;
+  }
+
+  // copy the bytes of live slots to a fresh pool, dropping evicted terms
+  private void compact() {
+    ByteBlockPool old = pool;
+    if (spare == null) {
+      pool = newPool();
+    } else {
+      pool = spare;
+      pool.reset(false, true);
+    }
+    spare = old;
+    BytesRef ref = new BytesRef();
+    for (int slot = 0; slot < size; slot++) {
+      int len = lengths[slot];
+      if (scratch.length < len) {
+        scratch = new byte[ArrayUtil.oversize(len, 1)];
+      }
+      old.readBytes(starts[slot], scratch, 0, len);
+      ref.bytes = scratch;
+      ref.offset = 0;
+      ref.length = len;
+      starts[slot] = pool.byteOffset + pool.byteUpto;
+      pool.append(ref);
+    }
+  }
+
+  private void upHeap(int i) {
+    int node = heap[i];
+    int j = i >>> 1;
+    while (j > 0 && scores[node] < scores[heap[j]]) {
+      heap[i] = heap[j];
+      i = j;
+      j = j >>> 1;
+    }
+    heap[i] = node;
+  }
+
+  private void downHeap(int i) {
+    int node = heap[i];
+    int j = i << 1;
+    int k = j + 1;
+    if (k <= size && scores[heap[k]] < scores[heap[j]]) {
+      j = k;
+    }
+    while (j <= size && scores[heap[j]] < scores[node]) {
+      heap[i] = heap[j];
+      i = j;
+      j = i << 1;
+      k = j + 1;
+      if (k <= size && scores[heap[k]] < scores[heap[j]]) {
+        j = k;
+      }
+    }
+    heap[i] = node;
+  }
+
+  /**
+   * Return the collected terms. This empties the scanner.
+   * @return TermStats[] ordered by terms with highest metric value first.
+   */
+  public TermStats[] topTerms() {
+    TermStats[] result = new TermStats[size];
+    BytesRef ref = new BytesRef();
+    // pop the smallest first, and fill the array from the end
+    for (int i = size - 1; i >= 0; i--) {
+      int slot = heap[1];
+      heap[1] = heap[size];
+      size--;
+      if (size > 0) {
+        downHeap(1);
+      }
+      int len = lengths[slot];
+      ref.bytes = new byte[len];
+      ref.offset = 0;
+      ref.length = len;
+      pool.readBytes(starts[slot], ref.bytes, 0, len);
+      result[i] = new TermStats(fields.get(fieldOrds[slot]), ref, docFreqs[slot],
+          totalTermFreqs[slot]);
+    }
+    pool.reset(false, true);
+    liveBytes = 0;
+    return result;
+  }
+}
@@ -2,12 +2,17 @@ package org.getopt.luke;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.document.DateTools.Resolution;
 import org.apache.lucene.document.Field;
@@ -49,7 +54,40 @@ public class Util {
         sb.append("&#039;");
         break;
       default:
-        sb.append(c);
+        // not allowed in XML 1.0, not even as a reference
+        sb.append(XMLWriter.isXmlChar(c) ? c : '\ufffd');
+      }
+    }
+    return sb.toString();
+  }
+  
+  public static String jsonEscape(String in) {
+    if (in == null) return "";
+    StringBuilder sb = new StringBuilder(in.length() + 2);
+    for (int i = 0; i < in.length(); i++) {
+      char c = in.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20) {
+          sb.append(String.format("\\u%04x", (int)c));
+        } else {
+          sb.append(c);
+        }
       }
     }
     return sb.toString();
@@ -368,4 +406,96 @@ public class Util {
       return String.valueOf(len / 1048576);
     }
   }
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static Method allocatedBytes = null;
+  private static Method allAllocatedBytes = null;
+  static {
+    try {
+      // only on Sun and OpenJDK JVMs
+      Class<?> cls = Class.forName("com.sun.management.ThreadMXBean");
+      Method m = cls.getMethod("getThreadAllocatedBytes", long.class);
+      if (cls.isInstance(THREADS) &&
+          ((Long)m.invoke(THREADS, Thread.currentThread().getId())).longValue() >= 0) {
+        allocatedBytes = m;
+        allAllocatedBytes = cls.getMethod("getThreadAllocatedBytes", long[].class);
+      }
+    } catch (Throwable t) {
+      // not supported
+    }
+  }
+
+  /**
+   * Wait for the result of a task.
+   * @throws Exception the exception thrown by the task, if any
+   */
+  public static <T> T getResult(Future<T> f) throws Exception {
+    try {
+      return f.get();
+    } catch (ExecutionException ee) {
+      Throwable t = ee.getCause();
+      if (t instanceof Exception) {
+        throw (Exception)t;
+      }
+      throw ee;
+    }
+  }
+
+  /**
+   * Get the number of bytes allocated by the current thread so far. Where
+   * the JVM can't tell, the heap in use is returned instead, which is only
+   * an estimate as it changes with garbage collection and other threads.
+   */
+  public static long getAllocatedBytes() {
+    if (allocatedBytes != null) {
+      try {
+        return ((Long)allocatedBytes.invoke(THREADS, Thread.currentThread().getId())).longValue();
+      } catch (Exception e) {
+        allocatedBytes = null;
+      }
+    }
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /**
+   * Get the number of bytes allocated so far by all live threads. Bytes of
+   * threads that ended are not counted, so this is meant for threads that
+   * are kept, like those of a pool. Where the JVM can't tell, the heap in
+   * use is returned instead.
+   */
+  public static long getAllThreadsAllocatedBytes() {
+    if (allAllocatedBytes != null) {
+      try {
+        long[] bytes = (long[])allAllocatedBytes.invoke(THREADS, THREADS.getAllThreadIds());
+        long sum = 0;
+        for (long b : bytes) {
+          if (b > 0) {
+            sum += b;
+          }
+        }
+        return sum;
+      } catch (Exception e) {
+        allAllocatedBytes = null;
+      }
+    }
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /**
+   * @return true if {@link #getAllocatedBytes()} counts the bytes allocated
+   * by the current thread
+   */
+  public static boolean isAllocatedBytesSupported() {
+    return allocatedBytes != null;
+  }
+
+  /**
+   * @return true if {@link #getAllThreadsAllocatedBytes()} counts the bytes
+   * allocated by all live threads
+   */
+  public static boolean isAllThreadsAllocatedBytesSupported() {
+    return allAllocatedBytes != null;
+  }
 }
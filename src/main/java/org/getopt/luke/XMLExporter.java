@@ -1,6 +1,7 @@
 package org.getopt.luke;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.Directory;
@@ -10,20 +11,35 @@ import org.apache.lucene.util.BytesRef;
 import org.getopt.luke.decoders.Decoder;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.GZIPOutputStream;
 
 public class XMLExporter extends Observable {
+  /** Number of documents serialized by one task. */
+  public static final int CHUNK_SIZE = 1000;
+
   private AtomicReader atomicReader = null;
   private IndexReader indexReader;
   private String indexPath;
-  private boolean abort = false;
+  private volatile boolean abort = false;
   private boolean running = false;
   private boolean decode = false;
   private ProgressNotification pn = new ProgressNotification();
   private List<String> fieldNames;
   private Map<String,Decoder> decoders;
   private FieldInfos infos;
+  private IndexInfo indexInfo = null;
+  private boolean reconstruct = false;
+  private boolean gzip = false;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private Set<String> includeFields = null;
+  private boolean termVectors = true;
+  private boolean norms = true;
+  private long partBytes = 0;
+  private int partDocs = 0;
   
   public XMLExporter(IndexReader indexReader, String indexPath,
           Map<String, Decoder> decoders) throws IOException {
@@ -38,12 +54,83 @@ public class XMLExporter extends Observable {
     }
     this.indexPath = indexPath;
     this.decoders = decoders;
-    // dump in predictable order
+    setFields(null, null);
+  }
+  
+  /**
+   * Use already collected index statistics for the index info section.
+   * @param indexInfo index info of the same reader, or null to collect the
+   * statistics during export
+   */
+  public void setIndexInfo(IndexInfo indexInfo) {
+    this.indexInfo = indexInfo;
+  }
+
+  /**
+   * Also export the content of unstored fields, reconstructed from the
+   * terms in the index. Documents are reconstructed in batches, with one
+   * pass over the terms of each field per batch.
+   * @param reconstruct true to reconstruct unstored fields
+   */
+  public void setReconstruct(boolean reconstruct) {
+    this.reconstruct = reconstruct;
+  }
+
+  /**
+   * Compress the output with gzip. Chunks of documents are compressed in
+   * parallel, each into a separate gzip member.
+   * @param gzip true to compress the output
+   */
+  public void setGzip(boolean gzip) {
+    this.gzip = gzip;
+  }
+
+  /**
+   * Export only selected fields. Stored fields are then loaded through a
+   * visitor that skips the values of other fields, though each document is
+   * still read to its end.
+   * @param include names of fields to export, or null for all fields
+   * @param exclude names of fields not to export, or null
+   */
+  public void setFields(Collection<String> include, Collection<String> exclude) throws IOException {
     fieldNames = new ArrayList<String>();
     fieldNames.addAll(Util.fieldNames(indexReader, false));
+    if (include != null) {
+      fieldNames.retainAll(include);
+    }
+    if (exclude != null) {
+      fieldNames.removeAll(exclude);
+    }
+    // dump in predictable order
     Collections.sort(fieldNames);
+    if (include != null || exclude != null) {
+      includeFields = new HashSet<String>(fieldNames);
+    } else {
+      includeFields = null;
+    }
   }
-  
+
+  /**
+   * @param termVectors export term vectors, if present
+   */
+  public void setTermVectors(boolean termVectors) {
+    this.termVectors = termVectors;
+  }
+
+  /**
+   * @param norms export norms, if present
+   */
+  public void setNorms(boolean norms) {
+    this.norms = norms;
+  }
+
+  /**
+   * @param threads number of threads that serialize documents
+   */
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
   public void abort() {
     abort = true;
   }
@@ -54,13 +141,13 @@ public class XMLExporter extends Observable {
   
   public boolean exportJS(String outputFile, boolean decode, boolean gzip, boolean preamble, boolean info,
           String rootElementName) throws Exception {
-    OutputStream out;
-    if (gzip) {
-      out = new GZIPOutputStream(new FileOutputStream(outputFile));
-    } else {
-      out = new FileOutputStream(outputFile);
+    OutputStream out = new FileOutputStream(outputFile);
+    setGzip(gzip);
+    try {
+      return export(out, decode, preamble, info, rootElementName, null);
+    } finally {
+      out.close();
     }
-    return export(out, decode, preamble, info, rootElementName, null);
   }
   
   /**
@@ -75,163 +162,586 @@ public class XMLExporter extends Observable {
    * @throws Exception
    */
   public boolean export(OutputStream output, boolean decode, boolean preamble, boolean info,
-      String rootElementName, Ranges ranges) throws Exception {
+      String rootElementName, final Ranges ranges) throws Exception {
+    if (rootElementName == null) {
+      rootElementName = "index";
+    }
+    Target target = null;
+    try {
+      target = new StreamTarget(output, header(preamble, info, rootElementName),
+          footer(rootElementName));
+    } catch (Exception ioe) {
+      return failed("ERROR creating output: ", ioe);
+    }
+    return export(target, decode, ranges, 0);
+  }
+
+  /**
+   * Split the output of {@link #export(File, boolean, boolean, boolean, String, Ranges, boolean)}
+   * into parts. A part is closed after the chunk of documents that reaches
+   * one of the limits.
+   * @param maxBytes maximum size of a part, or 0 for no limit
+   * @param maxDocs maximum number of documents in a part, or 0 for no limit
+   */
+  public void setPartSize(long maxBytes, int maxDocs) {
+    this.partBytes = maxBytes;
+    this.partDocs = maxDocs;
+  }
+
+  /**
+   * Export to a file. If a part size is set, the output is split into
+   * numbered files, e.g. <code>out-00000.xml.gz</code>, each a complete XML
+   * document, and the last exported document is recorded in a checkpoint
+   * file (<code>out.xml.gz.checkpoint</code>) after each part.
+   * @param output output file
+   * @param decode use defined field value decoders
+   * @param preamble include XML preamble
+   * @param info include index info section, in the first part
+   * @param rootElementName name of the root XML elements
+   * @param ranges if non-null then export only these ranges of documents
+   * @param resume continue after the last checkpoint, if any. Other
+   * arguments and the index must be the same as in the interrupted export.
+   * @return
+   * @throws Exception if a new split export would overwrite existing parts
+   * or a checkpoint
+   */
+  public boolean export(File output, boolean decode, boolean preamble, boolean info,
+      String rootElementName, Ranges ranges, boolean resume) throws Exception {
+    if (partBytes <= 0 && partDocs <= 0) {
+      OutputStream os = new FileOutputStream(output);
+      try {
+        return export(os, decode, preamble, info, rootElementName, ranges);
+      } finally {
+        os.close();
+      }
+    }
+    if (rootElementName == null) {
+      rootElementName = "index";
+    }
+    PartTarget target = new PartTarget(output, header(preamble, false, rootElementName),
+        footer(rootElementName));
+    if (!resume || !target.readCheckpoint()) {
+      target.checkEmpty();
+    }
+    if (target.part == 0) {
+      // index info is a full pass over the terms, needed only in the first part
+      target.firstHeader = header(preamble, info, rootElementName);
+    }
+    return export(target, decode, ranges, target.lastDoc + 1);
+  }
+
+  private boolean export(Target target, boolean decode, final Ranges ranges,
+      int startDoc) throws Exception {
     running = true;
     pn.message = "Export running ...";
     pn.minValue = 0;
     pn.maxValue = atomicReader.maxDoc();
-    pn.curValue = 0;
+    pn.curValue = startDoc;
     setChanged();
     notifyObservers(pn);
-    if (rootElementName == null) {
-      rootElementName = "index";
-    }
     if (decoders == null || decoders.isEmpty()) {
       decode = false;
     }
-    BufferedWriter bw;
-    boolean rootWritten = false;
-    int delta = atomicReader.maxDoc() / 100;
-    if (delta == 0) delta = 1;
-    int cnt = 0;
-    bw = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
-    Bits live = atomicReader.getLiveDocs();
+    final boolean dec = decode;
+    ExecutorService exec = Executors.newFixedThreadPool(threads);
+    LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
     try {
-      // write out XML preamble
-      if (preamble) {
-        bw.write("<?xml version='1.0' encoding='UTF-8'?>\n");
-      }
-      bw.write("<" + rootElementName + ">\n");
-      rootWritten = true;
-      if (info) {
-        // write out some statistics
-        writeIndexInfo(bw);
-      }
-      Document doc = null;
-      int i = -1;
-      if (ranges == null) {
-        ranges = new Ranges();
-        ranges.set(0, atomicReader.maxDoc());
-      }
-      if (ranges.cardinality() > 0) {
-        while ( (i = ranges.nextSetBit(++i)) != -1) {
-          if (i >= atomicReader.maxDoc()) {
-            break;
-          }
+      // split documents into chunks within segments, serialized in parallel
+      // and written out in the order of document numbers
+      int chunkSize = reconstruct ? DocReconstructor.DEFAULT_BATCH_SIZE : CHUNK_SIZE;
+      if (partDocs > 0) {
+        chunkSize = Math.min(chunkSize, partDocs);
+      }
+      leaves:
+      for (final AtomicReaderContext ctx : indexReader.leaves()) {
+        int end = ctx.docBase + ctx.reader().maxDoc();
+        for (int start = Math.max(ctx.docBase, startDoc); start < end; start += chunkSize) {
           if (abort) {
-            pn.message = "User requested abort.";
-            pn.aborted = true;
-            running = false;
-            setChanged();
-            notifyObservers(pn);
-            break;
+            break leaves;
           }
-          if (live != null && !live.get(i)) continue; // skip deleted docs
-          doc = atomicReader.document(i);
-          // write out fields
-          writeDoc(bw, i, doc, decode, live);
-          pn.curValue = i + 1;
-          cnt++;
-          if (cnt > delta) {
-            cnt = 0;
-            setChanged();
-            notifyObservers(pn);
+          final int from = start;
+          final int to = Math.min(end, start + chunkSize);
+          if (ranges != null) {
+            int next = ranges.nextSetBit(from);
+            if (next == -1 || next >= to) {
+              continue;
+            }
+          }
+          pending.add(exec.submit(new Callable<Chunk>() {
+            public Chunk call() throws Exception {
+              return writeChunk(ctx, from, to, ranges, dec);
+            }
+          }));
+          if (pending.size() >= threads * 2) {
+            writeChunk(target, pending.removeFirst());
           }
         }
       }
+      while (!pending.isEmpty() && !abort) {
+        writeChunk(target, pending.removeFirst());
+      }
+      if (abort) {
+        pn.message = "User requested abort.";
+        pn.aborted = true;
+        running = false;
+        setChanged();
+        notifyObservers(pn);
+      }
     } catch (Exception ioe) {
       ioe.printStackTrace();
-      pn.message = "ERROR creating output: " + ioe.toString();
-      pn.aborted = true;
-      running = false;
-      setChanged();
-      notifyObservers(pn);
-      return false;
+      failed("ERROR creating output: ", ioe);
     } finally {
-      if (bw != null) {
-        try {
-          if (rootWritten) { // balance the top tag
-            bw.write("</" + rootElementName + ">");
-          }
-          bw.flush();
-        } catch (Exception e) {
-          pn.message = "ERROR closing output: " + e.toString();
-          pn.aborted = true;
-          running = false;
-          setChanged();
-          notifyObservers(pn);
-          return false;
-        }
+      for (Future<Chunk> f : pending) {
+        f.cancel(true);
+      }
+      exec.shutdownNow();
+      try {
+        // balance the top tag
+        target.close(!pn.aborted);
+      } catch (Exception e) {
+        return failed("ERROR closing output: ", e);
       }
     }
+    if (pn.aborted) {
+      return false;
+    }
     pn.message = "Finished.";
     setChanged();
     notifyObservers(pn);
     running = false;
-    return !pn.aborted;
+    return true;
   }
-  
-  private void writeDoc(BufferedWriter bw, int docNum, Document doc, boolean decode,
-          Bits liveDocs) throws Exception {
-    bw.write("<doc id='" + docNum + "'>\n");
+
+  private boolean failed(String msg, Exception e) {
+    pn.message = msg + e.toString();
+    pn.aborted = true;
+    running = false;
+    setChanged();
+    notifyObservers(pn);
+    return false;
+  }
+
+  private ByteBuffer header(boolean preamble, boolean info, String rootElementName) throws Exception {
+    Block header = new Block();
+    // write out XML preamble
+    if (preamble) {
+      header.writer.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+    }
+    header.writer.write("<" + rootElementName + ">\n");
+    if (info) {
+      // write out some statistics
+      writeIndexInfo(header.writer);
+    }
+    return header.finish();
+  }
+
+  private ByteBuffer footer(String rootElementName) throws IOException {
+    Block footer = new Block();
+    footer.writer.write("</" + rootElementName + ">");
+    return footer.finish();
+  }
+
+  /**
+   * Destination of the serialized chunks.
+   */
+  private static abstract class Target {
+    abstract void write(Chunk chunk) throws IOException;
+
+    /**
+     * Balance the root element and flush the output.
+     * @param complete true if all documents were written
+     */
+    abstract void close(boolean complete) throws IOException;
+  }
+
+  private class StreamTarget extends Target {
+    OutputStream output;
+    FileChannel channel = null;
+    ByteBuffer footer;
+
+    StreamTarget(OutputStream output, ByteBuffer header, ByteBuffer footer) throws IOException {
+      this.output = output;
+      this.footer = footer;
+      if (output instanceof FileOutputStream) {
+        channel = ((FileOutputStream)output).getChannel();
+      }
+      XMLExporter.this.write(channel, output, header);
+    }
+
+    void write(Chunk chunk) throws IOException {
+      XMLExporter.this.write(channel, output, chunk.bytes);
+    }
+
+    void close(boolean complete) throws IOException {
+      XMLExporter.this.write(channel, output, footer);
+      output.flush();
+    }
+  }
+
+  /**
+   * Writes numbered parts of limited size, and a checkpoint after each part.
+   */
+  private class PartTarget extends Target {
+    File output;
+    File checkpoint;
+    String stem;
+    String ext;
+    /** Header of part 0, set only if part 0 is written. */
+    ByteBuffer firstHeader = null;
+    ByteBuffer header;
+    ByteBuffer footer;
+    int part = 0;
+    /** Last document of the last completed part. */
+    int lastDoc = -1;
+    FileOutputStream os = null;
+    long bytes;
+    int docs;
+
+    PartTarget(File output, ByteBuffer header, ByteBuffer footer) {
+      this.output = output;
+      this.header = header;
+      this.footer = footer;
+      checkpoint = new File(output.getPath() + ".checkpoint");
+      String name = output.getName();
+      ext = "";
+      for (String e : new String[]{".xml.gz", ".xml", ".gz"}) {
+        if (name.endsWith(e)) {
+          ext = e;
+          break;
+        }
+      }
+      stem = name.substring(0, name.length() - ext.length());
+    }
+
+    /**
+     * @return false if there is no checkpoint
+     */
+    boolean readCheckpoint() throws IOException {
+      if (!checkpoint.exists()) {
+        return false;
+      }
+      Properties props = new Properties();
+      InputStream is = new FileInputStream(checkpoint);
+      try {
+        props.load(is);
+      } finally {
+        is.close();
+      }
+      part = Integer.parseInt(props.getProperty("part"));
+      lastDoc = Integer.parseInt(props.getProperty("lastDoc"));
+      return true;
+    }
+
+    /**
+     * Refuse to start over the parts or checkpoint of another export.
+     */
+    void checkEmpty() throws IOException {
+      if (checkpoint.exists()) {
+        throw new IOException("Checkpoint already exists, use resume or delete it: '" +
+            checkpoint.getAbsolutePath() + "'");
+      }
+      File[] files = output.getAbsoluteFile().getParentFile().listFiles();
+      if (files == null) {
+        return;
+      }
+      for (File f : files) {
+        String name = f.getName();
+        if (name.length() == stem.length() + ext.length() + 6 && name.startsWith(stem + "-") &&
+            name.endsWith(ext)) {
+          throw new IOException("Output part already exists: '" + f.getAbsolutePath() + "'");
+        }
+      }
+    }
+
+    void writeCheckpoint(boolean complete) throws IOException {
+      Properties props = new Properties();
+      props.setProperty("part", String.valueOf(part));
+      props.setProperty("lastDoc", String.valueOf(lastDoc));
+      props.setProperty("complete", String.valueOf(complete));
+      File tmp = new File(checkpoint.getPath() + ".tmp");
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        props.store(out, "XMLExporter checkpoint");
+      } finally {
+        out.close();
+      }
+      checkpoint.delete();
+      if (!tmp.renameTo(checkpoint)) {
+        throw new IOException("Can't write checkpoint " + checkpoint);
+      }
+    }
+
+    File partFile(int n) {
+      return new File(output.getParentFile(), stem + "-" + String.format("%05d", n) + ext);
+    }
+
+    void open() throws IOException {
+      os = new FileOutputStream(partFile(part));
+      bytes = 0;
+      docs = 0;
+      ByteBuffer h = (part == 0 ? firstHeader : header).duplicate();
+      bytes += h.remaining();
+      XMLExporter.this.write(os.getChannel(), os, h);
+    }
+
+    void write(Chunk chunk) throws IOException {
+      if (os == null) {
+        open();
+      }
+      bytes += chunk.bytes.remaining();
+      docs += chunk.docs;
+      XMLExporter.this.write(os.getChannel(), os, chunk.bytes);
+      if ((partBytes > 0 && bytes >= partBytes) || (partDocs > 0 && docs >= partDocs)) {
+        closePart();
+        lastDoc = chunk.end - 1;
+        part++;
+        writeCheckpoint(false);
+      }
+    }
+
+    void closePart() throws IOException {
+      XMLExporter.this.write(os.getChannel(), os, footer.duplicate());
+      os.close();
+      os = null;
+    }
+
+    void close(boolean complete) throws IOException {
+      if (os == null && complete && part == 0) {
+        open(); // nothing selected - still write the header
+      }
+      if (os != null) {
+        closePart();
+        if (complete) {
+          part++;
+        }
+      }
+      if (complete) {
+        lastDoc = atomicReader.maxDoc() - 1;
+        writeCheckpoint(true);
+      }
+    }
+  }
+
+  /**
+   * Serialized documents of one chunk.
+   */
+  private static class Chunk {
+    ByteBuffer bytes;
+    /** Number of documents in this chunk. */
+    int docs;
+    /** Next document number after this chunk. */
+    int end;
+  }
+
+  /**
+   * Output buffer of one chunk. With gzip compression each block is an
+   * independent gzip member - concatenated members form a valid gzip stream.
+   */
+  private class Block {
+    ByteArrayOutputStream bytes;
+    GZIPOutputStream gz;
+    XMLWriter writer;
+
+    Block() throws IOException {
+      if (gzip) {
+        bytes = new ByteArrayOutputStream();
+        gz = new GZIPOutputStream(bytes, XMLWriter.BUFFER_SIZE);
+        writer = new XMLWriter(gz);
+      } else {
+        writer = new XMLWriter();
+      }
+    }
+
+    ByteBuffer finish() throws IOException {
+      if (gzip) {
+        writer.flush();
+        gz.finish();
+        return ByteBuffer.wrap(bytes.toByteArray());
+      }
+      return ByteBuffer.wrap(writer.getBuffer(), 0, writer.length());
+    }
+  }
+
+  private void write(FileChannel channel, OutputStream output, ByteBuffer bytes) throws IOException {
+    if (channel != null) {
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+    } else {
+      output.write(bytes.array(), bytes.position(), bytes.remaining());
+    }
+  }
+
+  private void writeChunk(Target target, Future<Chunk> f) throws Exception {
+    Chunk chunk = Util.getResult(f);
+    target.write(chunk);
+    pn.curValue = chunk.end;
+    setChanged();
+    notifyObservers(pn);
+  }
+
+  private Chunk writeChunk(AtomicReaderContext ctx, int from, int to, Ranges ranges,
+      final boolean decode) throws Exception {
+    final Block block = new Block();
+    final AtomicReader leaf = ctx.reader();
+    final int base = ctx.docBase;
+    Bits live = leaf.getLiveDocs();
+    Ranges docs = new Ranges();
+    for (int i = from; i < to; i++) {
+      if ((ranges == null || ranges.get(i)) && (live == null || live.get(i - base))) {
+        docs.set(i - base);
+      }
+    }
+    if (reconstruct) {
+      DocReconstructor recon = new DocReconstructor(leaf,
+          fieldNames.toArray(new String[fieldNames.size()]));
+      recon.setBatchSize(to - from);
+      recon.reconstruct(docs, new DocReconstructor.Sink() {
+        public void reconstructed(int docNum, DocReconstructor.Reconstructed rec) throws Exception {
+          Document doc = new Document();
+          for (IndexableField[] fs : rec.getStoredFields().values()) {
+            for (IndexableField f : fs) {
+              doc.add(f);
+            }
+          }
+          writeDoc(block.writer, leaf, docNum, base + docNum, doc, decode, rec);
+        }
+      });
+    } else {
+      for (int i = docs.nextSetBit(0); i != -1 && !abort; i = docs.nextSetBit(i + 1)) {
+        Document doc;
+        if (includeFields != null) {
+          // all values of the selected fields, wherever they are stored
+          DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(includeFields);
+          leaf.document(i, visitor);
+          doc = visitor.getDocument();
+        } else {
+          doc = leaf.document(i);
+        }
+        writeDoc(block.writer, leaf, i, base + i, doc, decode, null);
+      }
+    }
+    Chunk chunk = new Chunk();
+    chunk.docs = (int)docs.cardinality();
+    chunk.bytes = block.finish();
+    chunk.end = to;
+    return chunk;
+  }
+
+  private void writeDoc(XMLWriter w, AtomicReader leaf, int doc, int docNum, Document document,
+          boolean decode, DocReconstructor.Reconstructed rec) throws Exception {
+    w.write("<doc id='").write(docNum).write("'>\n");
     BytesRef bytes = new BytesRef();
+    // decode the vectors of all fields once
+    Fields vectors = termVectors ? leaf.getTermVectors(doc) : null;
     for (String fieldName : fieldNames) {
-      IndexableField[] fields = doc.getFields(fieldName);
+      IndexableField[] fields = document.getFields(fieldName);
       if (fields == null || fields.length == 0) {
+        GrowableStringArray gsa = rec != null ? rec.getReconstructedFields().get(fieldName) : null;
+        if (gsa != null) {
+          w.write("<field name='").escape(fieldName).write("' reconstructed='true'>\n");
+          writePositions(w, gsa);
+          w.write("</field>\n");
+        }
         continue;
       }
-      bw.write("<field name='" + Util.xmlEscape(fields[0].name()));
-      NumericDocValues dv = atomicReader.getNormValues(fields[0].name());
+      w.write("<field name='").escape(fields[0].name());
+      NumericDocValues dv = norms ? leaf.getNormValues(fields[0].name()) : null;
       if (dv != null) {
         // export raw value - we don't know what similarity was used
         String type = dv.toString();
         if (type.contains("INT")) {
-          bw.write("' norm='" + dv.get(docNum));
+          w.write("' norm='").write(dv.get(doc));
         } else if (type.startsWith("FLOAT")) {
-            bw.write("' norm='" + dv.get(docNum));
+            w.write("' norm='").write(dv.get(doc));
         } else if (type.startsWith("BYTES")) {
-          bw.write("' norm='" + dv.get(docNum));
-          bw.write("' norm='" + Util.bytesToHex(bytes, false));
+          w.write("' norm='").write(dv.get(doc));
+          w.write("' norm='").hex(bytes);
         }
       } 
-      bw.write("' flags='" + Util.fieldFlags((Field)fields[0], infos.fieldInfo(fields[0].name())) + "'>\n");
+      w.write("' flags='").write(Util.fieldFlags((Field)fields[0], leaf.getFieldInfos().fieldInfo(fields[0].name()))).write("'>\n");
       for (IndexableField ixf : fields) {
         String val = null;
         Field f = (Field)ixf;
         if (decode) {
           Decoder d = decoders.get(f.name());
           if (d != null) {
-            val = d.decodeStored(f.name(), f);
+            // decoders may keep state, e.g. script decoders
+            synchronized (d) {
+              val = d.decodeStored(f.name(), f);
+            }
           }
         }
-        if (!decode || val == null) {
-          if (f.binaryValue() != null) {
-            val = Util.bytesToHex(f.binaryValue(), false);
-          } else {
-            val = f.stringValue();
-          }
+        if (val != null) {
+          writeVal(w, val);
+        } else if (f.binaryValue() != null) {
+          w.write("<val>").hex(f.binaryValue()).write("</val>\n");
+        } else {
+          writeVal(w, f.stringValue());
         }
-        bw.write("<val>" + Util.xmlEscape(val) + "</val>\n");
       }
-      Terms tfv = atomicReader.getTermVector(docNum, fieldName);
+      Terms tfv = vectors != null ? vectors.terms(fieldName) : null;
       if (tfv != null) {
-        writeTermVector(bw, tfv, liveDocs);
+        writeTermVector(w, tfv, null);
       }
-      bw.write("</field>\n");
+      w.write("</field>\n");
     }
-    bw.write("</doc>\n");
+    w.write("</doc>\n");
   }
   
-  private void writeTermVector(BufferedWriter bw, Terms tfv, Bits liveDocs) throws Exception {
-    bw.write("<tv>\n");
+  /**
+   * Write a text value. Text with characters that XML 1.0 doesn't allow is
+   * written as hex of its UTF-8 bytes, with <code>encoding='hex'</code>, so
+   * that it is imported unchanged.
+   */
+  private static void writeVal(XMLWriter w, String s) throws IOException {
+    writeVal(w, -1, s);
+  }
+
+  /**
+   * @param pos position of a reconstructed term, or -1
+   */
+  private static void writeVal(XMLWriter w, int pos, String s) throws IOException {
+    w.write("<val");
+    if (pos >= 0) {
+      w.write(" pos='").write(pos).write("'");
+    }
+    if (s == null || XMLWriter.isXmlText(s)) {
+      w.write(">").escape(s);
+    } else {
+      w.write(" encoding='hex'>").hex(new BytesRef(s));
+    }
+    w.write("</val>\n");
+  }
+
+  /**
+   * Write the terms of a reconstructed field with their positions, in
+   * position order, so that they can be indexed again as they were.
+   */
+  private static void writePositions(XMLWriter w, GrowableStringArray gsa) throws IOException {
+    int n = gsa.getNumPairs();
+    // position in the high bits, order of appending in the low bits
+    long[] order = new long[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = ((long)gsa.getPairPosition(i) << 32) | i;
+    }
+    Arrays.sort(order);
+    for (long o : order) {
+      int i = (int)o;
+      String term = gsa.getPairValue(i);
+      if (term != null) {
+        writeVal(w, gsa.getPairPosition(i), term);
+      }
+    }
+  }
+
+  private void writeTermVector(XMLWriter w, Terms tfv, Bits liveDocs) throws Exception {
+    w.write("<tv>\n");
     TermsEnum te = tfv.iterator(null);
     DocsAndPositionsEnum dpe = null;
-    StringBuilder positions = new StringBuilder();
-    StringBuilder offsets = new StringBuilder();
+    int[] positions = new int[16];
+    int[] offsets = new int[32];
     while (te.next() != null) {
-      // collect
-      positions.setLength(0);
-      offsets.setLength(0);
       DocsAndPositionsEnum newDpe = te.docsAndPositions(liveDocs, dpe,
               1);
       if (newDpe == null) {
@@ -242,42 +752,72 @@ public class XMLExporter extends Observable {
       if (dpe.nextDoc() == DocsEnum.NO_MORE_DOCS) {
         continue;
       }
-      for (int k = 0; k < dpe.freq(); k++) {
+      // collect
+      int freq = dpe.freq();
+      int numPositions = 0;
+      int numOffsets = 0;
+      if (positions.length < freq) {
+        positions = new int[freq];
+        offsets = new int[freq * 2];
+      }
+      for (int k = 0; k < freq; k++) {
         int pos = dpe.nextPosition();
         if (pos != -1) { // has positions
-          if (positions.length() > 0) positions.append(' ');
-          positions.append(String.valueOf(pos));
+          positions[numPositions++] = pos;
         }
         if (dpe.startOffset() != -1) { // has offsets
-          if (offsets.length() > 0) offsets.append(' ');
-          offsets.append(dpe.startOffset() + "-" + dpe.endOffset());
+          offsets[numOffsets++] = dpe.startOffset();
+          offsets[numOffsets++] = dpe.endOffset();
         }
       }
-      bw.write("<t text='" + Util.xmlEscape(te.term().utf8ToString()) + "' freq='" + dpe.freq() + "'");
-      if (positions.length() > 0) {
-        bw.write(" positions='" + positions.toString() + "'");
+      w.write("<t text='").escape(te.term()).write("' freq='").write(freq).write("'");
+      if (numPositions > 0) {
+        w.write(" positions='");
+        for (int k = 0; k < numPositions; k++) {
+          if (k > 0) w.write(" ");
+          w.write(positions[k]);
+        }
+        w.write("'");
       }
-      if (offsets.length() > 0) {
-        bw.write(" offsets='" + offsets.toString() + "'");
+      if (numOffsets > 0) {
+        w.write(" offsets='");
+        for (int k = 0; k < numOffsets; k += 2) {
+          if (k > 0) w.write(" ");
+          w.write(offsets[k]).write("-").write(offsets[k + 1]);
+        }
+        w.write("'");
       }
-      bw.write("/>\n");
+      w.write("/>\n");
     }
-    bw.write("</tv>\n");
+    w.write("</tv>\n");
   }
   
-  private void writeIndexInfo(BufferedWriter bw) throws Exception {
+  private void writeIndexInfo(XMLWriter bw) throws Exception {
     bw.write("<info>\n");
-    IndexInfo indexInfo = new IndexInfo(indexReader, indexPath);
+    IndexInfo indexInfo = this.indexInfo;
+    if (indexInfo == null || indexInfo.getReader() != indexReader) {
+      indexInfo = new IndexInfo(indexReader, indexPath);
+    }
+    // collects all term statistics in one pass
+    long numTerms = indexInfo.getNumTerms();
+    Map<String,IndexStatsJob.FieldResult> fieldStats = indexInfo.getFieldStats();
     bw.write(" <indexPath>" + Util.xmlEscape(indexPath) + "</indexPath>\n");
     bw.write(" <fields count='" + indexInfo.getFieldNames().size() + "'>\n");
     for (String fname : indexInfo.getFieldNames()) {
-      bw.write("  <field name='" + Util.xmlEscape(fname) + "'/>\n");
+      IndexStatsJob.FieldResult fr = fieldStats != null ? fieldStats.get(fname) : null;
+      if (fr != null) {
+        bw.write("  <field name='" + Util.xmlEscape(fname) + "' terms='" + fr.termCount +
+            "' sumDocFreq='" + fr.sumDocFreq + "' sumTotalTermFreq='" + fr.sumTotalTermFreq +
+            "' docCount='" + fr.docCount + "'/>\n");
+      } else {
+        bw.write("  <field name='" + Util.xmlEscape(fname) + "'/>\n");
+      }
     }
     bw.write(" </fields>\n");
     bw.write(" <numDocs>" + atomicReader.numDocs() + "</numDocs>\n");
     bw.write(" <maxDoc>" + atomicReader.maxDoc() + "</maxDoc>\n");
     bw.write(" <numDeletedDocs>" + atomicReader.numDeletedDocs() + "</numDeletedDocs>\n");
-    bw.write(" <numTerms>" + indexInfo.getNumTerms() + "</numTerms>\n");
+    bw.write(" <numTerms>" + numTerms + "</numTerms>\n");
     bw.write(" <hasDeletions>" + atomicReader.hasDeletions() + "</hasDeletions>\n");
     bw.write(" <lastModified>" + indexInfo.getLastModified() + "</lastModified>\n");
     bw.write(" <indexVersion>" + indexInfo.getVersion() + "</indexVersion>\n");
@@ -346,11 +886,20 @@ public class XMLExporter extends Observable {
   
   public static void main(String[] args) throws Exception {
     if (args.length < 2) {
-      System.err.println("Usage: XMLExporter <indexPath> <outputFile> [-gzip] [-onlyInfo] [-range ..expr..]");
+      System.err.println("Usage: XMLExporter <indexPath> <outputFile> [-gzip] [-onlyInfo] [-reconstruct] [-threads N] [-fields f1,f2,..] [-exclude f1,f2,..] [-notv] [-nonorms] [-partMB N] [-partDocs N] [-resume] [-range ..expr..]");
       System.err.println("\tindexPath\tname of the directory containing the index");
       System.err.println("\toutputFile\toutput file, or '-' for System.out");
       System.err.println("\tgzip\tcompress output using gzip compression");
       System.err.println("\tonlyInfo\texport only the overall information about the index");
+      System.err.println("\treconstruct\talso export unstored fields, reconstructed from the index terms");
+      System.err.println("\tthreads\tnumber of threads that serialize and compress documents (default: number of CPUs)");
+      System.err.println("\tfields\texport only these fields");
+      System.err.println("\texclude\tdon't export these fields");
+      System.err.println("\tnotv\tdon't export term vectors");
+      System.err.println("\tnonorms\tdon't export norms");
+      System.err.println("\tpartMB\tsplit output into numbered files of about this size, with a checkpoint after each file");
+      System.err.println("\tpartDocs\tsplit output into numbered files of about this many documents");
+      System.err.println("\tresume\tcontinue a split export after its last checkpoint");
       System.err.println("\trange\tspecify ranges of documents to export. Expressions cannot contain whitespace!");
       System.err.println("\t\tExample: 0-5,15,32-100,101,103,105-500");
       System.exit(-1);
@@ -363,12 +912,18 @@ public class XMLExporter extends Observable {
     if (!args[1].equals("-")) {
       out = new File(args[1]);
     }
-    if (out != null && out.exists()) {
-      throw new Exception("Output file already exists: '" + out.getAbsolutePath() + "'");
-    }
     boolean gzip = false;
     Ranges ranges = null;
     boolean onlyInfo = false;
+    boolean reconstruct = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<String> include = null;
+    List<String> exclude = null;
+    boolean tv = true;
+    boolean norms = true;
+    long partBytes = 0;
+    int partDocs = 0;
+    boolean resume = false;
     for (int i = 2; i < args.length; i++) {
       if (args[i].equals("-gzip")) {
         gzip = true;
@@ -376,24 +931,60 @@ public class XMLExporter extends Observable {
         ranges = Ranges.parse(args[++i]);
       } else if (args[i].equals("-onlyInfo")) {
         onlyInfo = true;
+      } else if (args[i].equals("-reconstruct")) {
+        reconstruct = true;
+      } else if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-fields")) {
+        include = Arrays.asList(args[++i].split(","));
+      } else if (args[i].equals("-exclude")) {
+        exclude = Arrays.asList(args[++i].split(","));
+      } else if (args[i].equals("-notv")) {
+        tv = false;
+      } else if (args[i].equals("-nonorms")) {
+        norms = false;
+      } else if (args[i].equals("-partMB")) {
+        partBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+      } else if (args[i].equals("-partDocs")) {
+        partDocs = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-resume")) {
+        resume = true;
       } else {
         throw new Exception("Unknown argument: '" + args[i] + "'");
       }
     }
     DirectoryReader reader = DirectoryReader.open(dir);
     XMLExporter exporter = new XMLExporter(reader, args[0], null);
+    exporter.setReconstruct(reconstruct);
+    exporter.setGzip(gzip);
+    exporter.setThreads(threads);
+    exporter.setFields(include, exclude);
+    exporter.setTermVectors(tv);
+    exporter.setNorms(norms);
+    exporter.setPartSize(partBytes, partDocs);
+    if (onlyInfo) {
+      ranges = new Ranges();
+    }
+    boolean parts = partBytes > 0 || partDocs > 0;
+    if (out == null && (resume || parts)) {
+      throw new Exception("Split exports need an output file, not '-'");
+    }
+    if (out != null && (resume || parts)) {
+      if (!parts) {
+        throw new Exception("Only split exports can be resumed, use -partMB or -partDocs");
+      }
+      boolean ok = exporter.export(out, false, false, true, "index", ranges, resume);
+      System.exit(ok ? 0 : 1);
+    }
+    if (out != null && out.exists()) {
+      throw new Exception("Output file already exists: '" + out.getAbsolutePath() + "'");
+    }
     OutputStream os;
     if (out == null) {
       os = System.out;
     } else {
       os = new FileOutputStream(out);
     }
-    if (gzip) {
-      os = new GZIPOutputStream(os);
-    }
-    if (onlyInfo) {
-      ranges = new Ranges();
-    }
     exporter.export(os, false, false, true, "index", ranges);
     os.flush();
     os.close();
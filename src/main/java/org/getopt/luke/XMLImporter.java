@@ -0,0 +1,956 @@
+package org.getopt.luke;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bulk import of documents into an index. Reads the output of
+ * {@link XMLExporter}, plain or gzipped, including all parts of a split
+ * export, as well as JSON Lines files with one document per line.
+ * <p>Input is parsed with a streaming reader in the calling thread, and
+ * documents are added in batches by a pool of threads sharing one
+ * {@link IndexWriter}. Stored fields are indexed again with the options
+ * recorded in their <code>flags</code> (see
+ * {@link Util#fieldFlags(Field, org.apache.lucene.index.FieldInfo)}):
+ * indexing, index options, term vectors, norms, numeric types and doc
+ * values. Tokenized text is analyzed again with the analyzer of the
+ * importer. Payloads, boosts and the values of unstored fields cannot be
+ * restored from the export.</p>
+ * <p>JSON lines either mirror the XML format:
+ * <pre>{"id":0,"fields":[{"name":"title","flags":"Idfp--S--Nnum--------","values":["..."]}]}</pre>
+ * or map field names to a value or an array of values, which are then
+ * imported as stored text fields:
+ * <pre>{"title":"...","tags":["a","b"]}</pre></p>
+ */
+public class XMLImporter extends Observable implements Abortable {
+  /** Number of documents queued for a worker at a time. */
+  public static final int BATCH_SIZE = 100;
+  public static final double DEFAULT_RAM_BUFFER_MB = 256;
+
+  private Directory dir;
+  private Analyzer analyzer;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private double ramBufferMB = DEFAULT_RAM_BUFFER_MB;
+  private boolean create = true;
+  private boolean reconstructed = false;
+  private volatile boolean abort = false;
+  private ProgressNotification pn = new ProgressNotification();
+  private final Map<String,FieldType> types = new HashMap<String,FieldType>();
+
+  // import state
+  private IndexWriter writer;
+  private BlockingQueue<List<Document>> queue;
+  private List<Document> batch;
+  private volatile Throwable failure;
+  private int numDocs;
+
+  /**
+   * @param dir target directory
+   * @param analyzer analyzer of tokenized fields
+   */
+  public XMLImporter(Directory dir, Analyzer analyzer) {
+    this.dir = dir;
+    this.analyzer = analyzer;
+  }
+
+  /**
+   * @param threads number of threads that add documents to the index
+   */
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * @param ramBufferMB size of the indexing buffer shared by all threads
+   */
+  public void setRAMBufferSizeMB(double ramBufferMB) {
+    this.ramBufferMB = ramBufferMB;
+  }
+
+  /**
+   * @param create if true any existing index is replaced, otherwise
+   * documents are added to it
+   */
+  public void setCreate(boolean create) {
+    this.create = create;
+  }
+
+  /**
+   * @param reconstructed if true fields that were reconstructed from the
+   * index terms are indexed again, unstored, with their terms at the
+   * exported positions, otherwise they are skipped
+   */
+  public void setReconstructed(boolean reconstructed) {
+    this.reconstructed = reconstructed;
+  }
+
+  public void abort() {
+    abort = true;
+  }
+
+  public boolean isAborted() {
+    return abort;
+  }
+
+  /**
+   * Import files into the index.
+   * @param files XML or JSON Lines files, optionally gzipped
+   * @return number of imported documents
+   * @throws Exception
+   */
+  public int importFiles(List<File> files) throws Exception {
+    IndexWriterConfig cfg = new IndexWriterConfig(Luke.LV, analyzer);
+    cfg.setOpenMode(create ? OpenMode.CREATE : OpenMode.CREATE_OR_APPEND);
+    cfg.setRAMBufferSizeMB(ramBufferMB);
+    cfg.setMaxThreadStates(Math.max(threads, IndexWriterConfig.DEFAULT_MAX_THREAD_STATES));
+    writer = new IndexWriter(dir, cfg);
+    queue = new ArrayBlockingQueue<List<Document>>(threads * 2);
+    batch = new ArrayList<Document>(BATCH_SIZE);
+    failure = null;
+    numDocs = 0;
+    ArrayList<Thread> workers = new ArrayList<Thread>();
+    boolean ok = false;
+    try {
+      for (int i = 0; i < threads; i++) {
+        Thread t = new Thread("XMLImporter-" + i) {
+          public void run() {
+            index();
+          }
+        };
+        t.setDaemon(true);
+        t.start();
+        workers.add(t);
+      }
+      pn.message = "Importing ...";
+      pn.minValue = 0;
+      pn.maxValue = files.size();
+      pn.curValue = 0;
+      publish(pn);
+      for (File f : files) {
+        if (abort || failure != null) {
+          break;
+        }
+        pn.message = "Importing " + f.getName() + " ...";
+        publish(pn);
+        InputStream in = open(f);
+        try {
+          if (isJson(f, in)) {
+            readJson(in);
+          } else {
+            readXML(in);
+          }
+        } finally {
+          in.close();
+        }
+        pn.curValue++;
+      }
+      flushBatch();
+      ok = true;
+    } finally {
+      // stop the workers even if parsing failed
+      for (int i = 0; i < workers.size(); i++) {
+        while (!queue.offer(Collections.<Document>emptyList(), 100, TimeUnit.MILLISECONDS)) {
+          if (failure != null) {
+            queue.clear();
+          }
+        }
+      }
+      for (Thread t : workers) {
+        t.join();
+      }
+      if (ok && failure == null && !abort) {
+        writer.close();
+      } else {
+        writer.rollback();
+      }
+      writer = null;
+      pn.message = abort ? "User requested abort." : "Done.";
+      pn.aborted = abort;
+      pn.curValue = pn.maxValue;
+      publish(pn);
+    }
+    if (failure != null) {
+      if (failure instanceof Exception) {
+        throw (Exception)failure;
+      }
+      throw new Exception(failure);
+    }
+    return numDocs;
+  }
+
+  private void index() {
+    try {
+      List<Document> docs;
+      while (!(docs = queue.take()).isEmpty()) {
+        if (failure != null || abort) {
+          continue; // drain
+        }
+        for (Document doc : docs) {
+          writer.addDocument(doc);
+        }
+      }
+    } catch (Throwable t) {
+      if (failure == null) {
+        failure = t;
+      }
+      // keep taking batches so that the parser is not blocked
+      try {
+        while (!queue.take().isEmpty());
+      } catch (InterruptedException e) {
+        // exit
+      }
+    }
+  }
+
+  private void add(Document doc) throws Exception {
+    if (doc.getFields().isEmpty()) {
+      return;
+    }
+    batch.add(doc);
+    if (batch.size() == BATCH_SIZE) {
+      flushBatch();
+    }
+  }
+
+  private void flushBatch() throws Exception {
+    if (batch.isEmpty() || failure != null) {
+      return;
+    }
+    while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+      if (failure != null || abort) {
+        return;
+      }
+    }
+    numDocs += batch.size();
+    batch = new ArrayList<Document>(BATCH_SIZE);
+    if (numDocs % 10000 < BATCH_SIZE) {
+      pn.message = "Imported " + numDocs + " documents ...";
+      publish(pn);
+    }
+  }
+
+  private static InputStream open(File f) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(f), 1 << 16);
+    in.mark(2);
+    int magic = in.read() | (in.read() << 8);
+    in.reset();
+    if (magic == GZIPInputStream.GZIP_MAGIC) {
+      in = new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16);
+    }
+    return in;
+  }
+
+  private static boolean isJson(File f, InputStream in) throws IOException {
+    String name = f.getName().toLowerCase();
+    if (name.contains(".json")) {
+      return true;
+    } else if (name.contains(".xml")) {
+      return false;
+    }
+    in.mark(1024);
+    try {
+      int c;
+      while ((c = in.read()) != -1 && Character.isWhitespace(c));
+      return c == '{';
+    } finally {
+      in.reset();
+    }
+  }
+
+  /**
+   * Field being read, with its values.
+   */
+  private static class FieldData {
+    String name;
+    String flags;
+    boolean reconstructed;
+    boolean tvPositions;
+    boolean tvOffsets;
+    ArrayList<String> values = new ArrayList<String>();
+    // positions of reconstructed terms, one per value
+    ArrayList<Integer> positions = new ArrayList<Integer>();
+
+    void reset(String name) {
+      this.name = name;
+      flags = null;
+      reconstructed = false;
+      tvPositions = false;
+      tvOffsets = false;
+      values.clear();
+      positions.clear();
+    }
+  }
+
+  private void readXML(InputStream in) throws Exception {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    XMLStreamReader r = factory.createXMLStreamReader(in, "UTF-8");
+    try {
+      FieldData fd = new FieldData();
+      Document doc = null;
+      boolean inTv = false;
+      while (r.hasNext()) {
+        if (abort || failure != null) {
+          return;
+        }
+        int event = r.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String el = r.getLocalName();
+          if (el.equals("info")) {
+            skip(r);
+          } else if (el.equals("doc")) {
+            doc = new Document();
+          } else if (doc == null) {
+            continue;
+          } else if (el.equals("field")) {
+            fd.reset(r.getAttributeValue(null, "name"));
+            fd.flags = r.getAttributeValue(null, "flags");
+            fd.reconstructed = "true".equals(r.getAttributeValue(null, "reconstructed"));
+          } else if (el.equals("val")) {
+            String pos = r.getAttributeValue(null, "pos");
+            if (pos != null) {
+              fd.positions.add(Integer.valueOf(pos));
+            }
+            String encoding = r.getAttributeValue(null, "encoding");
+            String text = r.getElementText();
+            if ("hex".equals(encoding)) {
+              // text with characters that XML doesn't allow
+              text = new String(Util.hexToBytes(text), "UTF-8");
+            }
+            fd.values.add(text);
+          } else if (el.equals("tv")) {
+            inTv = true;
+          } else if (el.equals("t") && inTv) {
+            fd.tvPositions |= r.getAttributeValue(null, "positions") != null;
+            fd.tvOffsets |= r.getAttributeValue(null, "offsets") != null;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT && doc != null) {
+          String el = r.getLocalName();
+          if (el.equals("tv")) {
+            inTv = false;
+          } else if (el.equals("field")) {
+            addFields(doc, fd);
+          } else if (el.equals("doc")) {
+            add(doc);
+            doc = null;
+          }
+        }
+      }
+    } finally {
+      r.close();
+    }
+  }
+
+  /**
+   * Terms of a reconstructed field at their positions, in position order.
+   */
+  private static class PositionedTerms extends TokenStream {
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final String[] terms;
+    private final int[] positions;
+    private int upto = 0;
+
+    PositionedTerms(List<String> terms, List<Integer> positions) {
+      int n = terms.size();
+      // position in the high bits, order in the input in the low bits
+      long[] order = new long[n];
+      for (int i = 0; i < n; i++) {
+        order[i] = ((long)positions.get(i) << 32) | i;
+      }
+      Arrays.sort(order);
+      this.terms = new String[n];
+      this.positions = new int[n];
+      for (int i = 0; i < n; i++) {
+        this.terms[i] = terms.get((int)order[i]);
+        this.positions[i] = (int)(order[i] >>> 32);
+      }
+    }
+
+    @Override
+    public boolean incrementToken() {
+      if (upto == terms.length) {
+        return false;
+      }
+      clearAttributes();
+      termAtt.setEmpty().append(terms[upto]);
+      posIncAtt.setPositionIncrement(upto == 0 ? positions[0] + 1 :
+        positions[upto] - positions[upto - 1]);
+      upto++;
+      return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+      super.reset();
+      upto = 0;
+    }
+  }
+
+  private static void skip(XMLStreamReader r) throws Exception {
+    int depth = 1;
+    while (depth > 0) {
+      int event = r.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  private void readJson(InputStream in) throws Exception {
+    BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"), 1 << 16);
+    FieldData fd = new FieldData();
+    String line;
+    int lineNum = 0;
+    while ((line = br.readLine()) != null) {
+      lineNum++;
+      if (abort || failure != null) {
+        return;
+      }
+      line = line.trim();
+      if (line.length() == 0) {
+        continue;
+      }
+      Object o;
+      try {
+        o = new JsonParser(line).parse();
+      } catch (Exception e) {
+        throw new Exception("Invalid JSON at line " + lineNum + ": " + e.getMessage());
+      }
+      if (!(o instanceof Map)) {
+        throw new Exception("Expected a JSON object at line " + lineNum);
+      }
+      Map<?,?> map = (Map<?,?>)o;
+      Document doc = new Document();
+      Object fields = map.get("fields");
+      if (fields instanceof List) {
+        for (Object f : (List<?>)fields) {
+          if (!(f instanceof Map)) {
+            continue;
+          }
+          Map<?,?> fm = (Map<?,?>)f;
+          fd.reset(String.valueOf(fm.get("name")));
+          fd.flags = (String)fm.get("flags");
+          fd.reconstructed = Boolean.TRUE.equals(fm.get("reconstructed"));
+          addValues(fd, fm.get("values"));
+          addFields(doc, fd);
+        }
+      } else {
+        for (Map.Entry<?,?> e : map.entrySet()) {
+          fd.reset(String.valueOf(e.getKey()));
+          addValues(fd, e.getValue());
+          addFields(doc, fd);
+        }
+      }
+      add(doc);
+    }
+  }
+
+  private static void addValues(FieldData fd, Object value) {
+    if (value instanceof List) {
+      for (Object v : (List<?>)value) {
+        if (v != null) {
+          fd.values.add(String.valueOf(v));
+        }
+      }
+    } else if (value != null) {
+      fd.values.add(String.valueOf(value));
+    }
+  }
+
+  /**
+   * Add the values of a field to the document, with the options recorded
+   * in its flags.
+   */
+  private void addFields(Document doc, FieldData fd) {
+    if (fd.name == null || fd.values.isEmpty()) {
+      return;
+    }
+    if (fd.reconstructed) {
+      if (!reconstructed) {
+        return;
+      }
+      if (fd.positions.size() == fd.values.size()) {
+        // terms are already analyzed
+        doc.add(new TextField(fd.name, new PositionedTerms(fd.values, fd.positions)));
+      } else {
+        for (String v : fd.values) {
+          doc.add(new TextField(fd.name, v, Field.Store.NO));
+        }
+      }
+      return;
+    }
+    String flags = fd.flags;
+    if (flags == null || flags.length() < 17) {
+      // no flags - stored text
+      for (String v : fd.values) {
+        doc.add(new TextField(fd.name, v, Field.Store.YES));
+      }
+      return;
+    }
+    boolean binary = flags.charAt(8) == 'B';
+    char numType = flags.charAt(13) == '#' ? numericType(flags.substring(14, 17)) : 0;
+    String dvType = flags.length() > 17 && flags.charAt(17) == 'D' ? flags.substring(18) : null;
+    FieldType ft = fieldType(fd, numType);
+    for (int i = 0; i < fd.values.size(); i++) {
+      String v = fd.values.get(i);
+      byte[] bytes = null;
+      Number num = null;
+      Field f;
+      if (binary) {
+        bytes = Util.hexToBytes(v);
+        f = new StoredField(fd.name, bytes);
+      } else if (numType != 0) {
+        num = parseNumber(numType, v);
+        if (ft.indexed()) {
+          switch (numType) {
+          case 'I':
+            f = new IntField(fd.name, num.intValue(), ft);
+            break;
+          case 'L':
+            f = new LongField(fd.name, num.longValue(), ft);
+            break;
+          case 'F':
+            f = new FloatField(fd.name, num.floatValue(), ft);
+            break;
+          default:
+            f = new DoubleField(fd.name, num.doubleValue(), ft);
+          }
+        } else {
+          switch (numType) {
+          case 'I':
+            f = new StoredField(fd.name, num.intValue());
+            break;
+          case 'L':
+            f = new StoredField(fd.name, num.longValue());
+            break;
+          case 'F':
+            f = new StoredField(fd.name, num.floatValue());
+            break;
+          default:
+            f = new StoredField(fd.name, num.doubleValue());
+          }
+        }
+      } else if (ft.indexed() || ft.stored()) {
+        f = new Field(fd.name, v, ft);
+      } else {
+        f = null;
+      }
+      if (f != null) {
+        doc.add(f);
+      }
+      if (dvType != null) {
+        // doc values are not exported, restore them from the stored value
+        Field dv = docValuesField(fd.name, dvType, i, v, bytes, num);
+        if (dv != null) {
+          doc.add(dv);
+        }
+      }
+    }
+  }
+
+  private FieldType fieldType(FieldData fd, char numType) {
+    String key = fd.flags + fd.tvPositions + fd.tvOffsets + numType;
+    synchronized (types) {
+      FieldType ft = types.get(key);
+      if (ft != null) {
+        return ft;
+      }
+      String flags = fd.flags;
+      switch (numType) {
+      case 'I':
+        ft = new FieldType(IntField.TYPE_NOT_STORED);
+        break;
+      case 'L':
+        ft = new FieldType(LongField.TYPE_NOT_STORED);
+        break;
+      case 'F':
+        ft = new FieldType(FloatField.TYPE_NOT_STORED);
+        break;
+      case 'D':
+        ft = new FieldType(DoubleField.TYPE_NOT_STORED);
+        break;
+      default:
+        ft = new FieldType();
+      }
+      ft.setIndexed(flags.charAt(0) == 'I');
+      ft.setStored(flags.charAt(6) == 'S');
+      if (ft.indexed()) {
+        String opts = flags.substring(1, 5);
+        if (opts.equals("d---")) {
+          ft.setIndexOptions(IndexOptions.DOCS_ONLY);
+        } else if (opts.equals("df--")) {
+          ft.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        } else if (opts.equals("dfpo")) {
+          ft.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        } else {
+          ft.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        }
+        ft.setOmitNorms(flags.charAt(9) != 'N');
+        if (numType == 0) {
+          // untokenized fields are usually indexed without frequencies
+          ft.setTokenized(ft.indexOptions() != IndexOptions.DOCS_ONLY);
+          ft.setStoreTermVectors(flags.charAt(7) == 'V');
+          ft.setStoreTermVectorPositions(ft.storeTermVectors() && fd.tvPositions);
+          ft.setStoreTermVectorOffsets(ft.storeTermVectors() && fd.tvOffsets);
+        }
+        String prec = flags.substring(15, 17);
+        if (numType != 0 && Character.isUpperCase(flags.charAt(14))) {
+          ft.setNumericPrecisionStep(Integer.parseInt(prec, 16));
+        }
+      }
+      ft.freeze();
+      types.put(key, ft);
+      return ft;
+    }
+  }
+
+  /**
+   * @return I, L, F or D for the type of numeric field, or 0 if values are
+   * imported as text
+   */
+  private static char numericType(String type) {
+    if (type.equals("i32") || type.equals("i16") || type.equals("i08")) {
+      return 'I';
+    } else if (type.equals("i64")) {
+      return 'L';
+    } else if (type.equals("f32")) {
+      return 'F';
+    } else if (type.equals("f64")) {
+      return 'D';
+    }
+    char c = type.charAt(0);
+    if (c == 'I' || c == 'L' || c == 'F' || c == 'D') {
+      return c;
+    }
+    return 0;
+  }
+
+  private static Number parseNumber(char type, String v) {
+    v = v.trim();
+    switch (type) {
+    case 'I':
+      return Integer.valueOf(v);
+    case 'L':
+      return Long.valueOf(v);
+    case 'F':
+      return Float.valueOf(v);
+    default:
+      return Double.valueOf(v);
+    }
+  }
+
+  private static Field docValuesField(String name, String type, int i, String v, byte[] bytes, Number num) {
+    BytesRef ref = bytes != null ? new BytesRef(bytes) : new BytesRef(v);
+    if (type.equals("srtset")) {
+      return new SortedSetDocValuesField(name, ref);
+    } else if (i > 0) {
+      return null; // only one value per document
+    } else if (type.equals("srt")) {
+      return new SortedDocValuesField(name, ref);
+    } else if (type.equals("bin")) {
+      return new BinaryDocValuesField(name, ref);
+    } else if (type.equals("num")) {
+      if (num instanceof Float) {
+        return new FloatDocValuesField(name, num.floatValue());
+      } else if (num instanceof Double) {
+        return new DoubleDocValuesField(name, num.doubleValue());
+      } else if (num != null) {
+        return new NumericDocValuesField(name, num.longValue());
+      }
+      try {
+        return new NumericDocValuesField(name, Long.parseLong(v.trim()));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void publish(Object arg) {
+    setChanged();
+    notifyObservers(arg);
+  }
+
+  /**
+   * Minimal parser of one JSON value. Objects are returned as maps, arrays
+   * as lists, numbers as Long or Double.
+   */
+  static class JsonParser {
+    private final String s;
+    private int pos = 0;
+
+    JsonParser(String s) {
+      this.s = s;
+    }
+
+    Object parse() throws Exception {
+      Object o = value();
+      ws();
+      if (pos < s.length()) {
+        throw error("trailing characters");
+      }
+      return o;
+    }
+
+    private Object value() throws Exception {
+      ws();
+      if (pos >= s.length()) {
+        throw error("unexpected end");
+      }
+      char c = s.charAt(pos);
+      switch (c) {
+      case '{':
+        pos++;
+        LinkedHashMap<String,Object> map = new LinkedHashMap<String,Object>();
+        ws();
+        if (peek('}')) {
+          return map;
+        }
+        do {
+          ws();
+          if (pos >= s.length() || s.charAt(pos) != '"') {
+            throw error("expected a name");
+          }
+          String name = string();
+          ws();
+          expect(':');
+          map.put(name, value());
+          ws();
+        } while (peek(','));
+        expect('}');
+        return map;
+      case '[':
+        pos++;
+        ArrayList<Object> list = new ArrayList<Object>();
+        ws();
+        if (peek(']')) {
+          return list;
+        }
+        do {
+          list.add(value());
+          ws();
+        } while (peek(','));
+        expect(']');
+        return list;
+      case '"':
+        return string();
+      case 't':
+        literal("true");
+        return Boolean.TRUE;
+      case 'f':
+        literal("false");
+        return Boolean.FALSE;
+      case 'n':
+        literal("null");
+        return null;
+      default:
+        return number();
+      }
+    }
+
+    private String string() throws Exception {
+      pos++; // opening quote
+      StringBuilder sb = null;
+      int start = pos;
+      while (pos < s.length()) {
+        char c = s.charAt(pos);
+        if (c == '"') {
+          String res = sb == null ? s.substring(start, pos) :
+            sb.append(s, start, pos).toString();
+          pos++;
+          return res;
+        } else if (c == '\\') {
+          if (sb == null) {
+            sb = new StringBuilder();
+          }
+          sb.append(s, start, pos);
+          if (++pos >= s.length()) {
+            break;
+          }
+          c = s.charAt(pos++);
+          switch (c) {
+          case 'b':
+            sb.append('\b');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'u':
+            if (pos + 4 > s.length()) {
+              throw error("invalid escape");
+            }
+            sb.append((char)Integer.parseInt(s.substring(pos, pos + 4), 16));
+            pos += 4;
+            break;
+          default:
+            sb.append(c);
+          }
+          start = pos;
+        } else {
+          pos++;
+        }
+      }
+      throw error("unterminated string");
+    }
+
+    private Object number() throws Exception {
+      int start = pos;
+      boolean fp = false;
+      while (pos < s.length()) {
+        char c = s.charAt(pos);
+        if (c == '.' || c == 'e' || c == 'E') {
+          fp = true;
+        } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+          break;
+        }
+        pos++;
+      }
+      if (start == pos) {
+        throw error("unexpected character '" + s.charAt(pos) + "'");
+      }
+      String n = s.substring(start, pos);
+      return fp ? (Object)Double.valueOf(n) : (Object)Long.valueOf(n);
+    }
+
+    private void literal(String lit) throws Exception {
+      if (!s.startsWith(lit, pos)) {
+        throw error("unexpected character '" + s.charAt(pos) + "'");
+      }
+      pos += lit.length();
+    }
+
+    private boolean peek(char c) {
+      if (pos < s.length() && s.charAt(pos) == c) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(char c) throws Exception {
+      if (!peek(c)) {
+        throw error("expected '" + c + "'");
+      }
+    }
+
+    private void ws() {
+      while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private Exception error(String msg) {
+      return new Exception(msg + " at column " + (pos + 1));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: XMLImporter <indexPath> <inputFile> [<inputFile> ...] [-append] [-threads N] [-ramMB N] [-analyzer className] [-reconstructed]");
+      System.err.println("\tindexPath\tname of the directory of the new index");
+      System.err.println("\tinputFile\tXMLExporter output or JSON Lines, optionally gzipped. Directories import all their files in name order");
+      System.err.println("\tappend\tadd documents to an existing index, instead of replacing it");
+      System.err.println("\tthreads\tnumber of indexing threads (default: number of CPUs)");
+      System.err.println("\tramMB\tsize of the indexing buffer in MB (default: " + (int)DEFAULT_RAM_BUFFER_MB + ")");
+      System.err.println("\tanalyzer\tanalyzer of tokenized fields (default: StandardAnalyzer)");
+      System.err.println("\treconstructed\tindex reconstructed fields again, unstored, from their terms and positions");
+      System.exit(-1);
+    }
+    ArrayList<File> files = new ArrayList<File>();
+    boolean append = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    double ramMB = DEFAULT_RAM_BUFFER_MB;
+    String analyzerClass = null;
+    boolean reconstructed = false;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-append")) {
+        append = true;
+      } else if (args[i].equals("-threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-ramMB")) {
+        ramMB = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("-analyzer")) {
+        analyzerClass = args[++i];
+      } else if (args[i].equals("-reconstructed")) {
+        reconstructed = true;
+      } else if (args[i].startsWith("-")) {
+        throw new Exception("Unknown argument: '" + args[i] + "'");
+      } else {
+        File f = new File(args[i]);
+        if (f.isDirectory()) {
+          File[] list = f.listFiles();
+          Arrays.sort(list);
+          for (File part : list) {
+            if (part.isFile() && !part.getName().endsWith(".checkpoint")) {
+              files.add(part);
+            }
+          }
+        } else if (f.isFile()) {
+          files.add(f);
+        } else {
+          throw new Exception("No such file: '" + args[i] + "'");
+        }
+      }
+    }
+    Analyzer analyzer = new StandardAnalyzer(Luke.LV);
+    if (analyzerClass != null) {
+      Class<?> cls = Class.forName(analyzerClass);
+      try {
+        Constructor<?> c = cls.getConstructor(Version.class);
+        analyzer = (Analyzer)c.newInstance(Luke.LV);
+      } catch (NoSuchMethodException e) {
+        analyzer = (Analyzer)cls.newInstance();
+      }
+    }
+    Directory dir = FSDirectory.open(new File(args[0]));
+    XMLImporter importer = new XMLImporter(dir, analyzer);
+    importer.setCreate(!append);
+    importer.setThreads(threads);
+    importer.setRAMBufferSizeMB(ramMB);
+    importer.setReconstructed(reconstructed);
+    importer.addObserver(new Observer() {
+      public void update(Observable o, Object arg) {
+        ProgressNotification pn = (ProgressNotification)arg;
+        System.err.println(pn.message);
+      }
+    });
+    long start = System.currentTimeMillis();
+    int numDocs = importer.importFiles(files);
+    long delta = System.currentTimeMillis() - start;
+    System.err.println("Imported " + numDocs + " documents in " + delta + " ms");
+    dir.close();
+  }
+}
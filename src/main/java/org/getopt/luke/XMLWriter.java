@@ -0,0 +1,284 @@
+package org.getopt.luke;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.UnicodeUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming writer of XML output. Markup and escaped values are encoded as
+ * UTF-8 straight into a reusable byte buffer, without intermediate Strings.
+ * Values can be escaped from Strings, char arrays or UTF-8 bytes, and
+ * numbers are formatted in place.
+ * <p>Without an output stream the buffer grows to hold all output,
+ * otherwise it is flushed to the stream whenever it is full.</p>
+ * <p>Escaped characters that XML 1.0 doesn't allow, not even as character
+ * references, are replaced with U+FFFD, so that the output stays well-formed.
+ * Values that must be read back unchanged can be checked with
+ * {@link #isXmlText(String)} first.</p>
+ */
+public final class XMLWriter {
+  public static final int BUFFER_SIZE = 1 << 16;
+
+  private static final byte[] AMP = bytes("&amp;");
+  private static final byte[] GT = bytes("&gt;");
+  private static final byte[] LT = bytes("&lt;");
+  private static final byte[] QUOT = bytes("&quot;");
+  private static final byte[] APOS = bytes("&#039;");
+  private static final byte[] HEX = bytes("0123456789abcdef");
+  // U+FFFD in UTF-8
+  private static final byte[] REPLACEMENT = {(byte)0xef, (byte)0xbf, (byte)0xbd};
+
+  private final OutputStream out;
+  private byte[] buf = new byte[BUFFER_SIZE];
+  private int len = 0;
+  private final byte[] digits = new byte[20];
+  private final CharsRef chars = new CharsRef();
+
+  /**
+   * Create a writer that collects all output in memory.
+   */
+  public XMLWriter() {
+    this(null);
+  }
+
+  /**
+   * @param out stream that receives the output, or null to collect all
+   * output in memory
+   */
+  public XMLWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Write markup as is, without escaping.
+   */
+  public XMLWriter write(String s) throws IOException {
+    encode(s, false);
+    return this;
+  }
+
+  public XMLWriter write(long v) throws IOException {
+    if (v == Long.MIN_VALUE) {
+      return write(String.valueOf(v));
+    }
+    ensure(20);
+    if (v < 0) {
+      buf[len++] = '-';
+      v = -v;
+    }
+    int n = digits.length;
+    do {
+      digits[--n] = (byte)('0' + v % 10);
+      v /= 10;
+    } while (v != 0);
+    System.arraycopy(digits, n, buf, len, digits.length - n);
+    len += digits.length - n;
+    return this;
+  }
+
+  public XMLWriter write(boolean b) throws IOException {
+    return write(b ? "true" : "false");
+  }
+
+  /**
+   * Write an escaped value, or nothing if it is null.
+   */
+  public XMLWriter escape(String s) throws IOException {
+    if (s != null) {
+      encode(s, true);
+    }
+    return this;
+  }
+
+  public XMLWriter escape(char[] c, int off, int length) throws IOException {
+    int end = off + length;
+    for (int i = off; i < end; i++) {
+      char ch = c[i];
+      if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(c[i + 1])) {
+        putCodePoint(Character.toCodePoint(ch, c[++i]));
+      } else {
+        put(ch, true);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Write an escaped value from UTF-8 bytes. ASCII is escaped straight from
+   * the bytes, other values are decoded the same way as
+   * {@link BytesRef#utf8ToString()}.
+   */
+  public XMLWriter escape(BytesRef utf8) throws IOException {
+    int end = utf8.offset + utf8.length;
+    for (int i = utf8.offset; i < end; i++) {
+      if (utf8.bytes[i] < 0) { // not ASCII
+        UnicodeUtil.UTF8toUTF16(utf8.bytes, utf8.offset, utf8.length, chars);
+        return escape(chars.chars, chars.offset, chars.length);
+      }
+    }
+    ensure(utf8.length);
+    for (int i = utf8.offset; i < end; i++) {
+      put((char)utf8.bytes[i], true);
+    }
+    return this;
+  }
+
+  /**
+   * @return false if the value has characters that XML 1.0 doesn't allow,
+   * e.g. most control characters
+   */
+  public static boolean isXmlText(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (!isXmlChar(s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static boolean isXmlChar(char ch) {
+    if (ch < 0x20) {
+      return ch == '\t' || ch == '\n' || ch == '\r';
+    }
+    return ch != 0xfffe && ch != 0xffff;
+  }
+
+  /**
+   * Write bytes as space-separated hex numbers, like
+   * {@link Util#bytesToHex(BytesRef, boolean)} without wrapping.
+   */
+  public XMLWriter hex(BytesRef bytes) throws IOException {
+    ensure(bytes.length * 3);
+    for (int i = 0; i < bytes.length; i++) {
+      if (i > 0) {
+        buf[len++] = ' ';
+      }
+      int b = bytes.bytes[bytes.offset + i] & 0xff;
+      buf[len++] = HEX[b >>> 4];
+      buf[len++] = HEX[b & 0x0f];
+    }
+    return this;
+  }
+
+  /**
+   * Write the buffered output to the stream.
+   */
+  public void flush() throws IOException {
+    if (out != null && len > 0) {
+      out.write(buf, 0, len);
+      len = 0;
+    }
+  }
+
+  /**
+   * @return buffer with the output collected in memory
+   */
+  public byte[] getBuffer() {
+    return buf;
+  }
+
+  /**
+   * @return number of bytes in the buffer
+   */
+  public int length() {
+    return len;
+  }
+
+  private void encode(String s, boolean escape) throws IOException {
+    int end = s.length();
+    for (int i = 0; i < end; i++) {
+      char ch = s.charAt(i);
+      if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+        putCodePoint(Character.toCodePoint(ch, s.charAt(++i)));
+      } else {
+        put(ch, escape);
+      }
+    }
+  }
+
+  private void put(char ch, boolean escape) throws IOException {
+    if (ch < 0x80) {
+      if (escape) {
+        switch (ch) {
+        case '&':
+          put(AMP);
+          return;
+        case '>':
+          put(GT);
+          return;
+        case '<':
+          put(LT);
+          return;
+        case '"':
+          put(QUOT);
+          return;
+        case '\'':
+          put(APOS);
+          return;
+        }
+        if (ch < 0x20 && !isXmlChar(ch)) {
+          put(REPLACEMENT);
+          return;
+        }
+      }
+      if (len == buf.length) {
+        ensure(1);
+      }
+      buf[len++] = (byte)ch;
+    } else if (ch < 0x800) {
+      ensure(2);
+      buf[len++] = (byte)(0xc0 | (ch >> 6));
+      buf[len++] = (byte)(0x80 | (ch & 0x3f));
+    } else if (escape && (ch == 0xfffe || ch == 0xffff)) {
+      put(REPLACEMENT);
+    } else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+      // unpaired surrogate, replaced like the JDK encoder does
+      ensure(1);
+      buf[len++] = '?';
+    } else {
+      ensure(3);
+      buf[len++] = (byte)(0xe0 | (ch >> 12));
+      buf[len++] = (byte)(0x80 | ((ch >> 6) & 0x3f));
+      buf[len++] = (byte)(0x80 | (ch & 0x3f));
+    }
+  }
+
+  private void putCodePoint(int cp) throws IOException {
+    ensure(4);
+    buf[len++] = (byte)(0xf0 | (cp >> 18));
+    buf[len++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+    buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+    buf[len++] = (byte)(0x80 | (cp & 0x3f));
+  }
+
+  private void put(byte[] b) throws IOException {
+    ensure(b.length);
+    System.arraycopy(b, 0, buf, len, b.length);
+    len += b.length;
+  }
+
+  private void ensure(int n) throws IOException {
+    if (len + n <= buf.length) {
+      return;
+    }
+    if (out != null) {
+      flush();
+    }
+    if (len + n > buf.length) {
+      byte[] newBuf = new byte[Math.max(buf.length * 2, len + n)];
+      System.arraycopy(buf, 0, newBuf, 0, len);
+      buf = newBuf;
+    }
+  }
+
+  private static byte[] bytes(String s) {
+    byte[] b = new byte[s.length()];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte)s.charAt(i);
+    }
+    return b;
+  }
+}